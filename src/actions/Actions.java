@@ -22,6 +22,9 @@ public class Actions {
         }
     });
 
+    /* told after every add, undo and redo, once its changes are made */
+    static private Runnable listener;
+
     public static abstract class Item {
         protected String name;
         protected int series = -1;
@@ -30,6 +33,16 @@ public class Actions {
         protected void undo() {};
     }
 
+    public static void setListener(Runnable afterChange) {
+        listener = afterChange;
+    }
+
+    private static void changed() {
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
     public static void add(Item actionItem) {
         actionItem.execute();
         list.add(index, actionItem);
@@ -37,6 +50,7 @@ public class Actions {
         while (list.size() > index) {
             list.remove(list.size() - 1);
         }
+        changed();
         //console.log("adding. index is", index, "list size:", list.size());
         //console.log("adding", actionItem.name);
     }
@@ -61,6 +75,7 @@ public class Actions {
                     }
                 }
             }
+            changed();
         }
         //console.log("redo . index is", index, "list size:", list.size());
     }
@@ -85,6 +100,7 @@ public class Actions {
                 actionItem.undo();
                 index = Math.max(0, index - 1);
             }
+            changed();
             //console.log("undoing", actionItem.name);
         }
         //console.log("undo . index is", index, "list size:", list.size());
@@ -0,0 +1,211 @@
+package formats;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * Plain text tab reader, for the usual blocks of one line per string:
+ *
+ *     e|-----0---|--3--------|
+ *     B|---1-----|------1----|
+ *     ...
+ *
+ * Lines are read one at a time and only the lines of the block being read
+ * are kept.  Blocks of four or five lines are bass, of six or seven guitar;
+ * each kind goes to a track of its own, later blocks after earlier ones.
+ * ASCII tab has no rhythm, so every bar is one 4/4 measure with its columns
+ * spread evenly over it, and a note lasts until the next note of its block.
+ * The tuning comes from the string names in front of the lines (standard
+ * tuning without them).  Frets keep their string; techniques (h, p, b, /
+ * and so on) are skipped and x (dead) notes left out.
+ */
+public class AsciiTabReader {
+
+    /* ticks per quarter note */
+    public static final int RESOLUTION = 960;
+
+    private static final int TICKS_PER_MEASURE = RESOLUTION * 4;
+    private static final int MAX_FRET = 24;
+    private static final int[][] STANDARD_TUNINGS = {
+        null, null, null, null,
+        {43, 38, 33, 28},
+        {43, 38, 33, 28, 23},
+        {64, 59, 55, 50, 45, 40},
+        {64, 59, 55, 50, 45, 40, 35}
+    };
+    private static final int[] STEP_PITCHES = {9, 11, 0, 2, 4, 5, 7}; // A to G
+
+    /* an optional string name, an optional bar, then dashes, frets, bars and techniques */
+    private static final Pattern TAB_LINE =
+            Pattern.compile("^\\s*([A-Ga-g][#b]?)?\\s*[|:]?([-0-9|:hpbrx/\\\\~()<>^.*sStT=]*)\\s*$");
+
+    private final TabSink sink;
+    private List<String> labels = new ArrayList<>();
+    private List<String> bodies = new ArrayList<>();
+
+    /* per string count, the track made for it (or -1) and where its next measure starts */
+    private int[] trackOf = new int[STANDARD_TUNINGS.length];
+    private int[] measureOf = new int[STANDARD_TUNINGS.length];
+    private int trackCount = 0;
+
+    public AsciiTabReader(TabSink sink) {
+        this.sink = sink;
+        Arrays.fill(trackOf, -1);
+    }
+
+    public static boolean isAsciiTabFile(String filename) {
+        String name = filename.toLowerCase();
+        return name.endsWith(".tab") || name.endsWith(".txt");
+    }
+
+    public static void read(File file, TabSink sink) throws IOException {
+        try (BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.ISO_8859_1)) {
+            new AsciiTabReader(sink).read(in);
+        }
+    }
+
+    /* read every block of in; a reader can go through many files one after another */
+    public void read(Reader in) throws IOException {
+        BufferedReader lines = in instanceof BufferedReader ? (BufferedReader)in : new BufferedReader(in);
+        String line;
+        while ((line = lines.readLine()) != null) {
+            Matcher matcher = TAB_LINE.matcher(line);
+            if (matcher.matches() && countDashes(matcher.group(2)) >= 4) {
+                labels.add(matcher.group(1));
+                bodies.add(matcher.group(2));
+            } else {
+                readBlock();
+            }
+        }
+        readBlock();
+    }
+
+    private void readBlock() {
+        int strings = bodies.size();
+        if (strings >= 4 && strings < STANDARD_TUNINGS.length) {
+            if (trackOf[strings] < 0) {
+                trackOf[strings] = trackCount;
+                trackCount += 1;
+                boolean bass = strings < 6;
+                sink.track(trackOf[strings], bass ? "Bass" : "Guitar", trackOf[strings] % 16,
+                        bass ? 33 : 25, 100, getTuning(), false);
+            }
+            readBars(trackOf[strings], getTuning());
+        }
+        labels.clear();
+        bodies.clear();
+    }
+
+    /* open pitches from the string names, each in the octave of standard tuning */
+    private int[] getTuning() {
+        int[] standard = STANDARD_TUNINGS[bodies.size()];
+        int[] tuning = standard.clone();
+        for (int i = 0; i < tuning.length; i++) {
+            String label = labels.get(i);
+            if (label == null) continue;
+            int pitchClass = STEP_PITCHES[Character.toUpperCase(label.charAt(0)) - 'A'];
+            if (label.length() > 1) {
+                pitchClass += label.charAt(1) == '#' ? 1 : -1;
+            }
+            int offset = Math.floorMod(pitchClass - standard[i], 12);
+            tuning[i] = standard[i] + (offset > 6 ? offset - 12 : offset);
+        }
+        return tuning;
+    }
+
+    private void readBars(int track, int[] tuning) {
+        int strings = tuning.length;
+        int width = 0;
+        for (String body : bodies) {
+            width = Math.max(width, body.length());
+        }
+
+        /* frets by column and string, -1 where there is none */
+        int[][] frets = new int[width][strings];
+        boolean[] bar = new boolean[width + 1];
+        boolean[] onset = new boolean[width];
+        bar[width] = true;
+        for (int[] column : frets) {
+            Arrays.fill(column, -1);
+        }
+        for (int s = 0; s < strings; s++) {
+            String body = bodies.get(s);
+            for (int c = 0; c < body.length(); c++) {
+                char ch = body.charAt(c);
+                if (ch == '|' && s == 0) {
+                    bar[c] = true;
+                } else if (ch >= '0' && ch <= '9') {
+                    /* a fret of two digits sits at the column of its first */
+                    int column = c;
+                    int fret = ch - '0';
+                    if (fret > 0 && c + 1 < body.length() && Character.isDigit(body.charAt(c + 1))
+                            && fret * 10 + body.charAt(c + 1) - '0' <= MAX_FRET) {
+                        fret = fret * 10 + body.charAt(c + 1) - '0';
+                        c += 1;
+                    }
+                    frets[column][s] = fret;
+                    onset[column] = true;
+                }
+            }
+        }
+
+        int barStart = 0;
+        for (int c = 0; c <= width; c++) {
+            if (!bar[c]) continue;
+            if (c > barStart) {
+                readMeasure(track, tuning, frets, onset, barStart, c);
+            }
+            barStart = c + 1;
+        }
+    }
+
+    /* columns from first up to end make one measure */
+    private void readMeasure(int track, int[] tuning, int[][] frets, boolean[] onset, int first, int end) {
+        int strings = tuning.length;
+        long measureStart = (long)measureOf[strings] * TICKS_PER_MEASURE;
+        int columns = end - first;
+        for (int c = first; c < end; c++) {
+            if (!onset[c]) continue;
+            int next = c + 1;
+            while (next < end && !onset[next]) {
+                next += 1;
+            }
+            long start = measureStart + (long)(c - first) * TICKS_PER_MEASURE / columns;
+            long stop = measureStart + (long)(next - first) * TICKS_PER_MEASURE / columns;
+            for (int s = 0; s < strings; s++) {
+                int fret = frets[c][s];
+                if (fret >= 0) {
+                    sink.note(track, start, stop - start, tuning[s] + fret, 95, s, fret);
+                }
+            }
+        }
+        measureOf[strings] += 1;
+        sink.measure(measureOf[strings] - 1, measureStart + TICKS_PER_MEASURE);
+    }
+
+    private static int countDashes(String body) {
+        int dashes = 0;
+        for (int i = 0; i < body.length(); i++) {
+            if (body.charAt(i) == '-') {
+                dashes += 1;
+            }
+        }
+        return dashes;
+    }
+
+    @Override
+    public String toString() {
+        return "AsciiTabReader tracks: " + trackCount;
+    }
+
+}
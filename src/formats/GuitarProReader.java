@@ -0,0 +1,600 @@
+package formats;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * Guitar Pro 3, 4 and 5 (.gp3, .gp4, .gp5) reader.
+ *
+ * The file is read front to back once through a buffered stream and every
+ * beat goes to a TabSink as soon as it is read, with the string and fret
+ * it was written on and the pitch from the track's own tuning.  Nothing
+ * but the time signature of each measure and the tuning of each track is
+ * kept, so the size of a song does not matter.  Chords diagrams, lyrics,
+ * effects and the like are skipped over.
+ *
+ * Notes tied to the one before on their string are joined to it, so a
+ * note is passed on once the next note on its string (or the end of the
+ * song) shows where it ends.  Repeats are not unrolled: measures are laid
+ * out as written.
+ */
+public class GuitarProReader {
+
+    /* ticks per quarter note Guitar Pro works in */
+    public static final int RESOLUTION = 960;
+
+    private static final int CHANNELS = 64;
+    private static final int MAX_STRINGS = 7;
+    private static final int DEFAULT_VELOCITY = 95;
+
+    private static final int NOTE_TIED = 2;
+    private static final int BEAT_EMPTY = 0;
+
+    private final InputStream in;
+    private final TabSink sink;
+    private int major;
+    private int minor;
+
+    private int[] programs = new int[CHANNELS];
+    private int[] volumes = new int[CHANNELS];
+    private int measureCount;
+    private long[] measureStarts;
+    private int trackCount;
+    private int[][] tunings;
+    private boolean[] drums;
+
+    /* per track and string, the note not passed on yet as a tie may still lengthen it */
+    private long[][] heldStart;
+    private long[][] heldEnd;
+    private int[][] heldFret;
+    private int[][] heldVelocity;
+
+    private GuitarProReader(InputStream in, TabSink sink) {
+        this.in = in;
+        this.sink = sink;
+    }
+
+    public static boolean isGuitarProFile(String filename) {
+        String name = filename.toLowerCase();
+        return name.endsWith(".gp3") || name.endsWith(".gp4") || name.endsWith(".gp5");
+    }
+
+    public static void read(File file, TabSink sink) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16)) {
+            new GuitarProReader(in, sink).readSong();
+        }
+    }
+
+    private void readSong() throws IOException {
+        readVersion();
+        int tempo;
+        if (major < 5) {
+            readInfo(8);
+            readU8(); // triplet feel
+            if (major == 4) {
+                readLyrics();
+            }
+            tempo = readI32();
+            readI32(); // key
+            if (major == 4) {
+                readI8(); // octave
+            }
+        } else {
+            readInfo(9);
+            readLyrics();
+            if (minor > 0) {
+                skip(4 + 4 + 11); // master volume, reverb and equalizer
+            }
+            readPageSetup();
+            readIntByteSizeString(); // tempo name
+            tempo = readI32();
+            if (minor > 0) {
+                readU8(); // hide tempo
+            }
+            readI8(); // key
+            readI32(); // octave
+        }
+        sink.tempo(0, tempo);
+        readMidiChannels();
+        if (major == 5) {
+            skip(19 * 2); // coda and segno directions
+            readI32(); // master reverb
+        }
+        measureCount = readI32();
+        trackCount = readI32();
+        readMeasureHeaders();
+        readTracks();
+        readMeasures();
+        for (int track = 0; track < trackCount; track++) {
+            for (int string = 0; string < MAX_STRINGS; string++) {
+                release(track, string);
+            }
+        }
+    }
+
+    private void readVersion() throws IOException {
+        String version = readByteSizeString(30);
+        int v = version.indexOf(" v");
+        if (!version.contains("GUITAR PRO") || v < 0 || version.length() < v + 6) {
+            throw new IOException("not a Guitar Pro file: " + version);
+        }
+        major = version.charAt(v + 2) - '0';
+        minor = (version.charAt(v + 4) - '0') * 10 + version.charAt(v + 5) - '0';
+        if (major < 3 || major > 5) {
+            throw new IOException("Guitar Pro version not supported: " + version);
+        }
+    }
+
+    /* title, subtitle, artist and so on, then the notice lines */
+    private void readInfo(int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            readIntByteSizeString();
+        }
+        int lines = readI32();
+        for (int i = 0; i < lines; i++) {
+            readIntByteSizeString();
+        }
+    }
+
+    private void readLyrics() throws IOException {
+        readI32(); // track
+        for (int i = 0; i < 5; i++) {
+            readI32(); // first measure
+            skip(readI32());
+        }
+    }
+
+    private void readPageSetup() throws IOException {
+        skip(2 * 4 + 4 * 4 + 4 + 2); // size, margins, proportion, header and footer flags
+        for (int i = 0; i < 10; i++) {
+            readIntByteSizeString();
+        }
+    }
+
+    private void readMidiChannels() throws IOException {
+        for (int i = 0; i < CHANNELS; i++) {
+            programs[i] = readI32();
+            /* volume is stored in sixteenths */
+            volumes[i] = Math.min(127, Math.max(0, readI8() * 8));
+            skip(5 + 2); // balance, chorus, reverb, phaser, tremolo and padding
+        }
+    }
+
+    private void readMeasureHeaders() throws IOException {
+        measureStarts = new long[measureCount + 1];
+        int numerator = 4;
+        int denominator = 4;
+        for (int i = 0; i < measureCount; i++) {
+            if (major == 5 && i > 0) {
+                skip(1);
+            }
+            int flags = readU8();
+            int lastNumerator = numerator;
+            int lastDenominator = denominator;
+            if ((flags & 0x01) != 0) {
+                numerator = readI8();
+            }
+            if ((flags & 0x02) != 0) {
+                denominator = readI8();
+            }
+            if ((flags & 0x08) != 0) {
+                readI8(); // repeat close
+            }
+            if (major == 5) {
+                if ((flags & 0x20) != 0) {
+                    readMarker();
+                }
+                if ((flags & 0x10) != 0) {
+                    readU8(); // alternate ending
+                }
+            } else {
+                if ((flags & 0x10) != 0) {
+                    readU8();
+                }
+                if ((flags & 0x20) != 0) {
+                    readMarker();
+                }
+            }
+            if ((flags & 0x40) != 0) {
+                skip(2); // key signature
+            }
+            if (major == 5) {
+                if ((flags & 0x03) != 0) {
+                    skip(4); // beaming
+                }
+                if ((flags & 0x10) == 0) {
+                    skip(1);
+                }
+                readU8(); // triplet feel
+            }
+            numerator = Math.max(1, numerator);
+            denominator = Math.max(1, denominator);
+            if (i == 0 || numerator != lastNumerator || denominator != lastDenominator) {
+                sink.timeSignature(measureStarts[i], numerator, denominator);
+            }
+            measureStarts[i + 1] = measureStarts[i] + (long)RESOLUTION * 4 * numerator / denominator;
+        }
+    }
+
+    private void readMarker() throws IOException {
+        readIntByteSizeString();
+        skip(4); // color
+    }
+
+    private void readTracks() throws IOException {
+        tunings = new int[trackCount][];
+        drums = new boolean[trackCount];
+        heldStart = new long[trackCount][MAX_STRINGS];
+        heldEnd = new long[trackCount][MAX_STRINGS];
+        heldFret = new int[trackCount][MAX_STRINGS];
+        heldVelocity = new int[trackCount][MAX_STRINGS];
+        for (int track = 0; track < trackCount; track++) {
+            if (major == 5 && (track == 0 || minor == 0)) {
+                skip(1);
+            }
+            int flags = readU8();
+            String name = readByteSizeString(40);
+            int strings = Math.min(MAX_STRINGS, Math.max(0, readI32()));
+            int[] tuning = new int[MAX_STRINGS];
+            for (int i = 0; i < MAX_STRINGS; i++) {
+                tuning[i] = readI32();
+            }
+            int port = readI32();
+            int channel = readI32() - 1;
+            readI32(); // effect channel
+            readI32(); // frets
+            int capo = readI32();
+            skip(4); // color
+            if (major == 5) {
+                readTrackSettings();
+            }
+
+            int index = (port - 1) * 16 + channel;
+            if (index < 0 || index >= CHANNELS) {
+                index = Math.max(0, channel) % CHANNELS;
+            }
+            tunings[track] = new int[strings];
+            for (int i = 0; i < strings; i++) {
+                tunings[track][i] = tuning[i] + capo;
+            }
+            drums[track] = (flags & 0x01) != 0 || index % 16 == 9;
+            for (int i = 0; i < MAX_STRINGS; i++) {
+                heldEnd[track][i] = -1;
+            }
+            sink.track(track, name, index % 16, Math.max(0, programs[index]), volumes[index],
+                    tunings[track].clone(), drums[track]);
+        }
+        if (major == 5) {
+            skip(minor == 0 ? 2 : 1);
+        }
+    }
+
+    /* what Guitar Pro 5 adds to a track: accentuation, bank and its realistic sound settings */
+    private void readTrackSettings() throws IOException {
+        skip(2 + 1 + 1); // flags, auto accentuation, bank
+        skip(1 + 3 * 4 + 12); // humanize and unknown
+        readSoundSettings();
+        if (minor > 0) {
+            skip(4); // equalizer
+            readIntByteSizeString(); // effect
+            readIntByteSizeString(); // effect category
+        }
+    }
+
+    private void readSoundSettings() throws IOException {
+        skip(3 * 4); // instrument, unknown, sound bank
+        if (minor == 0) {
+            skip(2 + 1);
+        } else {
+            skip(4);
+        }
+    }
+
+    private void readMeasures() throws IOException {
+        for (int measure = 0; measure < measureCount; measure++) {
+            for (int track = 0; track < trackCount; track++) {
+                int voices = major == 5 ? 2 : 1;
+                for (int voice = 0; voice < voices; voice++) {
+                    long tick = measureStarts[measure];
+                    int beats = readI32();
+                    for (int i = 0; i < beats; i++) {
+                        tick += readBeat(track, tick);
+                    }
+                }
+                if (major == 5) {
+                    readU8(); // line break
+                }
+            }
+            sink.measure(measure, measureStarts[measure + 1]);
+        }
+    }
+
+    /* read one beat starting at tick and pass on its notes; its length in ticks */
+    private long readBeat(int track, long tick) throws IOException {
+        int flags = readU8();
+        int status = -1;
+        if ((flags & 0x40) != 0) {
+            status = readU8();
+        }
+        long duration = readDuration(flags);
+        if ((flags & 0x02) != 0) {
+            readChord();
+        }
+        if ((flags & 0x04) != 0) {
+            readIntByteSizeString(); // text
+        }
+        if ((flags & 0x08) != 0) {
+            readBeatEffects();
+        }
+        if ((flags & 0x10) != 0) {
+            readMixTableChange(tick);
+        }
+        int strings = readU8();
+        for (int i = 6; i >= 0; i--) {
+            if ((strings & (1 << i)) != 0 && 6 - i < tunings[track].length) {
+                readNote(track, 6 - i, tick, duration);
+            }
+        }
+        if (major == 5) {
+            int flags2 = readI16();
+            if ((flags2 & 0x0800) != 0) {
+                readU8(); // secondary beam breaks
+            }
+        }
+        return status == BEAT_EMPTY ? 0 : duration;
+    }
+
+    private long readDuration(int flags) throws IOException {
+        int value = Math.max(-2, Math.min(6, readI8()));
+        long ticks = RESOLUTION * 4 >> (value + 2);
+        if ((flags & 0x01) != 0) {
+            ticks = ticks * 3 / 2;
+        }
+        if ((flags & 0x20) != 0) {
+            int enters = readI32();
+            int times = tupletTimes(enters);
+            if (times > 0) {
+                ticks = ticks * times / enters;
+            }
+        }
+        return ticks;
+    }
+
+    /* how many normal notes the tuplet takes the time of */
+    private static int tupletTimes(int enters) {
+        if (enters == 3) return 2;
+        if (enters >= 5 && enters <= 7) return 4;
+        if (enters >= 9 && enters <= 13) return 8;
+        return 0;
+    }
+
+    private void readChord() throws IOException {
+        boolean newFormat = (readU8() & 0x01) != 0;
+        if (!newFormat) {
+            readIntByteSizeString(); // name
+            if (readI32() != 0) {
+                skip(6 * 4); // frets
+            }
+        } else if (major == 3) {
+            skip(124);
+        } else {
+            skip(106);
+        }
+    }
+
+    private void readBeatEffects() throws IOException {
+        int flags1 = readU8();
+        int flags2 = major == 3 ? 0 : readU8();
+        if ((flags1 & 0x20) != 0) {
+            if (major == 3) {
+                skip(1 + 4); // slap or tremolo bar and its value
+            } else {
+                skip(1);
+            }
+        }
+        if ((flags2 & 0x04) != 0) {
+            readBend();
+        }
+        if ((flags1 & 0x40) != 0) {
+            skip(2); // stroke
+        }
+        if ((flags2 & 0x02) != 0) {
+            skip(1); // pick stroke
+        }
+    }
+
+    private void readBend() throws IOException {
+        skip(1 + 4); // type and value
+        int points = readI32();
+        skip(points * 9);
+    }
+
+    /* mix table changes; only a tempo change is kept */
+    private void readMixTableChange(long tick) throws IOException {
+        readI8(); // instrument
+        if (major == 5) {
+            readSoundSettings();
+            if (minor == 0) {
+                skip(1);
+            }
+        }
+        int changes = 0;
+        for (int i = 0; i < 6; i++) {
+            if (readI8() >= 0) {
+                changes += 1;
+            }
+        }
+        if (major == 5) {
+            readIntByteSizeString(); // tempo name
+        }
+        int tempo = readI32();
+        skip(changes); // how long each change takes
+        if (tempo >= 0) {
+            readI8();
+            if (major == 5 && minor > 0) {
+                readU8(); // hide tempo
+            }
+            if (tempo > 0) {
+                sink.tempo(tick, tempo);
+            }
+        }
+        if (major >= 4) {
+            readI8(); // all tracks flags
+        }
+        if (major == 5) {
+            readI8(); // wah
+            if (minor > 0) {
+                readIntByteSizeString();
+                readIntByteSizeString();
+            }
+        }
+    }
+
+    private void readNote(int track, int string, long tick, long duration) throws IOException {
+        int flags = readU8();
+        int type = 1;
+        int velocity = DEFAULT_VELOCITY;
+        int fret = 0;
+        if ((flags & 0x20) != 0) {
+            type = readU8();
+        }
+        if (major < 5 && (flags & 0x01) != 0) {
+            skip(2); // own duration and tuplet
+        }
+        if ((flags & 0x10) != 0) {
+            /* dynamics, ppp to fff, as velocity */
+            velocity = Math.max(1, Math.min(127, 15 + 16 * (readI8() - 1)));
+        }
+        if ((flags & 0x20) != 0) {
+            fret = readI8();
+        }
+        if ((flags & 0x80) != 0) {
+            skip(2); // fingering
+        }
+        if (major == 5) {
+            if ((flags & 0x01) != 0) {
+                skip(8); // duration percent
+            }
+            readU8();
+        }
+        if ((flags & 0x08) != 0) {
+            readNoteEffects();
+        }
+
+        if (type == NOTE_TIED && heldEnd[track][string] >= 0) {
+            heldEnd[track][string] = tick + duration;
+            return;
+        }
+        release(track, string);
+        heldStart[track][string] = tick;
+        heldEnd[track][string] = tick + duration;
+        heldFret[track][string] = Math.max(0, fret);
+        heldVelocity[track][string] = velocity;
+    }
+
+    private void readNoteEffects() throws IOException {
+        int flags1 = readU8();
+        int flags2 = major == 3 ? 0 : readU8();
+        if ((flags1 & 0x01) != 0) {
+            readBend();
+        }
+        if ((flags1 & 0x10) != 0) {
+            skip(major == 5 ? 5 : 4); // grace note
+        }
+        if ((flags2 & 0x04) != 0) {
+            skip(1); // tremolo picking
+        }
+        if ((flags2 & 0x08) != 0) {
+            skip(1); // slide
+        }
+        if ((flags2 & 0x10) != 0) {
+            int harmonic = readI8();
+            if (major == 5 && harmonic == 2) {
+                skip(3); // artificial
+            } else if (major == 5 && harmonic == 3) {
+                skip(1); // tapped
+            }
+        }
+        if ((flags2 & 0x20) != 0) {
+            skip(2); // trill
+        }
+    }
+
+    /* pass on the note held on string, if any */
+    private void release(int track, int string) {
+        if (heldEnd[track][string] < 0) return;
+        long start = heldStart[track][string];
+        int fret = heldFret[track][string];
+        if (drums[track]) {
+            sink.note(track, start, heldEnd[track][string] - start, fret, heldVelocity[track][string], -1, 0);
+        } else {
+            int pitch = tunings[track][string] + fret;
+            sink.note(track, start, heldEnd[track][string] - start, pitch, heldVelocity[track][string], string, fret);
+        }
+        heldEnd[track][string] = -1;
+    }
+
+    private int readU8() throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("Guitar Pro file ends early");
+        }
+        return b;
+    }
+
+    private int readI8() throws IOException {
+        return (byte)readU8();
+    }
+
+    private int readI16() throws IOException {
+        return (short)(readU8() | readU8() << 8);
+    }
+
+    private int readI32() throws IOException {
+        return readU8() | readU8() << 8 | readU8() << 16 | readU8() << 24;
+    }
+
+    private void skip(int count) throws IOException {
+        if (count < 0) {
+            throw new IOException("bad Guitar Pro data, negative length");
+        }
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                readU8();
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    /* a length byte then size bytes, of which only length are used */
+    private String readByteSizeString(int size) throws IOException {
+        int length = readU8();
+        if (size < 0) {
+            size = length;
+        }
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte)readU8();
+        }
+        return new String(bytes, 0, Math.min(length, size), StandardCharsets.ISO_8859_1);
+    }
+
+    /* an int holding the size plus one, then a byte size string of that size */
+    private String readIntByteSizeString() throws IOException {
+        return readByteSizeString(readI32() - 1);
+    }
+
+    @Override
+    public String toString() {
+        return "GuitarProReader v" + major + "." + minor + " tracks: " + trackCount + " measures: " + measureCount;
+    }
+
+}
@@ -0,0 +1,439 @@
+package formats;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+
+/**
+ * MusicXML (score-partwise) reader.
+ *
+ * The file is pulled through a StAX stream reader, so no document is ever
+ * built: part-list entries become tracks, and the notes of every part go
+ * to the TabSink as its measures are read, with the string and fret of
+ * their technical element when there is one.  The tuning comes from the
+ * part's staff-tuning; tempo from sound elements, time signatures from the
+ * first part.  Tied notes are joined, grace and cue notes skipped.
+ */
+public class MusicXmlReader {
+
+    /* ticks per quarter note the divisions of the file are scaled to */
+    public static final int RESOLUTION = 960;
+
+    private static final int DEFAULT_VELOCITY = 90;
+    private static final int[] STEP_PITCHES = {9, 11, 0, 2, 4, 5, 7}; // A to G
+
+    private final XMLStreamReader xml;
+    private final TabSink sink;
+
+    private Map<String, Part> parts = new HashMap<>();
+    private int partCount = 0;
+
+    /* where the part being read is at */
+    private Part part;
+    private boolean declared;
+    private int divisions = 1;
+    private int numerator = 4;
+    private int denominator = 4;
+    private int measure;
+    private long measureStart;
+    private long cursor;
+    private long chordStart;
+    private long directionOffset;
+    private int velocity;
+    private int staffLines;
+    private Map<Integer, Integer> staffTuning = new HashMap<>();
+
+    /* per pitch, the note not passed on yet as a tie may still lengthen it */
+    private long[] heldStart = new long[128];
+    private long[] heldEnd = new long[128];
+    private int[] heldString = new int[128];
+    private int[] heldFret = new int[128];
+    private int[] heldVelocity = new int[128];
+
+    /* what the part-list says about a part */
+    private static class Part {
+        int index;
+        String name = "";
+        int channel = -1;
+        int program = 0;
+        int volume = 100;
+        Map<String, Integer> unpitched = new HashMap<>();
+    }
+
+    private MusicXmlReader(XMLStreamReader xml, TabSink sink) {
+        this.xml = xml;
+        this.sink = sink;
+    }
+
+    public static boolean isMusicXmlFile(String filename) {
+        String name = filename.toLowerCase();
+        return name.endsWith(".musicxml") || name.endsWith(".xml");
+    }
+
+    public static void read(File file, TabSink sink) throws IOException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        /* never fetch the MusicXML DTD from the net */
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16)) {
+            XMLStreamReader xml = factory.createXMLStreamReader(in);
+            try {
+                new MusicXmlReader(xml, sink).readScore();
+            } finally {
+                xml.close();
+            }
+        } catch (XMLStreamException ex) {
+            throw new IOException("bad MusicXML: " + ex.getMessage(), ex);
+        }
+    }
+
+    private void readScore() throws XMLStreamException, IOException {
+        while (xml.hasNext()) {
+            if (xml.next() != XMLStreamConstants.START_ELEMENT) continue;
+            String name = xml.getLocalName();
+            if (name.equals("score-timewise")) {
+                throw new IOException("timewise MusicXML is not supported");
+            } else if (name.equals("score-part")) {
+                readScorePart();
+            } else if (name.equals("part")) {
+                readPart();
+            }
+        }
+    }
+
+    private void readScorePart() throws XMLStreamException {
+        Part info = new Part();
+        info.index = partCount;
+        partCount += 1;
+        parts.put(xml.getAttributeValue(null, "id"), info);
+        String instrument = null;
+        int depth = 1;
+        while (depth > 0) {
+            int event = xml.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth -= 1;
+                continue;
+            }
+            if (event != XMLStreamConstants.START_ELEMENT) continue;
+            String name = xml.getLocalName();
+            if (name.equals("part-name")) {
+                info.name = xml.getElementText().trim();
+            } else if (name.equals("midi-instrument")) {
+                instrument = xml.getAttributeValue(null, "id");
+                depth += 1;
+            } else if (name.equals("midi-channel")) {
+                info.channel = parseInt(xml.getElementText(), 1) - 1;
+            } else if (name.equals("midi-program")) {
+                info.program = parseInt(xml.getElementText(), 1) - 1;
+            } else if (name.equals("volume")) {
+                info.volume = (int)Math.round(parseDouble(xml.getElementText(), 100) * 127 / 100);
+            } else if (name.equals("midi-unpitched")) {
+                info.unpitched.put(instrument, parseInt(xml.getElementText(), 1) - 1);
+            } else {
+                depth += 1;
+            }
+        }
+    }
+
+    private void readPart() throws XMLStreamException, IOException {
+        part = parts.get(xml.getAttributeValue(null, "id"));
+        if (part == null) {
+            throw new IOException("part " + xml.getAttributeValue(null, "id") + " is not in the part-list");
+        }
+        declared = false;
+        divisions = 1;
+        numerator = 4;
+        denominator = 4;
+        measure = 0;
+        measureStart = 0;
+        cursor = 0;
+        chordStart = 0;
+        directionOffset = 0;
+        velocity = DEFAULT_VELOCITY;
+        staffLines = 0;
+        staffTuning.clear();
+        for (int i = 0; i < 128; i++) {
+            heldEnd[i] = -1;
+        }
+
+        int depth = 1;
+        while (depth > 0) {
+            int event = xml.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth -= 1;
+                if (xml.getLocalName().equals("measure")) {
+                    endMeasure();
+                } else if (xml.getLocalName().equals("direction")) {
+                    directionOffset = 0;
+                }
+                continue;
+            }
+            if (event != XMLStreamConstants.START_ELEMENT) continue;
+            String name = xml.getLocalName();
+            if (name.equals("note")) {
+                readNote();
+            } else if (name.equals("backup")) {
+                cursor -= readDurationOf("backup");
+            } else if (name.equals("forward")) {
+                cursor += readDurationOf("forward");
+            } else if (name.equals("divisions")) {
+                divisions = Math.max(1, parseInt(xml.getElementText(), 1));
+            } else if (name.equals("beats")) {
+                int beats = 0;
+                for (String beat : xml.getElementText().split("\\+")) {
+                    beats += parseInt(beat, 0);
+                }
+                numerator = Math.max(1, beats);
+            } else if (name.equals("beat-type")) {
+                denominator = Math.max(1, parseInt(xml.getElementText(), 4));
+                if (part.index == 0) {
+                    sink.timeSignature(measureStart, numerator, denominator);
+                }
+            } else if (name.equals("offset")) {
+                directionOffset = toTicks(xml.getElementText());
+            } else if (name.equals("staff-lines")) {
+                staffLines = parseInt(xml.getElementText(), 0);
+            } else if (name.equals("staff-tuning")) {
+                readStaffTuning();
+            } else if (name.equals("sound")) {
+                readSound();
+                depth += 1;
+            } else {
+                depth += 1;
+            }
+        }
+        declareTrack();
+        for (int pitch = 0; pitch < 128; pitch++) {
+            release(pitch);
+        }
+    }
+
+    private void endMeasure() {
+        measureStart += (long)RESOLUTION * 4 * numerator / denominator;
+        cursor = measureStart;
+        sink.measure(measure, measureStart);
+        measure += 1;
+    }
+
+    private void readStaffTuning() throws XMLStreamException {
+        int line = parseInt(xml.getAttributeValue(null, "line"), 0);
+        int step = 0;
+        int alter = 0;
+        int octave = 0;
+        int depth = 1;
+        while (depth > 0) {
+            int event = xml.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth -= 1;
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = xml.getLocalName();
+                if (name.equals("tuning-step")) {
+                    step = stepPitch(xml.getElementText());
+                } else if (name.equals("tuning-alter")) {
+                    alter = (int)Math.round(parseDouble(xml.getElementText(), 0));
+                } else if (name.equals("tuning-octave")) {
+                    octave = parseInt(xml.getElementText(), 0);
+                } else {
+                    depth += 1;
+                }
+            }
+        }
+        staffTuning.put(line, (octave + 1) * 12 + step + alter);
+    }
+
+    /* tempo and dynamics; does not move past the element */
+    private void readSound() {
+        String tempo = xml.getAttributeValue(null, "tempo");
+        if (tempo != null) {
+            int bpm = (int)Math.round(parseDouble(tempo, 0));
+            if (bpm > 0) {
+                sink.tempo(Math.max(0, cursor + directionOffset), bpm);
+            }
+        }
+        String dynamics = xml.getAttributeValue(null, "dynamics");
+        if (dynamics != null) {
+            velocity = toVelocity(dynamics);
+        }
+    }
+
+    /* the part's track, once its tuning is known: when its first note comes */
+    private void declareTrack() {
+        if (declared) return;
+        declared = true;
+        int lines = staffLines;
+        for (int line : staffTuning.keySet()) {
+            lines = Math.max(lines, line);
+        }
+        int[] tuning = new int[staffTuning.size() == lines ? lines : 0];
+        for (Map.Entry<Integer, Integer> entry : staffTuning.entrySet()) {
+            if (tuning.length > 0 && entry.getKey() >= 1) {
+                /* line 1 is the lowest string, string 0 the highest */
+                tuning[lines - entry.getKey()] = entry.getValue();
+            }
+        }
+        int channel = part.channel >= 0 ? part.channel : part.index % 16;
+        sink.track(part.index, part.name, channel, Math.max(0, part.program),
+                Math.min(127, Math.max(0, part.volume)), tuning, channel == 9);
+    }
+
+    private void readNote() throws XMLStreamException {
+        declareTrack();
+        directionOffset = 0;
+        boolean chord = false;
+        boolean rest = false;
+        boolean grace = false;
+        boolean tieStop = false;
+        int pitch;
+        int step = 0;
+        int alter = 0;
+        int octave = 4;
+        String instrument = null;
+        long duration = 0;
+        int stringNum = -1;
+        int fret = 0;
+        int noteVelocity = velocity;
+        String dynamics = xml.getAttributeValue(null, "dynamics");
+        if (dynamics != null) {
+            noteVelocity = toVelocity(dynamics);
+        }
+
+        int depth = 1;
+        while (depth > 0) {
+            int event = xml.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth -= 1;
+                continue;
+            }
+            if (event != XMLStreamConstants.START_ELEMENT) continue;
+            String name = xml.getLocalName();
+            if (name.equals("chord")) {
+                chord = true;
+                depth += 1;
+            } else if (name.equals("rest")) {
+                rest = true;
+                depth += 1;
+            } else if (name.equals("grace") || name.equals("cue")) {
+                grace = true;
+                depth += 1;
+            } else if (name.equals("step") || name.equals("display-step")) {
+                step = stepPitch(xml.getElementText());
+            } else if (name.equals("alter")) {
+                alter = (int)Math.round(parseDouble(xml.getElementText(), 0));
+            } else if (name.equals("octave") || name.equals("display-octave")) {
+                octave = parseInt(xml.getElementText(), 4);
+            } else if (name.equals("duration")) {
+                duration = toTicks(xml.getElementText());
+            } else if (name.equals("tie")) {
+                tieStop |= "stop".equals(xml.getAttributeValue(null, "type"));
+                depth += 1;
+            } else if (name.equals("instrument")) {
+                instrument = xml.getAttributeValue(null, "id");
+                depth += 1;
+            } else if (name.equals("string")) {
+                stringNum = parseInt(xml.getElementText(), 0) - 1;
+            } else if (name.equals("fret")) {
+                fret = parseInt(xml.getElementText(), 0);
+            } else {
+                depth += 1;
+            }
+        }
+
+        if (grace) return;
+        long start = chord ? chordStart : cursor;
+        if (!chord) {
+            chordStart = cursor;
+            cursor += duration;
+        }
+        if (rest) return;
+        if (instrument != null && part.unpitched.containsKey(instrument)) {
+            pitch = part.unpitched.get(instrument);
+        } else {
+            pitch = (octave + 1) * 12 + step + alter;
+        }
+        if (pitch < 0 || pitch > 127) return;
+
+        if (tieStop && heldEnd[pitch] >= 0) {
+            heldEnd[pitch] = Math.max(heldEnd[pitch], start + duration);
+            return;
+        }
+        release(pitch);
+        heldStart[pitch] = start;
+        heldEnd[pitch] = start + duration;
+        heldString[pitch] = stringNum;
+        heldFret[pitch] = fret;
+        heldVelocity[pitch] = noteVelocity;
+    }
+
+    /* the duration child of a backup or forward element, in ticks */
+    private long readDurationOf(String element) throws XMLStreamException {
+        long ticks = 0;
+        while (true) {
+            int event = xml.next();
+            if (event == XMLStreamConstants.START_ELEMENT && xml.getLocalName().equals("duration")) {
+                ticks = toTicks(xml.getElementText());
+            } else if (event == XMLStreamConstants.END_ELEMENT && xml.getLocalName().equals(element)) {
+                return ticks;
+            }
+        }
+    }
+
+    private void release(int pitch) {
+        if (heldEnd[pitch] < 0) return;
+        int stringNum = part.channel == 9 ? -1 : heldString[pitch];
+        sink.note(part.index, heldStart[pitch], heldEnd[pitch] - heldStart[pitch], pitch,
+                heldVelocity[pitch], stringNum, stringNum < 0 ? 0 : heldFret[pitch]);
+        heldEnd[pitch] = -1;
+    }
+
+    private long toTicks(String duration) {
+        return Math.round(parseDouble(duration, 0) * RESOLUTION / divisions);
+    }
+
+    /* dynamics are a percentage of forte, velocity 90 */
+    private static int toVelocity(String dynamics) {
+        int value = (int)Math.round(parseDouble(dynamics, 100) * DEFAULT_VELOCITY / 100);
+        return Math.max(1, Math.min(127, value));
+    }
+
+    private static int stepPitch(String step) {
+        step = step.trim();
+        if (step.length() != 1 || step.charAt(0) < 'A' || step.charAt(0) > 'G') {
+            return 0;
+        }
+        return STEP_PITCHES[step.charAt(0) - 'A'];
+    }
+
+    private static int parseInt(String text, int fallback) {
+        if (text == null) return fallback;
+        try {
+            return Integer.parseInt(text.trim());
+        } catch (NumberFormatException ex) {
+            return (int)Math.round(parseDouble(text, fallback));
+        }
+    }
+
+    private static double parseDouble(String text, double fallback) {
+        if (text == null) return fallback;
+        try {
+            return Double.parseDouble(text.trim());
+        } catch (NumberFormatException ex) {
+            return fallback;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MusicXmlReader parts: " + partCount;
+    }
+
+}
@@ -0,0 +1,400 @@
+package formats;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import midi.MeterMap;
+import midi.TempoMap;
+import note.ClipInstance;
+import note.Note;
+import note.NoteColumns;
+import note.NoteSnapshot;
+import note.NoteStore;
+import track.TrackController;
+import track.TrackType;
+
+
+/**
+ * MusicXML (score-partwise) writer.
+ *
+ * Every track is a part written straight to a StAX stream writer, measure
+ * by measure as the meter map lays them out, going once through its notes
+ * in start order.  Divisions are the song's resolution so durations are
+ * ticks as they are.  Notes sounding together are written as chords,
+ * notes over a bar line are split and tied, and gaps and overlaps are
+ * closed with forward and backup.  Guitar and bass parts get a tab staff
+ * with their tuning and every note its string and fret; drum notes are
+ * unpitched, one instrument per drum used.
+ */
+public class MusicXmlWriter {
+
+    private static final String[] STEPS = {"C", "C", "D", "D", "E", "F", "F", "G", "G", "A", "A", "B"};
+    private static final int[] ALTERS = {0, 1, 0, 1, 0, 0, 1, 0, 1, 0, 1, 0};
+
+    private final XMLStreamWriter xml;
+    private final TempoMap tempoMap;
+    private final MeterMap meterMap;
+
+    /* note parts carried over the bar line into the next measure */
+    private List<Note> carried = new ArrayList<>();
+    private long cursor;
+    private boolean tab;
+    private boolean drums;
+
+    private MusicXmlWriter(XMLStreamWriter xml, TempoMap tempoMap, MeterMap meterMap) {
+        this.xml = xml;
+        this.tempoMap = tempoMap;
+        this.meterMap = meterMap;
+    }
+
+    public static void write(File file, List<TrackController> tracks, TempoMap tempoMap, MeterMap meterMap)
+            throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+            XMLStreamWriter xml = XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8");
+            new MusicXmlWriter(xml, tempoMap, meterMap).writeScore(tracks);
+            xml.close();
+        } catch (XMLStreamException ex) {
+            throw new IOException("could not write MusicXML: " + ex.getMessage(), ex);
+        }
+    }
+
+    private void writeScore(List<TrackController> tracks) throws XMLStreamException {
+        List<NoteColumns> trackNotes = new ArrayList<>();
+        long lastTick = 0;
+        for (TrackController track : tracks) {
+            NoteColumns notes = getNotes(track);
+            trackNotes.add(notes);
+            for (int i = 0; i < notes.size(); i++) {
+                lastTick = Math.max(lastTick, notes.getEnd(i));
+            }
+        }
+        int measures = Math.max(1, (int)Math.ceil(meterMap.tickToMeasure(lastTick)));
+
+        xml.writeStartDocument("UTF-8", "1.0");
+        xml.writeDTD("<!DOCTYPE score-partwise PUBLIC \"-//Recordare//DTD MusicXML 3.1 Partwise//EN\" "
+                + "\"http://www.musicxml.org/dtds/partwise.dtd\">");
+        xml.writeStartElement("score-partwise");
+        xml.writeAttribute("version", "3.1");
+        xml.writeStartElement("part-list");
+        for (int t = 0; t < tracks.size(); t++) {
+            writeScorePart(tracks.get(t), t, trackNotes.get(t));
+        }
+        xml.writeEndElement();
+        for (int t = 0; t < tracks.size(); t++) {
+            writePart(tracks.get(t), t, trackNotes.get(t), measures);
+        }
+        xml.writeEndElement();
+        xml.writeEndDocument();
+    }
+
+    /* the track's notes with those of its clip instances, in start order */
+    private static NoteColumns getNotes(TrackController track) {
+        NoteSnapshot notes = track.getSnapshot();
+        if (track.getClipInstances().isEmpty()) {
+            return notes;
+        }
+        List<Note> all = new ArrayList<>();
+        for (int i = 0; i < notes.size(); i++) {
+            all.add(notes.toNote(i));
+        }
+        for (ClipInstance instance : track.getClipInstances()) {
+            NoteColumns clipNotes = instance.getClip().getNotes();
+            for (int i = 0; i < clipNotes.size(); i++) {
+                Note note = new Note();
+                note.start = clipNotes.getStart(i) + instance.getOffset();
+                note.duration = clipNotes.getDuration(i);
+                note.pitch = clipNotes.getPitch(i);
+                note.velocity = clipNotes.getVelocity(i);
+                note.stringNum = clipNotes.getString(i);
+                note.fret = clipNotes.getFret(i);
+                all.add(note);
+            }
+        }
+        Collections.sort(all, new Comparator<Note>() {
+            @Override
+            public int compare(Note a, Note b) {
+                return Long.compare(a.start, b.start);
+            }
+        });
+        return NoteStore.of(all);
+    }
+
+    private void writeScorePart(TrackController track, int t, NoteColumns notes) throws XMLStreamException {
+        String id = partId(t);
+        xml.writeStartElement("score-part");
+        xml.writeAttribute("id", id);
+        writeElement("part-name", track.getName() == null ? "" : track.getName());
+        if (track.getTrackType().isDrums()) {
+            /* an instrument for every drum in the track */
+            boolean[] used = new boolean[128];
+            for (int i = 0; i < notes.size(); i++) {
+                used[notes.getPitch(i) & 0x7f] = true;
+            }
+            for (int pitch = 0; pitch < 128; pitch++) {
+                if (!used[pitch]) continue;
+                xml.writeStartElement("score-instrument");
+                xml.writeAttribute("id", instrumentId(t, pitch));
+                writeElement("instrument-name", "Drum " + pitch);
+                xml.writeEndElement();
+            }
+            for (int pitch = 0; pitch < 128; pitch++) {
+                if (!used[pitch]) continue;
+                writeMidiInstrument(track, instrumentId(t, pitch), pitch);
+            }
+        } else {
+            xml.writeStartElement("score-instrument");
+            xml.writeAttribute("id", id + "-I1");
+            writeElement("instrument-name", track.getInstrument().name);
+            xml.writeEndElement();
+            writeMidiInstrument(track, id + "-I1", -1);
+        }
+        xml.writeEndElement();
+    }
+
+    private void writeMidiInstrument(TrackController track, String id, int unpitched) throws XMLStreamException {
+        xml.writeStartElement("midi-instrument");
+        xml.writeAttribute("id", id);
+        writeElement("midi-channel", track.getChannel() + 1);
+        writeElement("midi-program", track.getInstrument().number + 1);
+        if (unpitched >= 0) {
+            writeElement("midi-unpitched", unpitched + 1);
+        }
+        writeElement("volume", Math.round(track.getVolume() * 100 / 127.0));
+        xml.writeEndElement();
+    }
+
+    private void writePart(TrackController track, int t, NoteColumns notes, int measures)
+            throws XMLStreamException {
+        TrackType type = track.getTrackType();
+        int[] tuning = type.isDrums() ? null : type.getTuning();
+        tab = tuning != null;
+        drums = type.isDrums();
+        carried.clear();
+        int next = 0;
+
+        xml.writeStartElement("part");
+        xml.writeAttribute("id", partId(t));
+        for (int m = 0; m < measures; m++) {
+            long start = meterMap.measureToTick(m);
+            long end = meterMap.measureToTick(m + 1);
+            xml.writeStartElement("measure");
+            xml.writeAttribute("number", String.valueOf(m + 1));
+            writeAttributes(m, start, type, tuning);
+            if (t == 0) {
+                writeTempos(start, end);
+            }
+
+            cursor = start;
+            long chordStart = -1;
+            List<Note> carriedIn = carried;
+            carried = new ArrayList<>();
+            for (Note note : carriedIn) {
+                chordStart = writeNote(t, note.start, note.start + note.duration, note.pitch, note.velocity,
+                        note.stringNum, note.fret, true, end, chordStart);
+            }
+            while (next < notes.size() && notes.getStart(next) < end) {
+                long noteStart = Math.max(start, notes.getStart(next));
+                chordStart = writeNote(t, noteStart, Math.max(notes.getEnd(next), noteStart + 1),
+                        notes.getPitch(next), notes.getVelocity(next), notes.getString(next),
+                        notes.getFret(next), false, end, chordStart);
+                next += 1;
+            }
+            if (cursor < end) {
+                xml.writeStartElement("forward");
+                writeElement("duration", end - cursor);
+                xml.writeEndElement();
+            }
+            xml.writeEndElement();
+        }
+        xml.writeEndElement();
+    }
+
+    /* divisions, clef and tuning in the first measure, time signatures where they change */
+    private void writeAttributes(int m, long start, TrackType type, int[] tuning) throws XMLStreamException {
+        int numerator = meterMap.getNumeratorAt(start);
+        int denominator = meterMap.getDenominatorAt(start);
+        boolean meterChanged = m == 0 || start == 0 || (start > 0
+                && (meterMap.getNumeratorAt(start - 1) != numerator
+                || meterMap.getDenominatorAt(start - 1) != denominator));
+        if (!meterChanged) return;
+
+        xml.writeStartElement("attributes");
+        if (m == 0) {
+            writeElement("divisions", meterMap.getResolution());
+            xml.writeStartElement("key");
+            writeElement("fifths", 0);
+            xml.writeEndElement();
+        }
+        xml.writeStartElement("time");
+        writeElement("beats", numerator);
+        writeElement("beat-type", denominator);
+        xml.writeEndElement();
+        if (m == 0) {
+            xml.writeStartElement("clef");
+            if (type.isDrums()) {
+                writeElement("sign", "percussion");
+            } else if (tuning != null) {
+                writeElement("sign", "TAB");
+                writeElement("line", 5);
+            } else {
+                writeElement("sign", "G");
+                writeElement("line", 2);
+            }
+            xml.writeEndElement();
+            if (tuning != null) {
+                xml.writeStartElement("staff-details");
+                writeElement("staff-lines", tuning.length);
+                for (int i = 0; i < tuning.length; i++) {
+                    /* line 1 is the lowest string */
+                    int pitch = tuning[tuning.length - 1 - i];
+                    xml.writeStartElement("staff-tuning");
+                    xml.writeAttribute("line", String.valueOf(i + 1));
+                    writeElement("tuning-step", STEPS[pitch % 12]);
+                    if (ALTERS[pitch % 12] != 0) {
+                        writeElement("tuning-alter", ALTERS[pitch % 12]);
+                    }
+                    writeElement("tuning-octave", pitch / 12 - 1);
+                    xml.writeEndElement();
+                }
+                xml.writeEndElement();
+            }
+        }
+        xml.writeEndElement();
+    }
+
+    private void writeTempos(long start, long end) throws XMLStreamException {
+        for (int i = 0; i < tempoMap.size(); i++) {
+            long tick = tempoMap.getTick(i);
+            if (tick < start || tick >= end) continue;
+            int bpm = tempoMap.getBPMAt(tick);
+            xml.writeStartElement("direction");
+            xml.writeAttribute("placement", "above");
+            xml.writeStartElement("direction-type");
+            xml.writeStartElement("metronome");
+            writeElement("beat-unit", "quarter");
+            writeElement("per-minute", bpm);
+            xml.writeEndElement();
+            xml.writeEndElement();
+            if (tick > start) {
+                writeElement("offset", tick - start);
+            }
+            xml.writeEmptyElement("sound");
+            xml.writeAttribute("tempo", String.valueOf(bpm));
+            xml.writeEndElement();
+        }
+    }
+
+    /*
+     * one note from noteStart to noteEnd, cut at the bar line (the rest is
+     * carried into the next measure); returns the start of the chord it is in
+     */
+    private long writeNote(int t, long noteStart, long noteEnd, int pitch, int velocity, int stringNum, int fret,
+            boolean tieStop, long measureEnd, long chordStart) throws XMLStreamException {
+        boolean chord = noteStart == chordStart;
+        if (!chord) {
+            if (noteStart > cursor) {
+                xml.writeStartElement("forward");
+                writeElement("duration", noteStart - cursor);
+                xml.writeEndElement();
+            } else if (noteStart < cursor) {
+                xml.writeStartElement("backup");
+                writeElement("duration", cursor - noteStart);
+                xml.writeEndElement();
+            }
+        }
+        boolean tieStart = noteEnd > measureEnd;
+        long end = Math.min(noteEnd, measureEnd);
+        if (tieStart) {
+            Note rest = new Note();
+            rest.start = measureEnd;
+            rest.duration = noteEnd - measureEnd;
+            rest.pitch = pitch;
+            rest.velocity = velocity;
+            rest.stringNum = stringNum;
+            rest.fret = fret;
+            carried.add(rest);
+        }
+
+        xml.writeStartElement("note");
+        xml.writeAttribute("dynamics", String.valueOf(Math.round(velocity * 100 / 90.0)));
+        if (chord) {
+            xml.writeEmptyElement("chord");
+        }
+        xml.writeStartElement(drums ? "unpitched" : "pitch");
+        writeElement(drums ? "display-step" : "step", STEPS[pitch % 12]);
+        if (!drums && ALTERS[pitch % 12] != 0) {
+            writeElement("alter", ALTERS[pitch % 12]);
+        }
+        writeElement(drums ? "display-octave" : "octave", pitch / 12 - 1);
+        xml.writeEndElement();
+        writeElement("duration", end - noteStart);
+        if (tieStop) {
+            xml.writeEmptyElement("tie");
+            xml.writeAttribute("type", "stop");
+        }
+        if (tieStart) {
+            xml.writeEmptyElement("tie");
+            xml.writeAttribute("type", "start");
+        }
+        if (drums) {
+            xml.writeEmptyElement("instrument");
+            xml.writeAttribute("id", instrumentId(t, pitch));
+        }
+        writeElement("voice", 1);
+        if (tieStop || tieStart || tab) {
+            xml.writeStartElement("notations");
+            if (tieStop) {
+                xml.writeEmptyElement("tied");
+                xml.writeAttribute("type", "stop");
+            }
+            if (tieStart) {
+                xml.writeEmptyElement("tied");
+                xml.writeAttribute("type", "start");
+            }
+            if (tab) {
+                xml.writeStartElement("technical");
+                writeElement("string", stringNum + 1);
+                writeElement("fret", fret);
+                xml.writeEndElement();
+            }
+            xml.writeEndElement();
+        }
+        xml.writeEndElement();
+
+        if (!chord) {
+            cursor = end;
+        }
+        return noteStart;
+    }
+
+    private void writeElement(String name, Object value) throws XMLStreamException {
+        xml.writeStartElement(name);
+        xml.writeCharacters(String.valueOf(value));
+        xml.writeEndElement();
+    }
+
+    private static String partId(int t) {
+        return "P" + (t + 1);
+    }
+
+    private static String instrumentId(int t, int pitch) {
+        return partId(t) + "-I" + (pitch + 1);
+    }
+
+    @Override
+    public String toString() {
+        return "MusicXmlWriter";
+    }
+
+}
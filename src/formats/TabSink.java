@@ -0,0 +1,26 @@
+package formats;
+
+
+/**
+ * Receives a song as a tab reader goes through its file.
+ *
+ * Readers call it in file order and never keep what they passed on: the
+ * tracks first, then tempo, time signature and notes as the measures are
+ * read.  Ticks are in the reader's resolution.
+ */
+public interface TabSink {
+
+    /* tuning is the open pitch of each string (capo included), first (highest) string first */
+    void track(int track, String name, int channel, int program, int volume, int[] tuning, boolean drums);
+
+    void tempo(long tick, int bpm);
+
+    void timeSignature(long tick, int numerator, int denominator);
+
+    /* stringNum is -1 when the file does not say, and always on drum tracks where the pitch is the drum */
+    void note(int track, long start, long duration, int pitch, int velocity, int stringNum, int fret);
+
+    /* every track is read up to endTick */
+    void measure(int measure, long endTick);
+
+}
@@ -0,0 +1,336 @@
+package formats;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import midi.MeterMap;
+import midi.TempoMap;
+import note.Clip;
+import note.EventStore;
+import note.NoteStore;
+import utils.ByteCoder;
+
+
+/**
+ * Reads the native .tof project format written by TofWriter.
+ *
+ * The file is mapped, not read: opening one only goes through the header,
+ * its table of contents and the small song chunk, so even a huge project
+ * opens at once.  A Track is only a view of its chunk; its settings are
+ * read when it is made, its events and notes only when asked for, each
+ * track on its own and from any thread.  The chunk's CRC is checked the
+ * first time its events or notes are read.  Damage is reported as an
+ * IOException, never as a runtime exception out of the decoding.
+ */
+public class TofReader {
+
+    private final File file;
+    private final ByteBuffer mapped;
+    private final int resolution;
+    private final long[] offsets;
+    private final int[] lengths;
+    private final int[] crcs;
+    private final boolean[] checked;
+
+    private TempoMap tempoMap;
+    private MeterMap meterMap;
+    private int loopStart;
+    private int loopStop;
+    private List<Clip> clips = new ArrayList<>();
+
+    /* a track's settings and where its events and notes are in its chunk */
+    public static class Track {
+        public final String name;
+        public final int channel;
+        public final int instrument;
+        public final int volume;
+        public final boolean muted;
+        public final String trackType;
+        public final int[] tuning;
+        public final double gridFraction;
+        public final boolean collapsed;
+        /* indexes into getClips() with the offset of every instance */
+        public final int[] clipIndexes;
+        public final long[] clipOffsets;
+
+        private final TofReader reader;
+        private final int index;
+        private final ByteBuffer events;
+        private final ByteBuffer notes;
+
+        private Track(TofReader reader, int index, ByteBuffer in) throws IOException {
+            this.reader = reader;
+            this.index = index;
+            name = ByteCoder.readString(in);
+            channel = (int)ByteCoder.readVarLong(in);
+            instrument = (int)ByteCoder.readVarLong(in);
+            volume = (int)ByteCoder.readVarLong(in);
+            muted = in.get() != 0;
+            trackType = ByteCoder.readString(in);
+            tuning = new int[(int)ByteCoder.readVarLong(in)];
+            for (int i = 0; i < tuning.length; i++) {
+                tuning[i] = (int)ByteCoder.readSigned(in);
+            }
+            gridFraction = Double.longBitsToDouble(in.getLong());
+            collapsed = in.get() != 0;
+
+            int instances = (int)ByteCoder.readVarLong(in);
+            if (instances < 0 || instances > in.remaining()) {
+                throw new BufferUnderflowException();
+            }
+            clipIndexes = new int[instances];
+            clipOffsets = new long[instances];
+            for (int i = 0; i < instances; i++) {
+                clipIndexes[i] = (int)ByteCoder.readVarLong(in);
+                clipOffsets[i] = ByteCoder.readSigned(in);
+                if (clipIndexes[i] < 0 || clipIndexes[i] >= reader.clips.size()) {
+                    throw new IOException(reader.file.getName() + " is damaged: track " + index +
+                            " places clip " + clipIndexes[i] + " of " + reader.clips.size());
+                }
+            }
+
+            int eventsLength = in.getInt();
+            events = in.slice();
+            events.limit(eventsLength);
+            in.position(in.position() + eventsLength);
+            notes = in.slice();
+        }
+
+        public EventStore readEvents() throws IOException {
+            reader.check(index);
+            try {
+                return decodeEvents(events.duplicate());
+            } catch (RuntimeException ex) {
+                throw damaged(ex);
+            }
+        }
+
+        public NoteStore readNotes() throws IOException {
+            reader.check(index);
+            try {
+                return decodeNotes(notes.duplicate());
+            } catch (RuntimeException ex) {
+                throw damaged(ex);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "TofReader.Track " + index + " " + name;
+        }
+    }
+
+    private TofReader(File file, ByteBuffer mapped) throws IOException {
+        this.file = file;
+        this.mapped = mapped;
+        if (mapped.remaining() < TofWriter.HEADER_LENGTH || mapped.getInt(0) != TofWriter.MAGIC) {
+            throw new IOException(file.getName() + " is not a TracksOfFire project");
+        }
+        int version = mapped.getShort(4) & 0xffff;
+        if (version > TofWriter.VERSION) {
+            throw new IOException(file.getName() + " was saved by a newer version (" + version + ")");
+        }
+        int trackCount = mapped.getShort(6) & 0xffff;
+        resolution = mapped.getInt(8);
+        if (mapped.remaining() < TofWriter.HEADER_LENGTH + trackCount * TofWriter.ENTRY_LENGTH) {
+            throw new IOException(file.getName() + " is cut short");
+        }
+
+        /* entry 0 is the song chunk, then one for every track */
+        offsets = new long[trackCount + 1];
+        lengths = new int[trackCount + 1];
+        crcs = new int[trackCount + 1];
+        checked = new boolean[trackCount + 1];
+        for (int i = 0; i <= trackCount; i++) {
+            int entry = 12 + i * TofWriter.ENTRY_LENGTH;
+            offsets[i] = mapped.getLong(entry);
+            lengths[i] = mapped.getInt(entry + 8);
+            crcs[i] = mapped.getInt(entry + 12);
+            if (offsets[i] < 0 || lengths[i] < 0 || offsets[i] + lengths[i] > mapped.limit()) {
+                throw new IOException(file.getName() + " is cut short");
+            }
+        }
+
+        checkChunk(0);
+        try {
+            readSong(chunk(0));
+        } catch (RuntimeException ex) {
+            throw damaged(ex);
+        }
+    }
+
+    /* map file and read its header and song; tracks are read as they are asked for */
+    public static TofReader open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new TofReader(file, mapped);
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getResolution() {
+        return resolution;
+    }
+
+    public TempoMap getTempoMap() {
+        return tempoMap;
+    }
+
+    public MeterMap getMeterMap() {
+        return meterMap;
+    }
+
+    public int getLoopStart() {
+        return loopStart;
+    }
+
+    public int getLoopStop() {
+        return loopStop;
+    }
+
+    /* every clip of the song; tracks point into this list */
+    public List<Clip> getClips() {
+        return clips;
+    }
+
+    public int getTrackCount() {
+        return offsets.length - 1;
+    }
+
+    public Track getTrack(int index) throws IOException {
+        try {
+            return new Track(this, index, chunk(index + 1));
+        } catch (RuntimeException ex) {
+            throw damaged(ex);
+        }
+    }
+
+    private void readSong(ByteBuffer in) {
+        tempoMap = new TempoMap(resolution);
+        int count = (int)ByteCoder.readVarLong(in);
+        long tick = 0;
+        for (int i = 0; i < count; i++) {
+            tick += ByteCoder.readVarLong(in);
+            tempoMap.set(tick, (int)ByteCoder.readVarLong(in));
+        }
+        meterMap = new MeterMap(resolution);
+        count = (int)ByteCoder.readVarLong(in);
+        tick = 0;
+        for (int i = 0; i < count; i++) {
+            tick += ByteCoder.readVarLong(in);
+            int numerator = (int)ByteCoder.readVarLong(in);
+            meterMap.set(tick, numerator, (int)ByteCoder.readVarLong(in));
+        }
+        loopStart = (int)ByteCoder.readVarLong(in);
+        loopStop = (int)ByteCoder.readVarLong(in);
+
+        count = (int)ByteCoder.readVarLong(in);
+        for (int i = 0; i < count; i++) {
+            String name = ByteCoder.readString(in);
+            long length = ByteCoder.readVarLong(in);
+            clips.add(new Clip(name, decodeNotes(in), length));
+        }
+    }
+
+    /* a buffer of its own over chunk i, so tracks can be read on different threads */
+    private ByteBuffer chunk(int i) {
+        ByteBuffer in = mapped.duplicate();
+        in.position((int)offsets[i]);
+        in.limit((int)offsets[i] + lengths[i]);
+        return in.slice();
+    }
+
+    /* once per track, before the bulk of it is decoded */
+    private void check(int index) throws IOException {
+        synchronized (checked) {
+            if (!checked[index + 1]) {
+                checkChunk(index + 1);
+                checked[index + 1] = true;
+            }
+        }
+    }
+
+    private void checkChunk(int i) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(chunk(i));
+        if ((int)crc.getValue() != crcs[i]) {
+            throw new IOException(file.getName() + " is damaged: chunk " + i + " does not match its CRC");
+        }
+    }
+
+    private static EventStore decodeEvents(ByteBuffer in) {
+        int count = (int)ByteCoder.readVarLong(in);
+        EventStore events = new EventStore(count);
+        long tick = 0;
+        for (int i = 0; i < count; i++) {
+            tick += ByteCoder.readSigned(in);
+            if (in.get() == 0) {
+                int status = in.get() & 0xff;
+                int data1 = in.get() & 0x7f;
+                events.add(tick, status, data1, in.get() & 0x7f);
+            } else {
+                byte[] message = new byte[(int)ByteCoder.readVarLong(in)];
+                in.get(message);
+                events.addBytes(tick, message);
+            }
+        }
+        return events;
+    }
+
+    /* the columns come one after another; pitch and velocity are a byte each so are read in place */
+    private static NoteStore decodeNotes(ByteBuffer in) {
+        int count = (int)ByteCoder.readVarLong(in);
+        if (count < 0 || count > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        long[] starts = new long[count];
+        long start = 0;
+        for (int i = 0; i < count; i++) {
+            start += ByteCoder.readSigned(in);
+            starts[i] = start;
+        }
+        long[] durations = new long[count];
+        for (int i = 0; i < count; i++) {
+            durations[i] = ByteCoder.readVarLong(in);
+        }
+        int pitches = in.position();
+        int velocities = pitches + count;
+        in.position(velocities + count);
+        int[] strings = new int[count];
+        for (int i = 0; i < count; i++) {
+            strings[i] = (int)ByteCoder.readSigned(in);
+        }
+        int[] frets = new int[count];
+        for (int i = 0; i < count; i++) {
+            frets[i] = (int)ByteCoder.readSigned(in);
+        }
+        NoteStore notes = new NoteStore(count);
+        for (int i = 0; i < count; i++) {
+            int flags = (int)ByteCoder.readVarLong(in);
+            notes.add(starts[i], durations[i], in.get(pitches + i) & 0x7f, in.get(velocities + i) & 0x7f,
+                    strings[i], frets[i], flags);
+        }
+        return notes;
+    }
+
+    private static IOException damaged(RuntimeException ex) {
+        return new IOException("project file is damaged: " + ex, ex);
+    }
+
+    @Override
+    public String toString() {
+        return "TofReader " + file + " tracks: " + getTrackCount();
+    }
+
+}
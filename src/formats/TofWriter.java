@@ -0,0 +1,225 @@
+package formats;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import midi.MeterMap;
+import midi.TempoMap;
+import note.Clip;
+import note.EventStore;
+import note.NoteColumns;
+import note.NoteStore;
+import track.TrackState;
+import utils.ByteCoder;
+
+
+/**
+ * Writes the native .tof project format, read back by TofReader.
+ *
+ * A fixed header with a table of contents comes first, then the song chunk
+ * (time maps, loop range and the clips of the song, each stored once) and
+ * a chunk for every track: its settings and editor state, its clip
+ * instances, its events and last its notes, column by column, starts as
+ * deltas from the note before and everything else as varints.  The table
+ * gives every chunk's place, length and CRC so a reader can go straight
+ * to one track and decode it on its own; it is written last, over the
+ * room left for it, once the chunks are down.
+ */
+public class TofWriter {
+
+    static final int MAGIC = 0x544f4650; // TOFP
+    static final int VERSION = 1;
+    /* magic, version, track count, resolution, then the song chunk's entry */
+    static final int HEADER_LENGTH = 4 + 2 + 2 + 4 + 16;
+    static final int ENTRY_LENGTH = 16;
+
+    private ByteCoder chunk = new ByteCoder(1 << 16);
+    private Map<Clip, Integer> clipIndexes = new IdentityHashMap<>();
+
+    public static boolean isProjectFile(String filename) {
+        return filename.toLowerCase().endsWith(".tof");
+    }
+
+    public void write(File file, List<TrackState> tracks, TempoMap tempoMap, MeterMap meterMap,
+            int loopStart, int loopStop) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(channel, tracks, tempoMap, meterMap, loopStart, loopStop);
+        }
+    }
+
+    /* loop start and stop are the measures shown in the play controls */
+    public void write(FileChannel out, List<TrackState> tracks, TempoMap tempoMap, MeterMap meterMap,
+            int loopStart, int loopStop) throws IOException {
+        if (tracks.size() > 0xffff) {
+            throw new IOException("too many tracks for a project file: " + tracks.size());
+        }
+        long origin = out.position();
+        ByteCoder header = new ByteCoder(HEADER_LENGTH + tracks.size() * ENTRY_LENGTH);
+        header.putInt(MAGIC);
+        header.putShort(VERSION);
+        header.putShort(tracks.size());
+        header.putInt(tempoMap.getResolution());
+        out.position(origin + HEADER_LENGTH + tracks.size() * ENTRY_LENGTH);
+
+        clipIndexes.clear();
+        encodeSong(tracks, tempoMap, meterMap, loopStart, loopStop);
+        writeChunk(out, origin, header);
+        for (TrackState track : tracks) {
+            encodeTrack(track);
+            writeChunk(out, origin, header);
+        }
+        long end = out.position();
+        out.write(ByteBuffer.wrap(header.getBytes(), 0, header.size()), origin);
+        out.position(end);
+        clipIndexes.clear();
+    }
+
+    /* write what is in chunk and give it its entry */
+    private void writeChunk(FileChannel out, long origin, ByteCoder header) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(chunk.getBytes(), 0, chunk.size());
+        header.putLong(out.position() - origin);
+        header.putInt(chunk.size());
+        header.putInt((int)crc.getValue());
+        ByteBuffer bytes = ByteBuffer.wrap(chunk.getBytes(), 0, chunk.size());
+        while (bytes.hasRemaining()) {
+            out.write(bytes);
+        }
+    }
+
+    private void encodeSong(List<TrackState> tracks, TempoMap tempoMap, MeterMap meterMap,
+            int loopStart, int loopStop) {
+        chunk.reset();
+        chunk.putVarLong(tempoMap.size());
+        long tick = 0;
+        for (int i = 0; i < tempoMap.size(); i++) {
+            chunk.putVarLong(tempoMap.getTick(i) - tick);
+            tick = tempoMap.getTick(i);
+            chunk.putVarLong(tempoMap.getTempo(i));
+        }
+        chunk.putVarLong(meterMap.size());
+        tick = 0;
+        for (int i = 0; i < meterMap.size(); i++) {
+            chunk.putVarLong(meterMap.getTick(i) - tick);
+            tick = meterMap.getTick(i);
+            chunk.putVarLong(meterMap.getNumerator(i));
+            chunk.putVarLong(meterMap.getDenominator(i));
+        }
+        chunk.putVarLong(loopStart);
+        chunk.putVarLong(loopStop);
+
+        /* every clip once, in the order tracks first use them */
+        for (TrackState track : tracks) {
+            for (Clip clip : track.clips) {
+                if (!clipIndexes.containsKey(clip)) {
+                    clipIndexes.put(clip, clipIndexes.size());
+                }
+            }
+        }
+        Clip[] clips = new Clip[clipIndexes.size()];
+        for (Map.Entry<Clip, Integer> entry : clipIndexes.entrySet()) {
+            clips[entry.getValue()] = entry.getKey();
+        }
+        chunk.putVarLong(clips.length);
+        for (Clip clip : clips) {
+            chunk.putString(clip.getName());
+            chunk.putVarLong(clip.getLength());
+            encodeNotes(clip.getNotes());
+        }
+    }
+
+    private void encodeTrack(TrackState track) {
+        chunk.reset();
+        chunk.putString(track.name);
+        chunk.putVarLong(track.channel);
+        chunk.putVarLong(track.instrument);
+        chunk.putVarLong(track.volume);
+        chunk.putByte(track.muted ? 1 : 0);
+        chunk.putString(track.trackType);
+        int[] tuning = track.tuning == null ? new int[0] : track.tuning;
+        chunk.putVarLong(tuning.length);
+        for (int pitch : tuning) {
+            chunk.putSigned(pitch);
+        }
+        chunk.putLong(Double.doubleToLongBits(track.gridFraction));
+        chunk.putByte(track.collapsed ? 1 : 0);
+
+        chunk.putVarLong(track.clips.length);
+        for (int i = 0; i < track.clips.length; i++) {
+            chunk.putVarLong(clipIndexes.get(track.clips[i]));
+            chunk.putSigned(track.clipOffsets[i]);
+        }
+
+        /* events behind their length, so the notes can be found without decoding them */
+        int lengthAt = chunk.size();
+        chunk.putInt(0);
+        encodeEvents(track.events);
+        int length = chunk.size() - lengthAt - 4;
+        byte[] bytes = chunk.getBytes();
+        bytes[lengthAt] = (byte)(length >> 24);
+        bytes[lengthAt + 1] = (byte)(length >> 16);
+        bytes[lengthAt + 2] = (byte)(length >> 8);
+        bytes[lengthAt + 3] = (byte)length;
+
+        encodeNotes(track.notes);
+    }
+
+    private void encodeEvents(EventStore events) {
+        chunk.putVarLong(events.size());
+        long tick = 0;
+        for (int i = 0; i < events.size(); i++) {
+            chunk.putSigned(events.getTick(i) - tick);
+            tick = events.getTick(i);
+            if (events.isShort(i)) {
+                chunk.putByte(0);
+                chunk.putByte(events.getStatus(i));
+                chunk.putByte(events.getData1(i));
+                chunk.putByte(events.getData2(i));
+            } else {
+                byte[] message = events.getBytes(i);
+                chunk.putByte(1);
+                chunk.putVarLong(message.length);
+                chunk.putBytes(message, 0, message.length);
+            }
+        }
+    }
+
+    /* one column after another; notes are in start order so start deltas stay small */
+    private void encodeNotes(NoteColumns notes) {
+        int count = notes.size();
+        chunk.putVarLong(count);
+        long start = 0;
+        for (int i = 0; i < count; i++) {
+            chunk.putSigned(notes.getStart(i) - start);
+            start = notes.getStart(i);
+        }
+        for (int i = 0; i < count; i++) {
+            chunk.putVarLong(notes.getDuration(i));
+        }
+        for (int i = 0; i < count; i++) {
+            chunk.putByte(notes.getPitch(i));
+        }
+        for (int i = 0; i < count; i++) {
+            chunk.putByte(notes.getVelocity(i));
+        }
+        for (int i = 0; i < count; i++) {
+            chunk.putSigned(notes.getString(i));
+        }
+        for (int i = 0; i < count; i++) {
+            chunk.putSigned(notes.getFret(i));
+        }
+        for (int i = 0; i < count; i++) {
+            /* what is selected is not part of the song */
+            chunk.putVarLong(notes.getFlags(i) & ~NoteStore.SELECTED);
+        }
+    }
+
+}
@@ -0,0 +1,190 @@
+package midi;
+
+import java.util.Arrays;
+
+
+/**
+ * The time signature of a song over time, from its time signature (meta
+ * 0x58) events, and with it where every measure starts.
+ *
+ * Changes are kept sorted by tick, each with the (zero based, possibly
+ * fractional) measure position it starts at, so converting between ticks
+ * and measures is a binary search plus one division.  There is always a
+ * change at tick 0; until a file says otherwise it is 4/4.
+ */
+public class MeterMap {
+
+    private int resolution;
+    private long[] ticks = new long[] {0};
+    private int[] numerators = new int[] {4};
+    private int[] denominators = new int[] {4};
+    private double[] measures = new double[] {0};
+    private int size = 1;
+
+    public MeterMap(int resolution) {
+        this.resolution = resolution;
+    }
+
+    public MeterMap(MeterMap other) {
+        resolution = other.resolution;
+        ticks = Arrays.copyOf(other.ticks, other.size);
+        numerators = Arrays.copyOf(other.numerators, other.size);
+        denominators = Arrays.copyOf(other.denominators, other.size);
+        measures = Arrays.copyOf(other.measures, other.size);
+        size = other.size;
+    }
+
+    public int getResolution() {
+        return resolution;
+    }
+
+    /* numerator/denominator time from tick on, up to the next change */
+    public void set(long tick, int numerator, int denominator) {
+        tick = Math.max(0, tick);
+        int i = indexAt(tick);
+        if (ticks[i] != tick) {
+            if (size == ticks.length) {
+                int capacity = size * 2;
+                ticks = Arrays.copyOf(ticks, capacity);
+                numerators = Arrays.copyOf(numerators, capacity);
+                denominators = Arrays.copyOf(denominators, capacity);
+                measures = Arrays.copyOf(measures, capacity);
+            }
+            i += 1;
+            System.arraycopy(ticks, i, ticks, i + 1, size - i);
+            System.arraycopy(numerators, i, numerators, i + 1, size - i);
+            System.arraycopy(denominators, i, denominators, i + 1, size - i);
+            System.arraycopy(measures, i, measures, i + 1, size - i);
+            size += 1;
+            ticks[i] = tick;
+        }
+        numerators[i] = Math.max(1, numerator);
+        denominators[i] = Math.max(1, denominator);
+        recount(i);
+    }
+
+    /*
+     * move every change after tick later by delta, as when bars are inserted
+     * there; a change at tick stays, so the new bars are like those pushed back
+     */
+    public void insertTicks(long tick, long delta) {
+        for (int i = 1; i < size; i++) {
+            if (ticks[i] > tick) {
+                ticks[i] += delta;
+            }
+        }
+        recount(1);
+    }
+
+    /*
+     * take out the ticks from up to to, as when bars are removed: changes in
+     * between go, later ones move back and the meter at to goes on from from
+     */
+    public void removeTicks(long from, long to) {
+        int numeratorAtTo = getNumeratorAt(to);
+        int denominatorAtTo = getDenominatorAt(to);
+        int kept = 1;
+        for (int i = 1; i < size; i++) {
+            if (ticks[i] >= from && ticks[i] < to) continue;
+            long tick = ticks[i] >= to ? ticks[i] - (to - from) : ticks[i];
+            if (tick == ticks[kept - 1]) {
+                kept -= 1;
+            }
+            ticks[kept] = tick;
+            numerators[kept] = numerators[i];
+            denominators[kept] = denominators[i];
+            kept += 1;
+        }
+        size = kept;
+        recount(1);
+        if (getNumeratorAt(from) != numeratorAtTo || getDenominatorAt(from) != denominatorAtTo) {
+            set(from, numeratorAtTo, denominatorAtTo);
+        }
+    }
+
+    public int getTicksPerMeasureAt(long tick) {
+        return ticksPerMeasure(indexAt(tick));
+    }
+
+    public int getNumeratorAt(long tick) {
+        return numerators[indexAt(tick)];
+    }
+
+    public int getDenominatorAt(long tick) {
+        return denominators[indexAt(tick)];
+    }
+
+    /* zero based measure position of tick, ie 1.25 is a quarter into the second measure */
+    public double tickToMeasure(long tick) {
+        int i = indexAt(tick);
+        return measures[i] + (double)(tick - ticks[i]) / ticksPerMeasure(i);
+    }
+
+    public long measureToTick(double measure) {
+        int low = 0;
+        int high = size - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (measures[mid] <= measure) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return ticks[low] + Math.round((measure - measures[low]) * ticksPerMeasure(low));
+    }
+
+    /* number of changes, the first always at tick 0 */
+    public int size() {
+        return size;
+    }
+
+    public long getTick(int i) {
+        return ticks[i];
+    }
+
+    public int getNumerator(int i) {
+        return numerators[i];
+    }
+
+    public int getDenominator(int i) {
+        return denominators[i];
+    }
+
+    /* measure position change i starts at */
+    public double getMeasure(int i) {
+        return measures[i];
+    }
+
+    /* measure positions of changes from i on */
+    private void recount(int i) {
+        for (int j = Math.max(1, i); j < size; j++) {
+            measures[j] = measures[j - 1] + (double)(ticks[j] - ticks[j - 1]) / ticksPerMeasure(j - 1);
+        }
+    }
+
+    private int ticksPerMeasure(int i) {
+        return (int)((long)resolution * 4 * numerators[i] / denominators[i]);
+    }
+
+    /* last change at or before tick (the first for ticks before it) */
+    private int indexAt(long tick) {
+        int low = 0;
+        int high = size - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (ticks[mid] <= tick) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public String toString() {
+        return "MeterMap changes: " + size + " starting at " + numerators[0] + "/" + denominators[0];
+    }
+
+}
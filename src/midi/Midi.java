@@ -1,12 +1,15 @@
 package midi;
 
 import java.io.File;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 
+import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.MetaEventListener;
 import javax.sound.midi.MetaMessage;
 import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
 import javax.sound.midi.MidiSystem;
 import javax.sound.midi.MidiUnavailableException;
 import javax.sound.midi.Receiver;
@@ -15,12 +18,16 @@ import javax.sound.midi.Sequencer;
 import javax.sound.midi.ShortMessage;
 import javax.sound.midi.Soundbank;
 import javax.sound.midi.Synthesizer;
+import javax.sound.midi.SysexMessage;
 import javax.sound.midi.Track;
 import javax.sound.midi.Transmitter;
 
 import page.Page;
 import track.TrackController;
 import note.Note;
+import note.ClipInstance;
+import note.EventStore;
+import note.NoteColumns;
 import utils.console;
 
 
@@ -42,6 +49,7 @@ public class Midi {
     static int TRACKNAME = 0x03;
     static int END_OF_TRACK = 0x2F;
     static int TEMPO = 0x51;
+    static int TIME_SIGNATURE = 0x58;
 
     static int VOLUME = 7;
     static int BALANCE = 8;
@@ -111,15 +119,17 @@ public class Midi {
         }
     }
 
-    private long getStartTime(List<Note> notes) {
+    private long getStartTime(NoteColumns notes) {
         long startTime = MAX_LONG;
-        for (Note note : notes) {
-            startTime = Math.min(note.start, startTime);
+        for (int i = 0; i < notes.size(); i++) {
+            startTime = Math.min(notes.getStart(i), startTime);
         }
         return startTime;
     }
 
-    private Track makeMidiTrack(TrackController tController, int BPM, Sequence sequence) {
+    /* the first track of a sequence also carries the tempo and time signature changes */
+    private Track makeMidiTrack(TrackController tController, TempoMap tempoMap, MeterMap meterMap, Sequence sequence) {
+        boolean first = sequence.getTracks().length == 0;
         Track track = sequence.createTrack();
 
         int channel = tController.getChannel();
@@ -131,10 +141,17 @@ public class Midi {
         int panLevel = 64;
 
         try {
-            // 3 is number of bytes in databyte array
-            MetaMessage setTempo = new MetaMessage();
-            setTempo.setMessage(Midi.TEMPO ,getTempoData(BPM), 3);
-            track.add(new MidiEvent(setTempo, 0));
+            /* sysex at the very start usually resets the synth, so it goes before the setup */
+            EventStore events = tController.getEvents();
+            for (int i = 0; i < events.size() && events.getTick(i) == 0; i++) {
+                if (isStartSysex(events, i)) {
+                    track.add(new MidiEvent(toMessage(events, i), 0));
+                }
+            }
+
+            if (first) {
+                addTimeMaps(track, tempoMap, meterMap);
+            }
 
             MetaMessage setTrackName = new MetaMessage();
             setTrackName.setMessage(Midi.TRACKNAME, trackName.getBytes(), trackName.length());
@@ -170,20 +187,89 @@ public class Midi {
         }
     }
 
-    private void loadMidiNote(Note note, int channel, Track track) {
+    private void addTimeMaps(Track track, TempoMap tempoMap, MeterMap meterMap) throws Exception {
+        for (int i = 0; i < tempoMap.size(); i++) {
+            // 3 is number of bytes in databyte array
+            MetaMessage setTempo = new MetaMessage();
+            setTempo.setMessage(Midi.TEMPO, getTempoData(tempoMap.getTempo(i)), 3);
+            track.add(new MidiEvent(setTempo, tempoMap.getTick(i)));
+        }
+        for (int i = 0; i < meterMap.size(); i++) {
+            /* numerator, denominator as a power of 2, clocks per click, 32nds per quarter */
+            byte[] data = new byte[] {
+                (byte)meterMap.getNumerator(i),
+                (byte)Integer.numberOfTrailingZeros(meterMap.getDenominator(i)),
+                24,
+                8
+            };
+            MetaMessage setMeter = new MetaMessage();
+            setMeter.setMessage(Midi.TIME_SIGNATURE, data, 4);
+            track.add(new MidiEvent(setMeter, meterMap.getTick(i)));
+        }
+    }
+
+    /* the track's other events, after its setup so they win over it at tick 0 */
+    private void loadEvents(EventStore events, Track track) {
+        for (int i = 0; i < events.size(); i++) {
+            if (isStartSysex(events, i)) continue;
+            try {
+                track.add(new MidiEvent(toMessage(events, i), events.getTick(i)));
+            } catch (Exception ex) {
+                console.error("Midi: an error happened making event", i, ex);
+            }
+        }
+    }
+
+    private boolean isStartSysex(EventStore events, int i) {
+        return events.getTick(i) == 0 && !events.isShort(i) && events.getStatus(i) != 0xff;
+    }
+
+    private MidiMessage toMessage(EventStore events, int i) throws InvalidMidiDataException {
+        if (events.isShort(i)) {
+            return new ShortMessage(events.getStatus(i), events.getData1(i), events.getData2(i));
+        }
+        byte[] bytes = events.getBytes(i);
+        if (events.getStatus(i) == 0xff) {
+            byte[] data = Arrays.copyOfRange(bytes, 2, bytes.length);
+            return new MetaMessage(bytes[1] & 0xff, data, data.length);
+        }
+        return new SysexMessage(bytes, bytes.length);
+    }
+
+    private void loadMidiNotes(NoteColumns notes, int channel, Track track, long skipBefore) {
+        loadMidiNotes(notes, channel, track, skipBefore, 0);
+    }
+
+    /* offset moves every note, which is how a clip instance is expanded */
+    private void loadMidiNotes(NoteColumns notes, int channel, Track track, long skipBefore, long offset) {
+        for (int i = 0; i < notes.size(); i++) {
+            if (notes.getEnd(i) + offset <= skipBefore) continue;
+            loadMidiNote(notes.getStart(i) + offset, notes.getDuration(i),
+                    notes.getPitch(i), notes.getVelocity(i), channel, track);
+        }
+    }
+
+    private void loadClipInstances(TrackController tController, int channel, Track track, long skipBefore) {
+        for (ClipInstance instance : tController.getClipInstances()) {
+            if (instance.getEnd() <= skipBefore) continue;
+            loadMidiNotes(instance.getClip().getNotes(), channel, track, skipBefore, instance.getOffset());
+        }
+    }
+
+    private void loadMidiNote(long start, long duration, int pitch, int velocity, int channel, Track track) {
         try {
             int startTime = 0;
 
             //ShortMessage pitchBend1 =
                     //new ShortMessage(ShortMessage.PITCH_BEND, channel, 0, 120);
             ShortMessage noteOn =
-                    new ShortMessage(ShortMessage.NOTE_ON, channel, note.pitch, note.velocity);
+                    new ShortMessage(ShortMessage.NOTE_ON, channel, pitch, velocity);
             ShortMessage noteOff =
-                    //new ShortMessage(ShortMessage.NOTE_ON, channel, note.pitch, 0);
-                    new ShortMessage(ShortMessage.NOTE_OFF, channel, note.pitch, 0);
+                    //new ShortMessage(ShortMessage.NOTE_ON, channel, pitch, 0);
+                    new ShortMessage(ShortMessage.NOTE_OFF, channel, pitch, 0);
 
-            long noteStart = note.start - startTime; // 0 if just one note
-            long noteEnd = noteStart + note.duration;
+            long noteStart = start - startTime; // 0 if just one note
+            long noteEnd = noteStart + duration;
 
             //track.add(new MidiEvent(pitchBend1, noteStart));
             track.add(new MidiEvent(noteOn, noteStart));
@@ -194,13 +280,13 @@ public class Midi {
         }
     }
 
-    public void playNote(Note note, TrackController tController, int BPM, int resolution) {
+    public void playNote(Note note, TrackController tController, TempoMap tempoMap, MeterMap meterMap) {
         unMuteAllTracks();
         try {
-            Sequence sequence = new Sequence(Sequence.PPQ, resolution);
-            Track track = makeMidiTrack(tController, BPM, sequence);
+            Sequence sequence = new Sequence(Sequence.PPQ, tempoMap.getResolution());
+            Track track = makeMidiTrack(tController, tempoMap, meterMap, sequence);
             int channel = tController.getChannel();
-            loadMidiNote(note, channel, track);
+            loadMidiNote(note.start, note.duration, note.pitch, note.velocity, channel, track);
             long startTime = note.start;
             sequencer.setSequence(sequence);
 
@@ -214,16 +300,14 @@ public class Midi {
 
     }
 
-    public void playSelection(TrackController tController, int BPM, int resolution) {
+    public void playSelection(TrackController tController, TempoMap tempoMap, MeterMap meterMap) {
         unMuteAllTracks();
         try {
-            Sequence sequence = new Sequence(Sequence.PPQ, resolution);
-            Track track = makeMidiTrack(tController, BPM, sequence);
-            List<Note>trackNotes = tController.getSelection();
+            Sequence sequence = new Sequence(Sequence.PPQ, tempoMap.getResolution());
+            Track track = makeMidiTrack(tController, tempoMap, meterMap, sequence);
+            NoteColumns trackNotes = tController.getSelectionStore();
             int channel = tController.getChannel();
-            for (Note note : trackNotes) {
-                loadMidiNote(note, channel, track);
-            }
+            loadMidiNotes(trackNotes, channel, track, Long.MIN_VALUE);
             long startTime = getStartTime(trackNotes);
             sequencer.setSequence(sequence);
 
@@ -247,17 +331,20 @@ public class Midi {
         }
     }
 
-    public void play(List<TrackController> trackControllers, int BPM, int resolution, long startTime, boolean looping) {
+    public void play(List<TrackController> trackControllers, TempoMap tempoMap, MeterMap meterMap,
+            long startTime, boolean looping) {
         unMuteAllTracks();
         try {
-            playSequence = new Sequence(Sequence.PPQ, resolution);
+            playSequence = new Sequence(Sequence.PPQ, tempoMap.getResolution());
             for (TrackController tController : trackControllers) {
-                Track track = makeMidiTrack(tController, BPM, playSequence);
-                List<Note>trackNotes = tController.getNotes();
+                Track track = makeMidiTrack(tController, tempoMap, meterMap, playSequence);
+                NoteColumns trackNotes = tController.getSnapshot();
                 int channel = tController.getChannel();
-                for (Note note : trackNotes) {
-                    loadMidiNote(note, channel, track);
-                }
+                /* without a loop nothing that ends before startTime can sound */
+                long skipBefore = looping ? Long.MIN_VALUE : startTime;
+                loadMidiNotes(trackNotes, channel, track, skipBefore);
+                loadClipInstances(tController, channel, track, skipBefore);
+                loadEvents(tController.getEvents(), track);
                 if (looping) {
                     addDummyEndOfTrack(track);
                 }
@@ -291,37 +378,9 @@ public class Midi {
         sequencer.setTickPosition(tick);
     }
 
-    public void writeToFile(File file, List<TrackController> trackControllers, int BPM, int resolution) {
-        this.stop();
-        try {
-            Sequence sequence = new Sequence(Sequence.PPQ, resolution);
-            for (TrackController tController : trackControllers) {
-                Track track = makeMidiTrack(tController, BPM, sequence);
-                List<Note>trackNotes = tController.getNotes();
-                int channel = tController.getChannel();
-                for (Note note : trackNotes) {
-                    loadMidiNote(note, channel, track);
-                }
-            }
-            sequencer.setSequence(sequence);
-
-            int[] allowedTypes = MidiSystem.getMidiFileTypes(sequence);
-
-            if (allowedTypes.length == 0) {
-                console.error("No supported MIDI file types available on this system.");
-            } else {
-                MidiSystem.write(sequence, allowedTypes[0], file);
-            }
-
-        } catch(Exception ex) {
-            ex.printStackTrace();
-        }
-    }
-
-    private byte[] getTempoData(int BPM) {
+    private byte[] getTempoData(int microsecondsPerQuarterNote) {
         // magic
         // http://www.java2s.com/example/java/javax.sound.midi/create-a-set-tempo-meta-event-for-midi.html
-        long microsecondsPerQuarterNote = 60000000 / BPM;
         byte[] array = new byte[] {0, 0, 0};
         for (int i = 0; i < 3; i++) {
             int shift = (3 - 1 - i) * 8;
@@ -20,6 +20,7 @@ import javax.sound.midi.Track;
 
 import page.Page;
 import note.Note;
+import note.NoteStore;
 import track.TrackController;
 import utils.console;
 
@@ -65,7 +66,9 @@ public class MidiReader {
 
     private void loadTrack(Track track) {
 
-        ArrayList<Note> notes = new ArrayList<Note>();
+        NoteStore notes = new NoteStore();
+        NotePairer pairer = new NotePairer();
+        long lastTick = 0;
         String trackName = "";
         int channel = 0;
         int instrumentNum = 0;
@@ -75,6 +78,7 @@ public class MidiReader {
             MidiEvent event = track.get(i);
             long tick = event.getTick();
             MidiMessage message = event.getMessage();
+            lastTick = tick;
 
             if (message instanceof MetaMessage) {
                 MetaMessage metaMessage = (MetaMessage)message;
@@ -138,22 +142,11 @@ public class MidiReader {
                     //}
                     // console.log("Other shortMessage. Command:",shortMessage.getCommand(), shortMessage.getData1(), shortMessage.getData2());
                 } else if (command == ShortMessage.NOTE_ON && velocity > 0) {
-                    Note note = new Note();
-                    note.start = tick;
-                    note.pitch = pitch;
-                    note.velocity = velocity;
-                    notes.add(note);
+                    pairer.noteOn(tick, shortMessage.getChannel(), pitch, velocity);
 
                 } else if ((command == ShortMessage.NOTE_ON && velocity == 0) ||
                             command == ShortMessage.NOTE_OFF) {
-                    /* loop backwards */
-                    for (int j = notes.size() - 1; j >= 0; j--) {
-                        Note trackNote = notes.get(j);
-                        if (trackNote.pitch == pitch) {
-                            trackNote.duration = tick - trackNote.start;
-                            break;
-                        }
-                    }
+                    pairer.noteOff(tick, shortMessage.getChannel(), pitch, notes);
 
                 } else {
                     // console.log("Other shortMessage. command:", command, shortMessage.getData1(), shortMessage.getData2());
@@ -166,13 +159,19 @@ public class MidiReader {
             }
         }
 
+        int stuckNotes = pairer.closeAll(lastTick, notes);
+        if (stuckNotes > 0) {
+            console.log("track", trackName, ":", stuckNotes,
+                    "note(s) without note off were ended at the end of the track");
+        }
+
         // right now only loading a track if it has notes
         // not loading first track from easybeat
         if (notes.size() > 0) {
             //// not implemented in page yet
             //TrackController tController = pageController.loadTrack(trackName, instrumentNum, channel, volume);
-            //for (Note note : notes) {
-                //tController.loadNote(note);
+            //for (int j = 0; j < notes.size(); j++) {
+                //tController.loadNote(notes.toNote(j));
             //}
         }
     }
@@ -0,0 +1,99 @@
+package midi;
+
+import java.util.Arrays;
+
+import note.NoteStore;
+
+
+/**
+ * Matches note offs to note ons while a track is read.
+ *
+ * Sounding notes wait on a stack per (channel, pitch), so a note off finds
+ * its note on in constant time and only ever pairs with a note on of the
+ * same channel; overlapping notes of one pitch close last-in first-out.
+ * The stacks are linked lists threaded through shared primitive arrays,
+ * so pairing allocates nothing per note.
+ */
+public class NotePairer {
+
+    private static final int KEYS = 16 * 128;
+
+    private int[] heads = new int[KEYS];
+    private long[] starts = new long[64];
+    private byte[] velocities = new byte[64];
+    private int[] next = new int[64];
+    private int free = -1;
+    private int used = 0;
+    private int pending = 0;
+
+    public NotePairer() {
+        Arrays.fill(heads, -1);
+    }
+
+    private static int key(int channel, int pitch) {
+        return (channel & 0x0f) << 7 | (pitch & 0x7f);
+    }
+
+    public void noteOn(long tick, int channel, int pitch, int velocity) {
+        int slot;
+        if (free >= 0) {
+            slot = free;
+            free = next[slot];
+        } else {
+            if (used == starts.length) {
+                int capacity = used * 2;
+                starts = Arrays.copyOf(starts, capacity);
+                velocities = Arrays.copyOf(velocities, capacity);
+                next = Arrays.copyOf(next, capacity);
+            }
+            slot = used;
+            used += 1;
+        }
+        int key = key(channel, pitch);
+        starts[slot] = tick;
+        velocities[slot] = (byte)velocity;
+        next[slot] = heads[key];
+        heads[key] = slot;
+        pending += 1;
+    }
+
+    /* close the latest sounding note of channel and pitch into out; false if none was sounding */
+    public boolean noteOff(long tick, int channel, int pitch, NoteStore out) {
+        int key = key(channel, pitch);
+        int slot = heads[key];
+        if (slot < 0) return false;
+        heads[key] = next[slot];
+        next[slot] = free;
+        free = slot;
+        pending -= 1;
+        out.add(starts[slot], tick - starts[slot], pitch, velocities[slot], 0, 0, 0);
+        return true;
+    }
+
+    /* notes still waiting for their note off */
+    public int getPending() {
+        return pending;
+    }
+
+    /* end every sounding (stuck) note at tick; returns how many there were */
+    public int closeAll(long tick, NoteStore out) {
+        int closed = 0;
+        for (int channel = 0; channel < 16; channel++) {
+            closed += closeChannel(tick, channel, out);
+        }
+        return closed;
+    }
+
+    /* end the sounding notes of one channel at tick; returns how many there were */
+    public int closeChannel(long tick, int channel, NoteStore out) {
+        int closed = 0;
+        for (int pitch = 0; pitch < 128; pitch++) {
+            while (heads[key(channel, pitch)] >= 0) {
+                noteOff(tick, channel, pitch, out);
+                closed += 1;
+            }
+        }
+        return closed;
+    }
+
+}
@@ -0,0 +1,524 @@
+package midi;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+import note.EventStore;
+import note.NoteStore;
+
+
+/**
+ * Standard MIDI File reader working straight on the file's bytes.
+ *
+ * The file is mapped through NIO and every MTrk chunk is decoded in place:
+ * delta times are read as variable-length quantities, running status is
+ * followed without copying (and, like javax.sound, kept across meta and
+ * sysex events), and note on/off pairs go directly into a NoteStore per
+ * track.  No MidiEvent or MidiMessage objects are made; a track keeps
+ * what the editor loads (name, program, volume and its notes) and puts
+ * every other event in an EventStore so it can be saved again.  Tempo and
+ * time signature events of all tracks make up one TempoMap and MeterMap.
+ *
+ * Chunks do not depend on each other, so when a file has more than one
+ * they are decoded at the same time on a shared pool of daemon threads;
+ * getTracks() still lists them in file order.
+ *
+ * read() decodes everything at once.  For progressive loading, open() only
+ * reads each track up to its first note (name, program and tempo usually
+ * come before it) and readNotes(tick) then decodes all tracks a stretch of
+ * ticks at a time, handing back the notes finished in that stretch.
+ *
+ * A format 0 file keeps all its channels in one chunk.  Opened with
+ * splitChannels, such a chunk is read as 16 tracks, one per MIDI channel,
+ * in the same single pass: every channel event goes to the track of its
+ * channel, meta and sysex events to the first track.
+ */
+public class SmfReader {
+
+    private static final int MTHD = 0x4d546864;
+    private static final int MTRK = 0x4d54726b;
+
+    private int format;
+    private int resolution;
+    private long tickLength;
+    private List<TrackData> tracks = new ArrayList<TrackData>();
+    private List<TrackDecoder> decoders = new ArrayList<TrackDecoder>();
+    private long totalBytes = 0;
+    private TempoMap tempoMap;
+    private MeterMap meterMap;
+    private int timeChangeCount = -1;
+
+    private static ExecutorService decoderPool;
+
+    /* what one MTrk chunk holds, as far as the editor is concerned */
+    public static class TrackData {
+        private String name;
+        private int program = -1;
+        private int programChannel = -1;
+        private int volume = -1;
+        private long endTick = 0;
+        private int stuckNotes = 0;
+        private int channel = -1;
+        private NoteStore notes = new NoteStore();
+        private EventStore events = new EventStore();
+
+        /* last track name meta event, or null */
+        public String getName() {
+            return name;
+        }
+
+        /* last program change, or -1 when the track has none */
+        public int getProgram() {
+            return program;
+        }
+
+        public int getProgramChannel() {
+            return programChannel;
+        }
+
+        /* last channel volume (controller 7), or -1 */
+        public int getVolume() {
+            return volume;
+        }
+
+        /* channel this track was split off from a format 0 file, or -1 */
+        public int getChannel() {
+            return channel;
+        }
+
+        public long getEndTick() {
+            return endTick;
+        }
+
+        /* note ons that had no note off and were ended at the end of the track */
+        public int getStuckNotes() {
+            return stuckNotes;
+        }
+
+        /*
+         * everything else read from the track (controllers, pitch bend,
+         * text, sysex...); complete only once all of the file is read
+         */
+        public EventStore getEvents() {
+            return events;
+        }
+
+        /* notes in the order they ended; string and fret are left at 0 */
+        public NoteStore getNotes() {
+            return notes;
+        }
+
+        @Override
+        public String toString() {
+            return "TrackData " + name + " notes: " + notes.size();
+        }
+    }
+
+    /* read the whole file */
+    public static SmfReader read(File file) throws IOException, InvalidMidiDataException {
+        return read(file, false);
+    }
+
+    public static SmfReader read(File file, boolean splitChannels) throws IOException, InvalidMidiDataException {
+        SmfReader reader = open(file, splitChannels);
+        List<NoteStore> notes = reader.readNotes(Long.MAX_VALUE);
+        for (int i = 0; i < notes.size(); i++) {
+            reader.tracks.get(i).notes = notes.get(i);
+        }
+        return reader;
+    }
+
+    /* read the header and the start of every track, leaving the notes for readNotes() */
+    public static SmfReader open(File file) throws IOException, InvalidMidiDataException {
+        return open(file, false);
+    }
+
+    /* as open(file); with splitChannels a format 0 file gives one track per channel */
+    public static SmfReader open(File file, boolean splitChannels) throws IOException, InvalidMidiDataException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+                FileChannel channel = randomAccessFile.getChannel()) {
+            /* a mapping stays valid after its channel is closed */
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            SmfReader reader = new SmfReader();
+            reader.parse(buffer, splitChannels);
+            return reader;
+        }
+    }
+
+    public int getFormat() {
+        return format;
+    }
+
+    /* ticks per quarter note */
+    public int getResolution() {
+        return resolution;
+    }
+
+    /* tick of the last event in any track; only complete once isFinished() */
+    public long getTickLength() {
+        return tickLength;
+    }
+
+    public boolean isFinished() {
+        for (TrackDecoder decoder : decoders) {
+            if (!decoder.finished) return false;
+        }
+        return true;
+    }
+
+    /* share of the track data decoded so far, 0 to 1 */
+    public double getProgress() {
+        if (totalBytes == 0) return 1;
+        long read = 0;
+        for (TrackDecoder decoder : decoders) {
+            read += decoder.chunk.position();
+        }
+        return (double)read / totalBytes;
+    }
+
+    public List<TrackData> getTracks() {
+        return tracks;
+    }
+
+    /*
+     * tempo changes of all tracks read so far; a new map whenever more are
+     * found, so a map once handed out is never changed
+     */
+    public TempoMap getTempoMap() {
+        return tempoMap;
+    }
+
+    /* time signature changes of all tracks read so far, like getTempoMap() */
+    public MeterMap getMeterMap() {
+        return meterMap;
+    }
+
+    private void buildTimeMaps() {
+        int count = 0;
+        for (TrackDecoder decoder : decoders) {
+            count += decoder.tempoChanges.size() + decoder.meterChanges.size();
+        }
+        if (count == timeChangeCount) return;
+        timeChangeCount = count;
+
+        TempoMap tempos = new TempoMap(resolution);
+        MeterMap meters = new MeterMap(resolution);
+        for (TrackDecoder decoder : decoders) {
+            for (long[] change : decoder.tempoChanges) {
+                tempos.set(change[0], (int)change[1]);
+            }
+            for (long[] change : decoder.meterChanges) {
+                meters.set(change[0], (int)change[1], (int)change[2]);
+            }
+        }
+        tempoMap = tempos;
+        meterMap = meters;
+    }
+
+    private void parse(ByteBuffer buffer, boolean splitChannels) throws InvalidMidiDataException {
+        if (buffer.remaining() < 14 || buffer.getInt(0) != MTHD) {
+            throw new InvalidMidiDataException("no MThd header");
+        }
+        int headerLength = buffer.getInt(4);
+        format = buffer.getShort(8) & 0xffff;
+        int numOfTracks = buffer.getShort(10) & 0xffff;
+        int division = buffer.getShort(12);
+        if (division < 0) {
+            throw new InvalidMidiDataException("SMPTE time division is not supported");
+        }
+        resolution = division;
+
+        List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+        int position = 8 + headerLength;
+        while (chunks.size() < numOfTracks && position + 8 <= buffer.limit()) {
+            int type = buffer.getInt(position);
+            long length = buffer.getInt(position + 4) & 0xffffffffL;
+            int start = position + 8;
+            int end = (int)Math.min(buffer.limit(), start + length);
+            if (type == MTRK) {
+                ByteBuffer chunk = buffer.duplicate();
+                chunk.limit(end).position(start);
+                chunks.add(chunk.slice());
+            }
+            /* anything that is not MTrk is an unknown chunk and skipped */
+            position = end;
+        }
+
+        boolean split = splitChannels && format == 0 && chunks.size() == 1;
+        for (ByteBuffer chunk : chunks) {
+            TrackDecoder decoder = new TrackDecoder(chunk, split);
+            decoder.decode(Long.MAX_VALUE, true, decoder.newOutput());
+            decoders.add(decoder);
+            for (TrackData track : decoder.tracks) {
+                tracks.add(track);
+            }
+            totalBytes += chunk.limit();
+        }
+        buildTimeMaps();
+    }
+
+    /**
+     * Decode every track up to (not including) untilTick and return, per
+     * track in file order, the notes that ended before it.  Tracks are
+     * decoded at the same time on the pool.  Once a track reaches its end,
+     * notes still sounding are closed there and counted as stuck.
+     */
+    public List<NoteStore> readNotes(final long untilTick) throws InvalidMidiDataException {
+        List<NoteStore[]> outputs = new ArrayList<NoteStore[]>();
+        List<Callable<NoteStore[]>> tasks = new ArrayList<Callable<NoteStore[]>>();
+        for (final TrackDecoder decoder : decoders) {
+            tasks.add(new Callable<NoteStore[]>() {
+                @Override
+                public NoteStore[] call() throws InvalidMidiDataException {
+                    NoteStore[] out = decoder.newOutput();
+                    decoder.decode(untilTick, false, out);
+                    return out;
+                }
+            });
+        }
+
+        if (tasks.size() == 1) {
+            try {
+                outputs.add(tasks.get(0).call());
+            } catch (InvalidMidiDataException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                throw new RuntimeException(ex);
+            }
+        } else {
+            readNotes(tasks, outputs);
+        }
+
+        List<NoteStore> notes = new ArrayList<NoteStore>();
+        for (NoteStore[] out : outputs) {
+            for (NoteStore store : out) {
+                notes.add(store);
+            }
+        }
+        for (TrackData track : tracks) {
+            tickLength = Math.max(tickLength, track.endTick);
+        }
+        buildTimeMaps();
+        return notes;
+    }
+
+    /* run the tasks on the pool; results are added in task order */
+    private void readNotes(List<Callable<NoteStore[]>> tasks, List<NoteStore[]> outputs)
+            throws InvalidMidiDataException {
+        List<Future<NoteStore[]>> futures = new ArrayList<Future<NoteStore[]>>();
+        for (Callable<NoteStore[]> task : tasks) {
+            futures.add(getDecoderPool().submit(task));
+        }
+
+        try {
+            for (Future<NoteStore[]> future : futures) {
+                outputs.add(future.get());
+            }
+        } catch (ExecutionException ex) {
+            for (Future<NoteStore[]> future : futures) {
+                future.cancel(true);
+            }
+            if (ex.getCause() instanceof InvalidMidiDataException) {
+                throw (InvalidMidiDataException)ex.getCause();
+            }
+            throw new RuntimeException(ex.getCause());
+        } catch (InterruptedException ex) {
+            for (Future<NoteStore[]> future : futures) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new InvalidMidiDataException("reading tracks was interrupted");
+        }
+    }
+
+    private static synchronized ExecutorService getDecoderPool() {
+        if (decoderPool == null) {
+            int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+            decoderPool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "smf-decoder");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return decoderPool;
+    }
+
+    /* decoding state of one MTrk chunk (chunk holds exactly its data), so it can be read a stretch at a time */
+    private static class TrackDecoder {
+        private final ByteBuffer chunk;
+        /* one track, or one per channel when split */
+        private final TrackData[] tracks;
+        private final NotePairer pairer = new NotePairer();
+        /* {tick, tempo} and {tick, numerator, denominator} */
+        private final List<long[]> tempoChanges = new ArrayList<long[]>();
+        private final List<long[]> meterChanges = new ArrayList<long[]>();
+        private long tick = 0;
+        private int status = 0;
+        private boolean finished = false;
+
+        TrackDecoder(ByteBuffer chunk, boolean split) {
+            this.chunk = chunk;
+            tracks = new TrackData[split ? 16 : 1];
+            for (int i = 0; i < tracks.length; i++) {
+                tracks[i] = new TrackData();
+                if (split) {
+                    tracks[i].channel = i;
+                    tracks[i].name = "Channel " + (i + 1);
+                }
+            }
+        }
+
+        /* a note store for each of the tracks */
+        NoteStore[] newOutput() {
+            NoteStore[] out = new NoteStore[tracks.length];
+            for (int i = 0; i < out.length; i++) {
+                out[i] = new NoteStore();
+            }
+            return out;
+        }
+
+        private int trackIndex(int channel) {
+            return tracks.length == 1 ? 0 : channel;
+        }
+
+        /*
+         * decode events before untilTick into out; with headOnly, stop in
+         * front of the first note on instead and collect nothing
+         */
+        void decode(long untilTick, boolean headOnly, NoteStore[] out) throws InvalidMidiDataException {
+            if (finished) return;
+            try {
+                while (chunk.hasRemaining()) {
+                    int mark = chunk.position();
+                    long eventTick = tick + readVariableLength(chunk);
+                    if (eventTick >= untilTick) {
+                        chunk.position(mark);
+                        return;
+                    }
+                    int b = chunk.get(chunk.position()) & 0xff;
+                    int eventStatus = status;
+                    if (b >= 0x80) {
+                        chunk.get();
+                        if (b < 0xf0) {
+                            eventStatus = b;
+                        }
+                    } else if (status == 0) {
+                        throw new InvalidMidiDataException("data byte without status at " + chunk.position());
+                    } else {
+                        /* running status: b is the first data byte */
+                        b = status;
+                    }
+
+                    if (headOnly && (b & 0xf0) == 0x90 && b < 0xf0 &&
+                            (chunk.get(chunk.position() + 1) & 0x7f) > 0) {
+                        chunk.position(mark);
+                        return;
+                    }
+                    tick = eventTick;
+                    status = eventStatus;
+
+                    if (b == 0xff) {
+                        int type = chunk.get() & 0xff;
+                        int length = (int)readVariableLength(chunk);
+                        int dataStart = chunk.position();
+                        if (type == 0x03 && tracks.length == 1) {
+                            /* in a split file this is the song's name, not a track's */
+                            byte[] text = new byte[length];
+                            chunk.get(text);
+                            tracks[0].name = new String(text);
+                        } else if (type == 0x51 && length >= 3) {
+                            int tempo = (chunk.get(dataStart) & 0xff) << 16 |
+                                    (chunk.get(dataStart + 1) & 0xff) << 8 |
+                                    (chunk.get(dataStart + 2) & 0xff);
+                            tempoChanges.add(new long[] {tick, tempo});
+                        } else if (type == 0x58 && length >= 2) {
+                            int numerator = chunk.get(dataStart) & 0xff;
+                            int denominator = 1 << Math.min(6, chunk.get(dataStart + 1) & 0xff);
+                            meterChanges.add(new long[] {tick, numerator, denominator});
+                        } else if (type != 0x2f) {
+                            byte[] message = new byte[2 + length];
+                            message[0] = (byte)0xff;
+                            message[1] = (byte)type;
+                            chunk.get(message, 2, length);
+                            tracks[0].events.addBytes(tick, message);
+                        }
+                        chunk.position(dataStart + length);
+                        if (type == 0x2f) break;
+
+                    } else if (b == 0xf0 || b == 0xf7) {
+                        int length = (int)readVariableLength(chunk);
+                        byte[] message = new byte[1 + length];
+                        message[0] = (byte)b;
+                        chunk.get(message, 1, length);
+                        tracks[0].events.addBytes(tick, message);
+
+                    } else {
+                        int command = b & 0xf0;
+                        int channel = b & 0x0f;
+                        int data1 = chunk.get() & 0x7f;
+                        int data2 = 0;
+                        if (command != 0xc0 && command != 0xd0) {
+                            data2 = chunk.get() & 0x7f;
+                        }
+
+                        TrackData track = tracks[trackIndex(channel)];
+                        if (command == 0x90 && data2 > 0) {
+                            pairer.noteOn(tick, channel, data1, data2);
+                        } else if (command == 0x80 || command == 0x90) {
+                            pairer.noteOff(tick, channel, data1, out[trackIndex(channel)]);
+                        } else if (command == 0xc0) {
+                            track.program = data1;
+                            track.programChannel = channel;
+                        } else if (command == 0xb0 && data1 == 7) {
+                            track.volume = data2;
+                        } else {
+                            track.events.add(tick, b, data1, data2);
+                        }
+                    }
+                }
+            } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException ex) {
+                throw new InvalidMidiDataException("track data ends in the middle of an event");
+            }
+            /* end of track: skip whatever follows the end of track event */
+            chunk.position(chunk.limit());
+            if (headOnly) return;
+            finished = true;
+            for (int channel = 0; channel < 16; channel++) {
+                TrackData track = tracks[trackIndex(channel)];
+                track.endTick = tick;
+                track.stuckNotes += pairer.closeChannel(tick, channel, out[trackIndex(channel)]);
+            }
+        }
+    }
+
+    /* MIDI variable-length quantity: 7 bits per byte, high bit set on all but the last */
+    static long readVariableLength(ByteBuffer buffer) throws InvalidMidiDataException {
+        long value = 0;
+        for (int i = 0; i < 4; i++) {
+            int b = buffer.get() & 0xff;
+            value = (value << 7) | (b & 0x7f);
+            if (b < 0x80) {
+                return value;
+            }
+        }
+        throw new InvalidMidiDataException("variable-length quantity longer than 4 bytes");
+    }
+
+}
@@ -0,0 +1,385 @@
+package midi;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.sound.midi.ShortMessage;
+
+import note.EventStore;
+import note.NoteColumns;
+import track.TrackState;
+
+
+/**
+ * Standard MIDI File writer working straight from the note model.
+ * It reads TrackStates, so it can run on any thread.
+ *
+ * Every track is written as one MTrk chunk in a single pass over its
+ * notes: the notes (and those of its clip instances) are already sorted by
+ * start, so note ons are merged in tick order from them while the note offs
+ * still to come wait in a small heap sorted by end.  Tempo and time
+ * signature changes (first track only) and the track's other events are
+ * merged in the same pass.  Bytes go through one buffer into a FileChannel,
+ * with variable-length delta times and running status (note offs are
+ * written as note ons with velocity 0 so runs of notes share a status byte).
+ * Apart from growing the heap, nothing is allocated per note; nothing goes
+ * through javax.sound Sequence or the sequencer.
+ *
+ * Events at the same tick come in the order the old Sequence based writer
+ * gave them: time changes, note offs, note ons, then the other events, so
+ * a controller at the tick of the setup still wins over it.
+ */
+public class SmfWriter {
+
+    private static final int MTHD = 0x4d546864;
+    private static final int MTRK = 0x4d54726b;
+    private static final int MAX_DELTA = 0x0fffffff;
+
+    /* lanes of the merge, in the order events at the same tick are written */
+    private static final int NONE = 0;
+    private static final int TEMPO = 1;
+    private static final int METER = 2;
+    private static final int NOTE_OFF = 3;
+    private static final int NOTE_ON = 4;
+    private static final int EVENT = 5;
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+    private FileChannel out;
+    private long chunkBytes;
+    private long lastTick;
+    private int runningStatus;
+
+    /* note offs still to write: a binary heap by tick */
+    private long[] offTicks = new long[64];
+    private int[] offPitches = new int[64];
+    private int offCount;
+
+    /* the note lists of a track (its own and one per clip instance) and where each is up to */
+    private NoteColumns[] sources = new NoteColumns[4];
+    private long[] sourceOffsets = new long[4];
+    private int[] sourceNext = new int[4];
+    private int sourceCount;
+
+    public void write(File file, List<TrackState> tracks, TempoMap tempoMap, MeterMap meterMap)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(channel, tracks, tempoMap, meterMap);
+        }
+    }
+
+    /* write the whole file to channel from its current position; channel is not closed or forced */
+    public void write(FileChannel channel, List<TrackState> tracks, TempoMap tempoMap, MeterMap meterMap)
+            throws IOException {
+        out = channel;
+        buffer.clear();
+        try {
+            /* one track is written as format 0, like MidiSystem.write did */
+            buffer.putInt(MTHD);
+            buffer.putInt(6);
+            buffer.putShort((short)(tracks.size() == 1 ? 0 : 1));
+            buffer.putShort((short)tracks.size());
+            buffer.putShort((short)tempoMap.getResolution());
+            for (int i = 0; i < tracks.size(); i++) {
+                writeTrack(tracks.get(i), i == 0, tempoMap, meterMap);
+            }
+            flush();
+        } finally {
+            out = null;
+        }
+    }
+
+    private void writeTrack(TrackState track, boolean first, TempoMap tempoMap, MeterMap meterMap)
+            throws IOException {
+        flush();
+        long lengthPosition = out.position() + 4;
+        buffer.putInt(MTRK);
+        buffer.putInt(0);
+        chunkBytes = 0;
+        lastTick = 0;
+        runningStatus = 0;
+
+        int channel = track.channel;
+        EventStore events = track.events;
+
+        /* sysex at the very start usually resets the synth, so it goes before the setup */
+        for (int i = 0; i < events.size() && events.getTick(i) == 0; i++) {
+            if (isStartSysex(events, i)) {
+                writeEvent(events, i);
+            }
+        }
+
+        /* only the first track carries the time changes */
+        int tempoIndex = first ? 0 : tempoMap.size();
+        int meterIndex = first ? 0 : meterMap.size();
+        if (first) {
+            for (; tempoIndex < tempoMap.size() && tempoMap.getTick(tempoIndex) <= 0; tempoIndex++) {
+                writeTempo(0, tempoMap.getTempo(tempoIndex));
+            }
+            for (; meterIndex < meterMap.size() && meterMap.getTick(meterIndex) <= 0; meterIndex++) {
+                writeMeter(0, meterMap.getNumerator(meterIndex), meterMap.getDenominator(meterIndex));
+            }
+        }
+        writeSetup(track);
+
+        sourceCount = 0;
+        addSource(track.notes, 0);
+        for (int i = 0; i < track.clips.length; i++) {
+            addSource(track.clips[i].getNotes(), track.clipOffsets[i]);
+        }
+        offCount = 0;
+        int eventIndex = 0;
+
+        while (true) {
+            int lane = NONE;
+            long tick = Long.MAX_VALUE;
+            int source = -1;
+            if (tempoIndex < tempoMap.size() && tempoMap.getTick(tempoIndex) < tick) {
+                tick = tempoMap.getTick(tempoIndex);
+                lane = TEMPO;
+            }
+            if (meterIndex < meterMap.size() && meterMap.getTick(meterIndex) < tick) {
+                tick = meterMap.getTick(meterIndex);
+                lane = METER;
+            }
+            if (offCount > 0 && offTicks[0] < tick) {
+                tick = offTicks[0];
+                lane = NOTE_OFF;
+            }
+            for (int s = 0; s < sourceCount; s++) {
+                int next = sourceNext[s];
+                if (next < sources[s].size() && sources[s].getStart(next) + sourceOffsets[s] < tick) {
+                    tick = sources[s].getStart(next) + sourceOffsets[s];
+                    lane = NOTE_ON;
+                    source = s;
+                }
+            }
+            while (eventIndex < events.size() && isStartSysex(events, eventIndex)) {
+                eventIndex += 1;
+            }
+            if (eventIndex < events.size() && events.getTick(eventIndex) < tick) {
+                tick = events.getTick(eventIndex);
+                lane = EVENT;
+            }
+
+            if (lane == TEMPO) {
+                writeTempo(tick, tempoMap.getTempo(tempoIndex));
+                tempoIndex += 1;
+            } else if (lane == METER) {
+                writeMeter(tick, meterMap.getNumerator(meterIndex), meterMap.getDenominator(meterIndex));
+                meterIndex += 1;
+            } else if (lane == NOTE_OFF) {
+                writeShort(tick, ShortMessage.NOTE_ON | channel, offPitches[0], 0);
+                removeOff();
+            } else if (lane == NOTE_ON) {
+                NoteColumns notes = sources[source];
+                int i = sourceNext[source];
+                sourceNext[source] += 1;
+                writeShort(tick, ShortMessage.NOTE_ON | channel, notes.getPitch(i), notes.getVelocity(i));
+                addOff(tick + notes.getDuration(i), notes.getPitch(i));
+            } else if (lane == EVENT) {
+                writeEvent(events, eventIndex);
+                eventIndex += 1;
+            } else {
+                break;
+            }
+        }
+
+        writeMeta(lastTick, Midi.END_OF_TRACK, null, 0, 0);
+        flush();
+        ByteBuffer length = ByteBuffer.allocate(4);
+        length.putInt(0, (int)chunkBytes);
+        out.write(length, lengthPosition);
+    }
+
+    private void writeSetup(TrackState track) throws IOException {
+        int channel = track.channel;
+        int volume = track.muted ? 0 : track.volume;
+
+        byte[] name = track.name.getBytes();
+        writeMeta(0, Midi.TRACKNAME, name, 0, name.length);
+        byte[] text = "Wowo this is cool".getBytes();
+        writeMeta(0, Midi.TEXT, text, 0, text.length);
+
+        writeShort(0, ShortMessage.PROGRAM_CHANGE | channel, track.instrument, 0);
+        writeShort(0, ShortMessage.CONTROL_CHANGE | channel, Midi.VOLUME, volume);
+        writeShort(0, ShortMessage.CONTROL_CHANGE | channel, Midi.REVERB, 0);
+        writeShort(0, ShortMessage.CONTROL_CHANGE | channel, Midi.BALANCE, 64);
+    }
+
+    private void addSource(NoteColumns notes, long offset) {
+        if (sourceCount == sources.length) {
+            int capacity = sources.length * 2;
+            sources = Arrays.copyOf(sources, capacity);
+            sourceOffsets = Arrays.copyOf(sourceOffsets, capacity);
+            sourceNext = Arrays.copyOf(sourceNext, capacity);
+        }
+        sources[sourceCount] = notes;
+        sourceOffsets[sourceCount] = offset;
+        sourceNext[sourceCount] = 0;
+        sourceCount += 1;
+    }
+
+    private void addOff(long tick, int pitch) {
+        if (offCount == offTicks.length) {
+            offTicks = Arrays.copyOf(offTicks, offCount * 2);
+            offPitches = Arrays.copyOf(offPitches, offCount * 2);
+        }
+        int i = offCount;
+        offCount += 1;
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (offTicks[parent] <= tick) break;
+            offTicks[i] = offTicks[parent];
+            offPitches[i] = offPitches[parent];
+            i = parent;
+        }
+        offTicks[i] = tick;
+        offPitches[i] = pitch;
+    }
+
+    private void removeOff() {
+        offCount -= 1;
+        long tick = offTicks[offCount];
+        int pitch = offPitches[offCount];
+        int i = 0;
+        while (true) {
+            int child = i * 2 + 1;
+            if (child >= offCount) break;
+            if (child + 1 < offCount && offTicks[child + 1] < offTicks[child]) {
+                child += 1;
+            }
+            if (tick <= offTicks[child]) break;
+            offTicks[i] = offTicks[child];
+            offPitches[i] = offPitches[child];
+            i = child;
+        }
+        offTicks[i] = tick;
+        offPitches[i] = pitch;
+    }
+
+    private boolean isStartSysex(EventStore events, int i) {
+        return events.getTick(i) == 0 && !events.isShort(i) && events.getStatus(i) != 0xff;
+    }
+
+    private void writeEvent(EventStore events, int i) throws IOException {
+        long tick = events.getTick(i);
+        if (events.isShort(i)) {
+            writeShort(tick, events.getStatus(i), events.getData1(i), events.getData2(i));
+            return;
+        }
+        /* meta events are kept as 0xff, type, data and sysex as status, data */
+        byte[] bytes = events.getBytes(i);
+        if (events.getStatus(i) == 0xff) {
+            writeMeta(tick, bytes[1] & 0xff, bytes, 2, bytes.length - 2);
+        } else {
+            writeDelta(tick);
+            put(bytes[0]);
+            writeVariable(bytes.length - 1);
+            put(bytes, 1, bytes.length - 1);
+            runningStatus = 0;
+        }
+    }
+
+    private void writeTempo(long tick, int microsecondsPerQuarterNote) throws IOException {
+        writeMeta(tick, Midi.TEMPO, null, 0, 3);
+        put((byte)(microsecondsPerQuarterNote >> 16));
+        put((byte)(microsecondsPerQuarterNote >> 8));
+        put((byte)microsecondsPerQuarterNote);
+    }
+
+    /* numerator, denominator as a power of 2, clocks per click, 32nds per quarter */
+    private void writeMeter(long tick, int numerator, int denominator) throws IOException {
+        writeMeta(tick, Midi.TIME_SIGNATURE, null, 0, 4);
+        put((byte)numerator);
+        put((byte)Integer.numberOfTrailingZeros(denominator));
+        put((byte)24);
+        put((byte)8);
+    }
+
+    /* with data null only the header is written and the caller puts length bytes after it */
+    private void writeMeta(long tick, int type, byte[] data, int from, int length) throws IOException {
+        writeDelta(tick);
+        put((byte)0xff);
+        put((byte)type);
+        writeVariable(length);
+        if (data != null) {
+            put(data, from, length);
+        }
+        runningStatus = 0;
+    }
+
+    private void writeShort(long tick, int status, int data1, int data2) throws IOException {
+        writeDelta(tick);
+        if (status != runningStatus) {
+            put((byte)status);
+            runningStatus = status;
+        }
+        put((byte)(data1 & 0x7f));
+        int command = status & 0xf0;
+        if (command != ShortMessage.PROGRAM_CHANGE && command != ShortMessage.CHANNEL_PRESSURE) {
+            put((byte)(data2 & 0x7f));
+        }
+    }
+
+    /* notes moved before tick 0 or out of order are written at the last tick instead */
+    private void writeDelta(long tick) throws IOException {
+        long delta = Math.max(tick - lastTick, 0);
+        if (delta > MAX_DELTA) {
+            throw new IOException("SmfWriter: delta time too large at tick " + tick);
+        }
+        writeVariable((int)delta);
+        lastTick += delta;
+    }
+
+    private void writeVariable(int value) throws IOException {
+        int shift = 21;
+        while (shift > 0 && (value >>> shift) == 0) {
+            shift -= 7;
+        }
+        for (; shift > 0; shift -= 7) {
+            put((byte)(0x80 | ((value >>> shift) & 0x7f)));
+        }
+        put((byte)(value & 0x7f));
+    }
+
+    private void put(byte b) throws IOException {
+        if (!buffer.hasRemaining()) {
+            flush();
+        }
+        buffer.put(b);
+        chunkBytes += 1;
+    }
+
+    private void put(byte[] bytes, int from, int length) throws IOException {
+        while (length > 0) {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.put(bytes, from, count);
+            chunkBytes += count;
+            from += count;
+            length -= count;
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "SmfWriter";
+    }
+
+}
@@ -0,0 +1,178 @@
+package midi;
+
+import java.util.Arrays;
+
+
+/**
+ * The tempo of a song over time, from its set tempo (meta 0x51) events.
+ *
+ * Changes are kept sorted by tick, each with the time in seconds at which
+ * it starts, so converting between ticks and seconds is a binary search
+ * for the change in effect followed by one multiplication.  There is
+ * always a change at tick 0; until a file says otherwise it is 120 BPM.
+ */
+public class TempoMap {
+
+    /* microseconds per quarter note, 120 BPM */
+    public static final int DEFAULT_TEMPO = 500000;
+
+    private int resolution;
+    private long[] ticks = new long[] {0};
+    private int[] tempos = new int[] {DEFAULT_TEMPO};
+    private double[] seconds = new double[] {0};
+    private int size = 1;
+
+    public TempoMap(int resolution) {
+        this.resolution = resolution;
+    }
+
+    public TempoMap(TempoMap other) {
+        resolution = other.resolution;
+        ticks = Arrays.copyOf(other.ticks, other.size);
+        tempos = Arrays.copyOf(other.tempos, other.size);
+        seconds = Arrays.copyOf(other.seconds, other.size);
+        size = other.size;
+    }
+
+    /* ticks per quarter note */
+    public int getResolution() {
+        return resolution;
+    }
+
+    /* tempo in microseconds per quarter note from tick on, up to the next change */
+    public void set(long tick, int tempo) {
+        tick = Math.max(0, tick);
+        /* a tempo of 0 (as in a damaged file) would be divided by later */
+        tempo = Math.max(1, tempo);
+        int i = indexAt(tick);
+        if (ticks[i] != tick) {
+            if (size == ticks.length) {
+                int capacity = size * 2;
+                ticks = Arrays.copyOf(ticks, capacity);
+                tempos = Arrays.copyOf(tempos, capacity);
+                seconds = Arrays.copyOf(seconds, capacity);
+            }
+            i += 1;
+            System.arraycopy(ticks, i, ticks, i + 1, size - i);
+            System.arraycopy(tempos, i, tempos, i + 1, size - i);
+            System.arraycopy(seconds, i, seconds, i + 1, size - i);
+            size += 1;
+            ticks[i] = tick;
+        }
+        tempos[i] = tempo;
+        recount(i);
+    }
+
+    /*
+     * move every change after tick later by delta, as when bars are inserted
+     * there; a change at tick stays, so the new bars are like those pushed back
+     */
+    public void insertTicks(long tick, long delta) {
+        for (int i = 1; i < size; i++) {
+            if (ticks[i] > tick) {
+                ticks[i] += delta;
+            }
+        }
+        recount(1);
+    }
+
+    /*
+     * take out the ticks from up to to, as when bars are removed: changes in
+     * between go, later ones move back and the tempo at to goes on from from
+     */
+    public void removeTicks(long from, long to) {
+        int tempoAtTo = getTempoAt(to);
+        int kept = 1;
+        for (int i = 1; i < size; i++) {
+            if (ticks[i] >= from && ticks[i] < to) continue;
+            long tick = ticks[i] >= to ? ticks[i] - (to - from) : ticks[i];
+            if (tick == ticks[kept - 1]) {
+                kept -= 1;
+            }
+            ticks[kept] = tick;
+            tempos[kept] = tempos[i];
+            kept += 1;
+        }
+        size = kept;
+        recount(1);
+        if (getTempoAt(from) != tempoAtTo) {
+            set(from, tempoAtTo);
+        }
+    }
+
+    public void setBPM(long tick, int bpm) {
+        set(tick, 60000000 / Math.max(1, bpm));
+    }
+
+    public int getTempoAt(long tick) {
+        return tempos[indexAt(tick)];
+    }
+
+    public int getBPMAt(long tick) {
+        return (int)Math.round(60000000.0 / getTempoAt(tick));
+    }
+
+    public double tickToSeconds(long tick) {
+        int i = indexAt(tick);
+        return seconds[i] + toSeconds(tick - ticks[i], tempos[i]);
+    }
+
+    public long secondsToTick(double time) {
+        int low = 0;
+        int high = size - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (seconds[mid] <= time) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return ticks[low] + Math.round((time - seconds[low]) * 1e6 * resolution / tempos[low]);
+    }
+
+    /* number of changes, the first always at tick 0 */
+    public int size() {
+        return size;
+    }
+
+    public long getTick(int i) {
+        return ticks[i];
+    }
+
+    public int getTempo(int i) {
+        return tempos[i];
+    }
+
+    /* start times of changes from i on */
+    private void recount(int i) {
+        for (int j = Math.max(1, i); j < size; j++) {
+            seconds[j] = seconds[j - 1] + toSeconds(ticks[j] - ticks[j - 1], tempos[j - 1]);
+        }
+    }
+
+    private double toSeconds(long tickCount, int tempo) {
+        return (double)tickCount * tempo / resolution / 1e6;
+    }
+
+    /* last change at or before tick (the first for ticks before it) */
+    private int indexAt(long tick) {
+        int low = 0;
+        int high = size - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (ticks[mid] <= tick) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public String toString() {
+        return "TempoMap changes: " + size + " starting at " + getBPMAt(0) + " BPM";
+    }
+
+}
@@ -0,0 +1,118 @@
+package note;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+
+
+/**
+ * A pattern of notes stored once and placed on tracks any number of times
+ * through ClipInstances.  Note starts are relative to the start of the
+ * clip, so an instance only adds its offset; changing the clip changes
+ * every instance of it at once.  The notes are always kept in start
+ * order, which playing and saving rely on.
+ */
+public class Clip {
+
+    private String name;
+    private NoteStore notes;
+    private long length;
+    private List<ChangeListener> listeners = new ArrayList<ChangeListener>();
+
+    public Clip(String name, NoteStore notes, long length) {
+        this.name = name;
+        this.notes = notes;
+        this.length = length;
+    }
+
+    /* clip from notes, starting at the first of them */
+    public static Clip of(String name, List<Note> notes) {
+        long origin = Long.MAX_VALUE;
+        for (Note note : notes) {
+            origin = Math.min(origin, note.start);
+        }
+        Clip clip = new Clip(name, null, 0);
+        clip.replace(notes, notes.isEmpty() ? 0 : origin);
+        return clip;
+    }
+
+    /* notes of newNotes in start order, starts taken from origin */
+    private void replace(List<Note> newNotes, long origin) {
+        List<Note> sorted = new ArrayList<Note>(newNotes);
+        Collections.sort(sorted, (a, b) -> Long.compare(a.start, b.start));
+        notes = new NoteStore(sorted.size());
+        length = 0;
+        for (Note note : sorted) {
+            notes.add(note.start - origin, note.duration, note.pitch, note.velocity,
+                    note.stringNum, note.fret, 0);
+            length = Math.max(length, note.start - origin + note.duration);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /* notes relative to the clip start; edit them through the clip */
+    public NoteColumns getNotes() {
+        return notes;
+    }
+
+    public int size() {
+        return notes.size();
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    /* replace the whole pattern (and so every instance); starts are taken from origin */
+    public void setNotes(List<Note> newNotes, long origin) {
+        replace(newNotes, origin);
+        fireChanged();
+    }
+
+    /* the pattern as it is now, to be put back with restore() */
+    public Clip copy() {
+        NoteStore store = new NoteStore(notes.size());
+        for (int i = 0; i < notes.size(); i++) {
+            store.add(notes.getStart(i), notes.getDuration(i), notes.getPitch(i), notes.getVelocity(i),
+                    notes.getString(i), notes.getFret(i), 0);
+        }
+        return new Clip(name, store, length);
+    }
+
+    public void restore(Clip saved) {
+        notes = saved.copy().notes;
+        length = saved.length;
+        fireChanged();
+    }
+
+    public void addChangeListener(ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeChangeListener(ChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    private void fireChanged() {
+        ChangeEvent event = new ChangeEvent(this);
+        for (ChangeListener listener : new ArrayList<ChangeListener>(listeners)) {
+            listener.stateChanged(event);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Clip " + name + " size: " + notes.size() + " length: " + length;
+    }
+
+}
@@ -0,0 +1,36 @@
+package note;
+
+
+/* one placement of a clip on a track, offset ticks from the track start */
+public class ClipInstance {
+
+    private final Clip clip;
+    private long offset;
+
+    public ClipInstance(Clip clip, long offset) {
+        this.clip = clip;
+        this.offset = offset;
+    }
+
+    public Clip getClip() {
+        return clip;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public void setOffset(long offset) {
+        this.offset = offset;
+    }
+
+    public long getEnd() {
+        return offset + clip.getLength();
+    }
+
+    @Override
+    public String toString() {
+        return "ClipInstance of " + clip.getName() + " at " + offset;
+    }
+
+}
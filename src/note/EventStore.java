@@ -0,0 +1,172 @@
+package note;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * The MIDI events of a track that are not notes and that the editor does
+ * not model itself: controllers, pitch bend, aftertouch, text and marker
+ * meta events, sysex.  They are kept as read so saving a file gives them
+ * back unchanged.
+ *
+ * Events are sorted by tick (events at the same tick keep the order they
+ * were added in) and stored columnar like NoteStore: a tick and a packed
+ * status/data1/data2 int per event.  Meta and sysex events, which have a
+ * variable length, keep their bytes in a side table and store its index
+ * (as a negative number) instead.
+ */
+public class EventStore {
+
+    private long[] ticks;
+    private int[] messages;
+    private List<byte[]> variable = new ArrayList<byte[]>();
+    private int size = 0;
+
+    public EventStore() {
+        this(16);
+    }
+
+    public EventStore(int capacity) {
+        capacity = Math.max(capacity, 1);
+        ticks = new long[capacity];
+        messages = new int[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /* a channel message; data2 is 0 for the one data byte ones */
+    public int add(long tick, int status, int data1, int data2) {
+        return insert(tick, (status & 0xff) << 16 | (data1 & 0x7f) << 8 | (data2 & 0x7f));
+    }
+
+    /* a meta event (0xff, type, data) or sysex (0xf0 or 0xf7, data) without its length */
+    public int addBytes(long tick, byte[] message) {
+        variable.add(message);
+        return insert(tick, -variable.size());
+    }
+
+    /* merge all events of other into this store */
+    public void addAll(EventStore other) {
+        for (int i = 0; i < other.size; i++) {
+            if (other.isShort(i)) {
+                insert(other.ticks[i], other.messages[i]);
+            } else {
+                addBytes(other.ticks[i], other.getBytes(i));
+            }
+        }
+    }
+
+    public long getTick(int i) {
+        return ticks[i];
+    }
+
+    /* true for channel messages, false for meta and sysex */
+    public boolean isShort(int i) {
+        return messages[i] >= 0;
+    }
+
+    public int getStatus(int i) {
+        if (!isShort(i)) {
+            return getBytes(i)[0] & 0xff;
+        }
+        return messages[i] >> 16;
+    }
+
+    public int getData1(int i) {
+        return (messages[i] >> 8) & 0x7f;
+    }
+
+    public int getData2(int i) {
+        return messages[i] & 0x7f;
+    }
+
+    /* the whole message of a meta or sysex event; not a copy, so do not change it */
+    public byte[] getBytes(int i) {
+        return variable.get(-messages[i] - 1);
+    }
+
+    /* move every event at or after tick later by delta */
+    public void insertTicks(long tick, long delta) {
+        for (int i = firstIndexAtOrAfter(tick); i < size; i++) {
+            ticks[i] += delta;
+        }
+    }
+
+    /* drop the events in [from, to) and move the ones after back to close the gap */
+    public void removeTicks(long from, long to) {
+        int start = firstIndexAtOrAfter(from);
+        int end = firstIndexAtOrAfter(to);
+        boolean hadBytes = false;
+        for (int i = start; i < end; i++) {
+            hadBytes |= !isShort(i);
+        }
+        System.arraycopy(ticks, end, ticks, start, size - end);
+        System.arraycopy(messages, end, messages, start, size - end);
+        size -= end - start;
+        for (int i = start; i < size; i++) {
+            ticks[i] -= to - from;
+        }
+        if (hadBytes) {
+            compactBytes();
+        }
+    }
+
+    /* first index with a tick at or after tick */
+    public int firstIndexAtOrAfter(long tick) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (ticks[mid] < tick) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int insert(long tick, int message) {
+        ensureCapacity(size + 1);
+        int i = size;
+        if (size > 0 && ticks[size - 1] > tick) {
+            /* after any events already at tick */
+            i = firstIndexAtOrAfter(tick + 1);
+            System.arraycopy(ticks, i, ticks, i + 1, size - i);
+            System.arraycopy(messages, i, messages, i + 1, size - i);
+        }
+        ticks[i] = tick;
+        messages[i] = message;
+        size += 1;
+        return i;
+    }
+
+    /* drop side table entries no event refers to any more */
+    private void compactBytes() {
+        List<byte[]> kept = new ArrayList<byte[]>();
+        for (int i = 0; i < size; i++) {
+            if (!isShort(i)) {
+                kept.add(getBytes(i));
+                messages[i] = -kept.size();
+            }
+        }
+        variable = kept;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= ticks.length) return;
+        int newCapacity = Math.max(capacity, ticks.length + (ticks.length >> 1));
+        ticks = Arrays.copyOf(ticks, newCapacity);
+        messages = Arrays.copyOf(messages, newCapacity);
+    }
+
+    @Override
+    public String toString() {
+        return "EventStore size: " + size;
+    }
+
+}
@@ -0,0 +1,29 @@
+package note;
+
+
+/**
+ * Read access to notes stored column by column, in start order.
+ * Implemented by the mutable NoteStore and the immutable NoteSnapshot so
+ * playback and export can read either.
+ */
+public interface NoteColumns {
+
+    int size();
+
+    long getStart(int i);
+
+    long getDuration(int i);
+
+    long getEnd(int i);
+
+    int getPitch(int i);
+
+    int getVelocity(int i);
+
+    int getString(int i);
+
+    int getFret(int i);
+
+    int getFlags(int i);
+
+}
@@ -0,0 +1,142 @@
+package note;
+
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Time index over a track's notes keyed on [start, start + duration).
+ *
+ * Notes are kept sorted by start and treated as an implicit balanced tree
+ * (the middle of every range is its root).  Each node remembers the latest
+ * end tick found in its subtree so overlap queries can skip whole subtrees,
+ * giving O(log n + k) lookups.  The index is rebuilt lazily after
+ * invalidate() so a burst of edits only costs one rebuild, and a rebuild
+ * is O(n) as the track's NoteList is already in start order.
+ */
+public class NoteIndex {
+
+    private Note[] notes = new Note[0];
+    private long[] starts = new long[0];
+    private long[] maxEnds = new long[0];
+    private int size = 0;
+    private boolean valid = false;
+
+    public void invalidate() {
+        valid = false;
+    }
+
+    public boolean isValid() {
+        return valid;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /* source is in start order, so it is copied as it is */
+    public void rebuild(NoteList source) {
+        int oldSize = size;
+        size = source.size();
+        if (notes.length < size) {
+            int capacity = Math.max(size, notes.length * 2);
+            notes = new Note[capacity];
+            starts = new long[capacity];
+            maxEnds = new long[capacity];
+        }
+        source.toArray(notes);
+        if (oldSize > size) {
+            /* drop references to removed notes */
+            Arrays.fill(notes, size, oldSize, null);
+        }
+        for (int i = 0; i < size; i++) {
+            starts[i] = notes[i].start;
+        }
+        computeMaxEnd(0, size);
+        valid = true;
+    }
+
+    private long computeMaxEnd(int lo, int hi) {
+        if (lo >= hi) return Long.MIN_VALUE;
+        int mid = (lo + hi) >>> 1;
+        long end = notes[mid].start + notes[mid].duration;
+        end = Math.max(end, computeMaxEnd(lo, mid));
+        end = Math.max(end, computeMaxEnd(mid + 1, hi));
+        maxEnds[mid] = end;
+        return end;
+    }
+
+    /** adds every note sounding at tick to out and returns how many were found */
+    public int overlapping(long tick, List<Note> out) {
+        return overlapping(tick, tick + 1, out);
+    }
+
+    /** adds every note overlapping [from, to) to out, in start order */
+    public int overlapping(long from, long to, List<Note> out) {
+        if (from >= to) return 0;
+        int before = out.size();
+        collect(0, size, from, to, out);
+        return out.size() - before;
+    }
+
+    private void collect(int lo, int hi, long from, long to, List<Note> out) {
+        if (lo >= hi) return;
+        int mid = (lo + hi) >>> 1;
+        if (maxEnds[mid] <= from) return;
+        collect(lo, mid, from, to, out);
+        if (starts[mid] < to) {
+            Note note = notes[mid];
+            if (note.start + note.duration > from) {
+                out.add(note);
+            }
+            collect(mid + 1, hi, from, to, out);
+        }
+    }
+
+    /** adds every note whose start lies in [from, to) to out, in start order */
+    public int startingIn(long from, long to, List<Note> out) {
+        int first = firstStartAtOrAfter(from);
+        int count = 0;
+        for (int i = first; i < size && starts[i] < to; i++) {
+            out.add(notes[i]);
+            count += 1;
+        }
+        return count;
+    }
+
+    /** position of the first note starting at or after tick (binary search) */
+    public int firstStartAtOrAfter(long tick) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (starts[mid] < tick) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /** sum of the velocities of notes sounding at tick, stopping once limit is reached */
+    public int velocityAt(long tick, int limit) {
+        return velocityAt(0, size, tick, limit, 0);
+    }
+
+    private int velocityAt(int lo, int hi, long tick, int limit, int sum) {
+        if (lo >= hi || sum >= limit) return sum;
+        int mid = (lo + hi) >>> 1;
+        if (maxEnds[mid] <= tick) return sum;
+        sum = velocityAt(lo, mid, tick, limit, sum);
+        if (starts[mid] <= tick && sum < limit) {
+            Note note = notes[mid];
+            if (note.start + note.duration > tick) {
+                sum += note.velocity;
+            }
+            sum = velocityAt(mid + 1, hi, tick, limit, sum);
+        }
+        return sum;
+    }
+
+}
@@ -0,0 +1,296 @@
+package note;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.RandomAccess;
+import java.util.Set;
+
+
+/**
+ * List of notes that always stays ordered by start tick.
+ *
+ * Backed by a gap buffer: a sorted array with one movable hole at the last
+ * edit position.  Inserts and removes near the previous edit (loading a
+ * file in order, editing one passage) only move the gap a short way, and
+ * reads are plain array lookups so iterating never has to re-sort.
+ *
+ * A note's start must not be changed while it is in the list; re-time
+ * notes through shift() or shiftFrom() so they land in the right place.
+ * Notes with equal starts keep the order they were added in.
+ */
+public class NoteList extends AbstractList<Note> implements RandomAccess {
+
+    private static final Comparator<Note> BY_START = new Comparator<Note>() {
+        public int compare(Note a, Note b) {
+            return Long.compare(a.start, b.start);
+        }
+    };
+
+    /* below this many notes shift() re-inserts one by one instead of merging */
+    private static final int SMALL_SHIFT = 16;
+
+    private Note[] items;
+    private int gapStart;
+    private int gapEnd;
+
+    public NoteList() {
+        items = new Note[16];
+        gapStart = 0;
+        gapEnd = items.length;
+    }
+
+    @Override
+    public int size() {
+        return items.length - gapEnd + gapStart;
+    }
+
+    @Override
+    public Note get(int i) {
+        if (i < 0 || i >= size()) {
+            throw new IndexOutOfBoundsException("index " + i + ", size " + size());
+        }
+        return i < gapStart ? items[i] : items[i + gapEnd - gapStart];
+    }
+
+    /* index of the first note starting at or after tick */
+    public int firstIndexAtOrAfter(long tick) {
+        int lo = 0;
+        int hi = size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (get(mid).start < tick) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /* index of the first note starting after tick */
+    public int firstIndexAfter(long tick) {
+        int lo = 0;
+        int hi = size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (get(mid).start <= tick) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        if (!(o instanceof Note)) return -1;
+        Note note = (Note)o;
+        int size = size();
+        for (int i = firstIndexAtOrAfter(note.start); i < size; i++) {
+            Note n = get(i);
+            if (n == note) return i;
+            if (n.start != note.start) break;
+        }
+        return -1;
+    }
+
+    @Override
+    public int lastIndexOf(Object o) {
+        return indexOf(o);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return indexOf(o) >= 0;
+    }
+
+    /* inserts note at its place in start order */
+    @Override
+    public boolean add(Note note) {
+        insert(firstIndexAfter(note.start), note);
+        return true;
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends Note> notes) {
+        for (Note note : notes) {
+            add(note);
+        }
+        return notes.size() > 0;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        int i = indexOf(o);
+        if (i < 0) return false;
+        remove(i);
+        return true;
+    }
+
+    @Override
+    public Note remove(int i) {
+        Note note = get(i);
+        moveGap(i);
+        items[gapEnd] = null;
+        gapEnd += 1;
+        modCount += 1;
+        return note;
+    }
+
+    @Override
+    public void removeRange(int from, int to) {
+        if (from >= to) return;
+        moveGap(from);
+        Arrays.fill(items, gapEnd, gapEnd + (to - from), null);
+        gapEnd += to - from;
+        modCount += 1;
+    }
+
+    /* removes every note contained in notes in one pass */
+    @Override
+    public boolean removeAll(Collection<?> notes) {
+        int size = size();
+        moveGap(size);
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            Note note = items[i];
+            if (!notes.contains(note)) {
+                items[kept] = note;
+                kept += 1;
+            }
+        }
+        Arrays.fill(items, kept, size, null);
+        gapStart = kept;
+        modCount += 1;
+        return kept != size;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(items, null);
+        gapStart = 0;
+        gapEnd = items.length;
+        modCount += 1;
+    }
+
+    /**
+     * Moves notes by delta ticks and puts them back in order.  Notes that
+     * are not in this list are re-timed too.  Small moves re-insert note by
+     * note; big ones take the moved notes out in a single pass and merge
+     * them back, since a uniform shift keeps them sorted among themselves.
+     */
+    public void shift(Collection<Note> notes, long delta) {
+        if (delta == 0 || notes.isEmpty()) return;
+
+        if (notes.size() <= SMALL_SHIFT) {
+            for (Note note : notes) {
+                boolean present = remove(note);
+                note.start += delta;
+                if (present) {
+                    add(note);
+                }
+            }
+            return;
+        }
+
+        Set<Note> moving = Collections.newSetFromMap(new IdentityHashMap<Note, Boolean>());
+        moving.addAll(notes);
+
+        int size = size();
+        moveGap(size);
+        Note[] moved = new Note[moving.size()];
+        int numMoved = 0;
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            Note note = items[i];
+            if (moving.contains(note)) {
+                moved[numMoved] = note;
+                numMoved += 1;
+            } else {
+                items[kept] = note;
+                kept += 1;
+            }
+        }
+
+        for (Note note : moving) {
+            note.start += delta;
+        }
+
+        /* merge the two sorted runs from the back */
+        int i = kept - 1;
+        int j = numMoved - 1;
+        int w = kept + numMoved - 1;
+        while (j >= 0) {
+            if (i >= 0 && items[i].start > moved[j].start) {
+                items[w] = items[i];
+                i -= 1;
+            } else {
+                items[w] = moved[j];
+                j -= 1;
+            }
+            w -= 1;
+        }
+        modCount += 1;
+    }
+
+    /* moves every note from index on by delta ticks */
+    public void shiftFrom(int index, long delta) {
+        int size = size();
+        if (delta == 0 || index >= size) return;
+        for (int i = index; i < size; i++) {
+            get(i).start += delta;
+        }
+        if (index > 0 && get(index - 1).start > get(index).start) {
+            /* shifted past earlier notes: put everything back in order */
+            moveGap(size);
+            Arrays.sort(items, 0, size, BY_START);
+            modCount += 1;
+        }
+    }
+
+    private void insert(int index, Note note) {
+        if (gapStart == gapEnd) {
+            grow();
+        }
+        moveGap(index);
+        items[gapStart] = note;
+        gapStart += 1;
+        modCount += 1;
+    }
+
+    private void grow() {
+        int capacity = Math.max(16, items.length + (items.length >> 1));
+        Note[] grown = new Note[capacity];
+        int tail = items.length - gapEnd;
+        System.arraycopy(items, 0, grown, 0, gapStart);
+        System.arraycopy(items, gapEnd, grown, capacity - tail, tail);
+        items = grown;
+        gapEnd = capacity - tail;
+    }
+
+    private void moveGap(int index) {
+        int gapLength = gapEnd - gapStart;
+        if (index < gapStart) {
+            int count = gapStart - index;
+            System.arraycopy(items, index, items, gapEnd - count, count);
+            Arrays.fill(items, index, index + Math.min(count, gapLength), null);
+        } else if (index > gapStart) {
+            int count = index - gapStart;
+            System.arraycopy(items, gapEnd, items, gapStart, count);
+            Arrays.fill(items, Math.max(gapStart + count, gapEnd), gapEnd + count, null);
+        }
+        gapStart = index;
+        gapEnd = index + gapLength;
+    }
+
+    @Override
+    public String toString() {
+        return "NoteList size: " + size();
+    }
+
+}
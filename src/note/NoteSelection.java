@@ -0,0 +1,117 @@
+package note;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+
+
+/**
+ * Set of selected notes keyed by Note.serialNumber.
+ *
+ * Membership is a growable bitset and the members are kept in a dense list
+ * with each note's slot remembered by serial number, so contains, add and
+ * remove are all O(1) (remove swaps the last member into the hole).  The
+ * dense list is sorted by start on demand for ordered iteration.
+ */
+public class NoteSelection extends AbstractList<Note> {
+
+    private static final Comparator<Note> BY_START = new Comparator<Note>() {
+        public int compare(Note a, Note b) {
+            return Long.compare(a.start, b.start);
+        }
+    };
+
+    private BitSet members = new BitSet();
+    private int[] slots = new int[64];
+    private Note[] notes = new Note[16];
+    private int size = 0;
+    private boolean sorted = true;
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Note get(int i) {
+        if (i >= size) throw new IndexOutOfBoundsException("index " + i + ", size " + size);
+        return notes[i];
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return (o instanceof Note) && members.get(((Note)o).serialNumber);
+    }
+
+    @Override
+    public boolean add(Note note) {
+        int serial = note.serialNumber;
+        if (members.get(serial)) return false;
+        if (size == notes.length) {
+            Note[] grown = new Note[size * 2];
+            System.arraycopy(notes, 0, grown, 0, size);
+            notes = grown;
+        }
+        if (serial >= slots.length) {
+            int[] grown = new int[Math.max(serial + 1, slots.length * 2)];
+            System.arraycopy(slots, 0, grown, 0, slots.length);
+            slots = grown;
+        }
+        members.set(serial);
+        slots[serial] = size;
+        notes[size] = note;
+        size += 1;
+        sorted = size == 1 || (sorted && notes[size - 2].start <= note.start);
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!contains(o)) return false;
+        remove(slots[((Note)o).serialNumber]);
+        return true;
+    }
+
+    @Override
+    public Note remove(int i) {
+        Note note = get(i);
+        int last = size - 1;
+        if (i != last) {
+            notes[i] = notes[last];
+            slots[notes[i].serialNumber] = i;
+            sorted = false;
+        }
+        notes[last] = null;
+        size = last;
+        members.clear(note.serialNumber);
+        return note;
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            members.clear(notes[i].serialNumber);
+            notes[i] = null;
+        }
+        size = 0;
+        sorted = true;
+    }
+
+    /* call when member notes changed start so order must be checked again */
+    public void setUnsorted() {
+        sorted = false;
+    }
+
+    public NoteSelection sortByStart() {
+        if (!sorted) {
+            Arrays.sort(notes, 0, size, BY_START);
+            for (int i = 0; i < size; i++) {
+                slots[notes[i].serialNumber] = i;
+            }
+            sorted = true;
+        }
+        return this;
+    }
+
+}
@@ -0,0 +1,228 @@
+package note;
+
+import java.util.BitSet;
+
+
+/**
+ * Immutable view of a track's notes at one point in time, in start order.
+ *
+ * The notes are cut into blocks by start tick (one block per bucketTicks)
+ * and each block is frozen once built.  A new snapshot only rebuilds the
+ * blocks whose buckets were invalidated since the last one and shares every
+ * other block with it, so taking a snapshot after a local edit costs about
+ * one block, and taking one with no edits in between costs nothing.
+ *
+ * Snapshots never change, so a playback, export or save thread can read one
+ * while the editor keeps changing the notes it was taken from.
+ */
+public class NoteSnapshot implements NoteColumns {
+
+    private static final NoteStore EMPTY_BLOCK = new NoteStore(1);
+
+    public static final NoteSnapshot EMPTY = new NoteSnapshot(new NoteStore[0], 1, 0);
+
+    private final NoteStore[] blocks;
+    private final int[] offsets;
+    private final long bucketTicks;
+    private final long version;
+
+    private NoteSnapshot(NoteStore[] blocks, long bucketTicks, long version) {
+        this.blocks = blocks;
+        this.bucketTicks = bucketTicks;
+        this.version = version;
+        offsets = new int[blocks.length + 1];
+        for (int b = 0; b < blocks.length; b++) {
+            offsets[b + 1] = offsets[b] + blocks[b].size();
+        }
+    }
+
+    /* increases every time the builder hands out a snapshot with new content */
+    public long getVersion() {
+        return version;
+    }
+
+    public int size() {
+        return offsets[blocks.length];
+    }
+
+    public int getBlockCount() {
+        return blocks.length;
+    }
+
+    public long getBucketTicks() {
+        return bucketTicks;
+    }
+
+    /* true when block b is the very same (unchanged) block in both snapshots */
+    public boolean sharesBlock(NoteSnapshot other, int b) {
+        return b < blocks.length && b < other.blocks.length && blocks[b] == other.blocks[b];
+    }
+
+    /* index of the first note of block b; block b holds notes up to blockStart(b + 1) */
+    public int blockStart(int b) {
+        return offsets[b];
+    }
+
+    /* block holding note i: the last block starting at or before i */
+    private int blockOf(int i) {
+        if (i < 0 || i >= size()) {
+            throw new IndexOutOfBoundsException("index " + i + ", size " + size());
+        }
+        int lo = 0;
+        int hi = blocks.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (offsets[mid] <= i) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo - 1;
+    }
+
+    public long getStart(int i) {
+        int b = blockOf(i);
+        return blocks[b].getStart(i - offsets[b]);
+    }
+
+    public long getDuration(int i) {
+        int b = blockOf(i);
+        return blocks[b].getDuration(i - offsets[b]);
+    }
+
+    public long getEnd(int i) {
+        int b = blockOf(i);
+        return blocks[b].getEnd(i - offsets[b]);
+    }
+
+    public int getPitch(int i) {
+        int b = blockOf(i);
+        return blocks[b].getPitch(i - offsets[b]);
+    }
+
+    public int getVelocity(int i) {
+        int b = blockOf(i);
+        return blocks[b].getVelocity(i - offsets[b]);
+    }
+
+    public int getString(int i) {
+        int b = blockOf(i);
+        return blocks[b].getString(i - offsets[b]);
+    }
+
+    public int getFret(int i) {
+        int b = blockOf(i);
+        return blocks[b].getFret(i - offsets[b]);
+    }
+
+    public int getFlags(int i) {
+        int b = blockOf(i);
+        return blocks[b].getFlags(i - offsets[b]);
+    }
+
+    public Note toNote(int i) {
+        int b = blockOf(i);
+        return blocks[b].toNote(i - offsets[b]);
+    }
+
+    @Override
+    public String toString() {
+        return "NoteSnapshot version: " + version + " size: " + size() + " blocks: " + blocks.length;
+    }
+
+
+    /**
+     * Keeps track of which buckets changed since the last snapshot and builds
+     * the next one from a NoteList, reusing the blocks of untouched buckets.
+     * Call invalidate() with the start tick of every note added, removed or
+     * changed (for a moved note: both its old and its new start).
+     */
+    public static class Builder {
+
+        private NoteSnapshot current = EMPTY;
+        private long bucketTicks;
+        private long version = 0;
+        private BitSet dirty = new BitSet();
+        private int dirtyFrom = Integer.MAX_VALUE;
+
+        public Builder(long bucketTicks) {
+            this.bucketTicks = Math.max(bucketTicks, 1);
+        }
+
+        public void setBucketTicks(long ticks) {
+            ticks = Math.max(ticks, 1);
+            if (ticks != bucketTicks) {
+                bucketTicks = ticks;
+                invalidate();
+            }
+        }
+
+        private int bucket(long tick) {
+            return (int)Math.min(Math.max(tick, 0) / bucketTicks, Integer.MAX_VALUE - 1);
+        }
+
+        /* everything changed */
+        public void invalidate() {
+            dirtyFrom = 0;
+        }
+
+        /* the note starting at tick changed */
+        public void invalidate(long tick) {
+            dirty.set(bucket(tick));
+        }
+
+        /* every note starting at or after tick changed */
+        public void invalidateFrom(long tick) {
+            dirtyFrom = Math.min(dirtyFrom, bucket(tick));
+        }
+
+        public boolean isDirty() {
+            return dirtyFrom != Integer.MAX_VALUE || !dirty.isEmpty();
+        }
+
+        public NoteSnapshot getCurrent() {
+            return current;
+        }
+
+        public NoteSnapshot snapshot(NoteList notes) {
+            if (!isDirty()) {
+                return current;
+            }
+            int size = notes.size();
+            int bucketCount = size == 0 ? 0 : bucket(notes.get(size - 1).start) + 1;
+            NoteStore[] blocks = new NoteStore[bucketCount];
+            for (int b = 0; b < bucketCount; b++) {
+                boolean clean = b < dirtyFrom && !dirty.get(b) && b < current.blocks.length;
+                if (clean) {
+                    blocks[b] = current.blocks[b];
+                } else {
+                    blocks[b] = buildBlock(notes, b);
+                }
+            }
+            version += 1;
+            current = new NoteSnapshot(blocks, bucketTicks, version);
+            dirty.clear();
+            dirtyFrom = Integer.MAX_VALUE;
+            return current;
+        }
+
+        private NoteStore buildBlock(NoteList notes, int b) {
+            /* bucket 0 also takes any notes before tick 0 */
+            int from = b == 0 ? 0 : notes.firstIndexAtOrAfter(b * bucketTicks);
+            int to = notes.firstIndexAtOrAfter((b + 1) * bucketTicks);
+            if (from == to) {
+                return EMPTY_BLOCK;
+            }
+            NoteStore block = new NoteStore(to - from);
+            for (int i = from; i < to; i++) {
+                Note note = notes.get(i);
+                /* selection is editor state, not part of the notes' content */
+                block.add(note.start, note.duration, note.pitch, note.velocity,
+                        note.stringNum, note.fret, 0);
+            }
+            return block;
+        }
+    }
+
+}
@@ -0,0 +1,151 @@
+package note;
+
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Columnar note storage: one primitive array per note field instead of one
+ * object per note.  Loops over a store walk a few dense arrays by index and
+ * never allocate, which is what playback and file writing want.
+ *
+ * Pitch, velocity, string and fret are stored as bytes (they all fit
+ * MIDI's 7 bits or a fretboard); flags hold per-note bits like SELECTED.
+ */
+public class NoteStore implements NoteColumns {
+
+    public static final int SELECTED = 1;
+
+    protected long[] starts;
+    protected long[] durations;
+    protected byte[] pitches;
+    protected byte[] velocities;
+    protected byte[] strings;
+    protected byte[] frets;
+    protected byte[] flags;
+    protected int size = 0;
+
+    public NoteStore() {
+        this(16);
+    }
+
+    public NoteStore(int capacity) {
+        capacity = Math.max(capacity, 1);
+        starts = new long[capacity];
+        durations = new long[capacity];
+        pitches = new byte[capacity];
+        velocities = new byte[capacity];
+        strings = new byte[capacity];
+        frets = new byte[capacity];
+        flags = new byte[capacity];
+    }
+
+    public static NoteStore of(List<Note> notes) {
+        NoteStore store = new NoteStore(notes.size());
+        for (int i = 0; i < notes.size(); i++) {
+            store.add(notes.get(i));
+        }
+        return store;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int add(long start, long duration, int pitch, int velocity, int stringNum, int fret, int flagBits) {
+        ensureCapacity(size + 1);
+        int i = size;
+        size += 1;
+        set(i, start, duration, pitch, velocity, stringNum, fret, flagBits);
+        return i;
+    }
+
+    public int add(Note note) {
+        return add(note.start, note.duration, note.pitch, note.velocity,
+                note.stringNum, note.fret, note.isSelected ? SELECTED : 0);
+    }
+
+    public void set(int i, long start, long duration, int pitch, int velocity, int stringNum, int fret, int flagBits) {
+        starts[i] = start;
+        durations[i] = duration;
+        pitches[i] = (byte)pitch;
+        velocities[i] = (byte)velocity;
+        strings[i] = (byte)stringNum;
+        frets[i] = (byte)fret;
+        flags[i] = (byte)flagBits;
+    }
+
+    public long getStart(int i) {
+        return starts[i];
+    }
+
+    public long getDuration(int i) {
+        return durations[i];
+    }
+
+    public long getEnd(int i) {
+        return getStart(i) + getDuration(i);
+    }
+
+    public int getPitch(int i) {
+        return pitches[i];
+    }
+
+    public int getVelocity(int i) {
+        return velocities[i];
+    }
+
+    public int getString(int i) {
+        return strings[i];
+    }
+
+    public int getFret(int i) {
+        return frets[i];
+    }
+
+    public int getFlags(int i) {
+        return flags[i];
+    }
+
+    public boolean isSelected(int i) {
+        return (getFlags(i) & SELECTED) != 0;
+    }
+
+    /* copy the fields of note i onto an existing Note object */
+    public void copyTo(int i, Note note) {
+        note.start = getStart(i);
+        note.duration = getDuration(i);
+        note.pitch = getPitch(i);
+        note.velocity = getVelocity(i);
+        note.stringNum = getString(i);
+        note.fret = getFret(i);
+    }
+
+    public Note toNote(int i) {
+        Note note = new Note();
+        copyTo(i, note);
+        return note;
+    }
+
+    protected void ensureCapacity(int capacity) {
+        if (capacity <= starts.length) return;
+        int newCapacity = Math.max(capacity, starts.length + (starts.length >> 1));
+        starts = Arrays.copyOf(starts, newCapacity);
+        durations = Arrays.copyOf(durations, newCapacity);
+        pitches = Arrays.copyOf(pitches, newCapacity);
+        velocities = Arrays.copyOf(velocities, newCapacity);
+        strings = Arrays.copyOf(strings, newCapacity);
+        frets = Arrays.copyOf(frets, newCapacity);
+        flags = Arrays.copyOf(flags, newCapacity);
+    }
+
+    @Override
+    public String toString() {
+        return "NoteStore size: " + size;
+    }
+
+}
@@ -6,6 +6,7 @@ public enum Constants {
     BUTTON_PLAYSELECTION,
     BUTTON_LOOP,
     BUTTON_STOP,
+    BUTTON_CANCELLOAD,
 
     FIELD_PLAYSTART,
     FIELD_LOOPSTART,
@@ -16,6 +17,8 @@ public enum Constants {
     MENU_FILE_OPEN,
     MENU_FILE_SAVE,
     MENU_FILE_SAVEAS,
+    MENU_FILE_EXPORTMIDI,
+    MENU_FILE_EXPORTMUSICXML,
     MENU_FILE_CLOSE,
     MENU_FILE_QUIT,
 
@@ -24,6 +27,9 @@ public enum Constants {
     MENU_EDIT_CUT,
     MENU_EDIT_COPY,
     MENU_EDIT_PASTE,
+    MENU_EDIT_PASTECLIP,
+    MENU_EDIT_OPENCLIP,
+    MENU_EDIT_CLOSECLIP,
     MENU_EDIT_CLEAR,
     MENU_EDIT_SELECTALL,
     MENU_EDIT_INSERTBARS,
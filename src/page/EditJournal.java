@@ -0,0 +1,579 @@
+package page;
+
+import java.awt.event.ActionEvent;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import javax.swing.Timer;
+
+import note.NoteColumns;
+import note.NoteStore;
+import track.TrackController;
+import track.TrackTypeBass;
+import track.TrackTypeDrums;
+import track.TrackTypeGuitar;
+import utils.ByteCoder;
+import utils.console;
+
+
+/**
+ * Append-only journal of the edits made since the song was loaded or saved,
+ * so they can be got back after a crash or power cut.
+ *
+ * The journal starts with the song it builds on (a file, or none for a new
+ * song).  After every undoable action, and once a second for anything else,
+ * the tracks are asked what changed and one record is added: notes by value
+ * (the ones that went and the ones that came), track settings, and tracks,
+ * bars or the tempo added or removed.  Records are encoded on the event
+ * thread and written and forced to disk on a thread of their own, at most
+ * once a second, so a crash loses a second of work at most.  Each record
+ * has a sequence number and a CRC, so a record torn by a crash is noticed
+ * and dropped with anything after it.
+ *
+ * Saving makes the records up to the save useless; a checkpoint rewrites
+ * the journal with only the records after it and the saved file to build
+ * on.  At startup a journal with records in it means the last session did
+ * not end cleanly: its song is loaded and the records replayed on top.
+ *
+ * Clips are not journaled; a record saying clips changed ends the replay
+ * there.
+ */
+class EditJournal {
+
+    private static final int MAGIC = 0x544f464a; // TOFJ
+    private static final int VERSION = 1;
+    private static final int FLUSH_DELAY = 1000;
+
+    /* what a record is made of, one after another */
+    private static final int NOTES = 1;
+    private static final int SETTINGS = 2;
+    private static final int TRACK_ADDED = 3;
+    private static final int TRACK_REMOVED = 4;
+    private static final int TEMPO = 5;
+    private static final int BARS_INSERTED = 6;
+    private static final int BARS_REMOVED = 7;
+    private static final int UNJOURNALED = 8;
+
+    private static final int GUITAR = 0;
+    private static final int BASS = 1;
+    private static final int DRUMS = 2;
+
+    private final Page page;
+    private final File file;
+    private final ExecutorService writer;
+    private final Timer flushTimer;
+
+    /* event thread */
+    private boolean active = false;
+    private long sequence = 0;
+    private ByteCoder record = new ByteCoder();
+    private int recordOps = 0;
+    private List<byte[]> pending = new ArrayList<byte[]>();
+    private NoteStore removed = new NoteStore();
+    private NoteStore added = new NoteStore();
+
+    /* what open() found in the journal of the last session */
+    private String basePath;
+    private List<ByteBuffer> found = new ArrayList<ByteBuffer>();
+    private List<Long> foundEnds = new ArrayList<Long>();
+    private long headerLength = 0;
+    private long validLength = 0;
+
+    /* writer thread */
+    private FileChannel channel;
+
+    EditJournal(Page page, File file) {
+        this.page = page;
+        this.file = file;
+        writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "edit-journal");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        flushTimer = new Timer(FLUSH_DELAY, (ActionEvent evt) -> flush());
+    }
+
+    boolean isActive() {
+        return active;
+    }
+
+    /* sequence number of the last record; a save covers the records up to it */
+    long getSequence() {
+        return sequence;
+    }
+
+    //////////////////   recovery  //////////////////
+
+    /* read the journal left by the last session; true if it has records to replay */
+    boolean open() {
+        found.clear();
+        foundEnds.clear();
+        if (!file.isFile()) return false;
+        try {
+            ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            if (bytes.remaining() < 6 || bytes.getInt() != MAGIC || bytes.getShort() != VERSION) {
+                console.log("journal: ignoring", file, ", not a journal of this version");
+                return false;
+            }
+            basePath = ByteCoder.readString(bytes);
+            headerLength = bytes.position();
+            validLength = headerLength;
+            ByteBuffer payload;
+            while ((payload = readRecord(bytes)) != null) {
+                sequence = ByteCoder.readVarLong(payload);
+                found.add(payload);
+                validLength = bytes.position();
+                foundEnds.add(validLength);
+            }
+            if (bytes.hasRemaining()) {
+                console.log("journal: dropping", bytes.remaining(), "bytes of an unfinished record");
+            }
+        } catch (RuntimeException | IOException ex) {
+            console.error("journal: could not read", file, ":", ex);
+            found.clear();
+        }
+        return found.size() > 0;
+    }
+
+    /* the song the records build on, or null for a new song */
+    String getBasePath() {
+        return basePath == null || basePath.isEmpty() ? null : basePath;
+    }
+
+    int getRecordCount() {
+        return found.size();
+    }
+
+    /*
+     * apply the records open() found to the song, which must be loaded from
+     * getBasePath(); records that could not be replayed are cut off by resume()
+     */
+    void replay() {
+        long startTime = System.nanoTime();
+        int replayed = 0;
+        for (ByteBuffer payload : found) {
+            try {
+                if (!replayRecord(payload)) {
+                    console.log("journal: clips were changed here, the", found.size() - replayed,
+                            "record(s) from here on are not replayed");
+                    break;
+                }
+            } catch (RuntimeException ex) {
+                console.error("journal: record", replayed, "does not fit the song, stopping there:", ex);
+                break;
+            }
+            replayed += 1;
+        }
+        if (replayed < found.size()) {
+            validLength = replayed == 0 ? headerLength : foundEnds.get(replayed - 1);
+        }
+        found.clear();
+        foundEnds.clear();
+        console.log("journal: replayed", replayed, "record(s) in",
+                (System.nanoTime() - startTime) / 1000000, "ms");
+    }
+
+    private boolean replayRecord(ByteBuffer payload) {
+        List<TrackController> tracks = page.getTrackList();
+        while (payload.hasRemaining()) {
+            int op = payload.get();
+            if (op == NOTES) {
+                TrackController track = tracks.get((int)ByteCoder.readVarLong(payload));
+                readNotes(payload, removed);
+                readNotes(payload, added);
+                track.applyNoteChanges(removed, added);
+            } else if (op == SETTINGS) {
+                TrackController track = tracks.get((int)ByteCoder.readVarLong(payload));
+                track.setName(ByteCoder.readString(payload));
+                track.setChannel((int)ByteCoder.readVarLong(payload));
+                track.setInstrument((int)ByteCoder.readVarLong(payload));
+                track.setVolume((int)ByteCoder.readVarLong(payload));
+                int type = (int)ByteCoder.readVarLong(payload);
+                if (type == DRUMS) {
+                    track.setTrackType(new TrackTypeDrums());
+                } else if (type == BASS) {
+                    track.setTrackType(new TrackTypeBass());
+                } else {
+                    track.setTrackType(new TrackTypeGuitar());
+                }
+            } else if (op == TRACK_ADDED) {
+                page.addNewTrack();
+            } else if (op == TRACK_REMOVED) {
+                page.removeTrack(tracks.get((int)ByteCoder.readVarLong(payload)));
+            } else if (op == TEMPO) {
+                page.setBPM((int)ByteCoder.readVarLong(payload));
+            } else if (op == BARS_INSERTED) {
+                TrackController track = readTrack(payload, tracks);
+                int number = (int)ByteCoder.readVarLong(payload);
+                page.insertBars(number, (int)ByteCoder.readVarLong(payload), track);
+            } else if (op == BARS_REMOVED) {
+                TrackController track = readTrack(payload, tracks);
+                int start = (int)ByteCoder.readVarLong(payload);
+                page.removeBars(start, (int)ByteCoder.readVarLong(payload), track);
+            } else if (op == UNJOURNALED) {
+                return false;
+            } else {
+                throw new IllegalStateException("journal: unknown record part " + op);
+            }
+        }
+        return true;
+    }
+
+    //////////////////   recording  //////////////////
+
+    /* journal the song as it is now, loaded from basePath (null for a new song) */
+    void start(String basePath) {
+        flush();
+        this.basePath = basePath;
+        final byte[] header = header(basePath);
+        submit(new IOTask() {
+            public void run() throws IOException {
+                closeChannel();
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                channel.write(ByteBuffer.wrap(header));
+                channel.force(false);
+            }
+        });
+        activate();
+    }
+
+    /* go on with the journal open() read, after its records were replayed */
+    void resume() {
+        final long length = validLength;
+        submit(new IOTask() {
+            public void run() throws IOException {
+                closeChannel();
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+                channel.truncate(length);
+                channel.position(length);
+            }
+        });
+        activate();
+    }
+
+    private void activate() {
+        for (TrackController track : page.getTrackList()) {
+            track.setJournaling(true);
+        }
+        active = true;
+        flushTimer.start();
+    }
+
+    /* stop recording; the journal on disk stays until start() or close() */
+    void stop() {
+        flush();
+        active = false;
+        flushTimer.stop();
+    }
+
+    /* the song was saved as basePath with everything up to record savedSequence */
+    void checkpoint(final long savedSequence, String basePath) {
+        if (!active) return;
+        flush();
+        this.basePath = basePath;
+        final byte[] header = header(basePath);
+        submit(new IOTask() {
+            public void run() throws IOException {
+                compact(header, savedSequence);
+            }
+        });
+    }
+
+    /* on a clean exit nothing needs recovering, so the journal goes unless asked to keep it */
+    void close(final boolean keep) {
+        stop();
+        submit(new IOTask() {
+            public void run() throws IOException {
+                closeChannel();
+                if (!keep) {
+                    Files.deleteIfExists(file.toPath());
+                }
+            }
+        });
+        writer.shutdown();
+        try {
+            writer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* record what the tracks changed since the last record */
+    void collect() {
+        if (!active) return;
+        beginRecord();
+        endRecord();
+    }
+
+    void trackAdded() {
+        if (!active) return;
+        beginRecord();
+        op(TRACK_ADDED);
+        endRecord();
+    }
+
+    /* call before the track goes, while index still is its number */
+    void trackRemoved(int index) {
+        if (!active) return;
+        beginRecord();
+        op(TRACK_REMOVED);
+        record.putVarLong(index);
+        endRecord();
+    }
+
+    void tempo(int bpm) {
+        if (!active) return;
+        beginRecord();
+        op(TEMPO);
+        record.putVarLong(bpm);
+        endRecord();
+    }
+
+    /* index is the track's number, or -1 for all tracks */
+    void barsInserted(int index, int number, int before) {
+        if (!active) return;
+        beginRecord();
+        op(BARS_INSERTED);
+        record.putSigned(index);
+        record.putVarLong(number);
+        record.putVarLong(before);
+        endRecord();
+    }
+
+    void barsRemoved(int index, int start, int end) {
+        if (!active) return;
+        beginRecord();
+        op(BARS_REMOVED);
+        record.putSigned(index);
+        record.putVarLong(start);
+        record.putVarLong(end);
+        endRecord();
+    }
+
+    /* a record always starts with what the tracks changed, so it comes before what follows */
+    private void beginRecord() {
+        record.reset();
+        record.putVarLong(sequence + 1);
+        recordOps = 0;
+        List<TrackController> tracks = page.getTrackList();
+        for (int i = 0; i < tracks.size(); i++) {
+            TrackController track = tracks.get(i);
+            if (track.takeUnjournaled()) {
+                op(UNJOURNALED);
+            }
+            if (track.takeSettingsChanged()) {
+                op(SETTINGS);
+                record.putVarLong(i);
+                record.putString(track.getName());
+                record.putVarLong(track.getChannel());
+                record.putVarLong(track.getInstrument().number);
+                record.putVarLong(track.getVolume());
+                record.putVarLong(typeOf(track));
+            }
+            if (track.takeNoteChanges(removed, added)) {
+                op(NOTES);
+                record.putVarLong(i);
+                writeNotes(removed);
+                writeNotes(added);
+            }
+        }
+    }
+
+    private void op(int op) {
+        record.putByte(op);
+        recordOps += 1;
+    }
+
+    /* length, payload and the payload's CRC; nothing when nothing changed */
+    private void endRecord() {
+        if (recordOps == 0) return;
+        sequence += 1;
+        ByteCoder framed = new ByteCoder(record.size() + 8);
+        framed.putVarLong(record.size());
+        framed.putBytes(record.getBytes(), 0, record.size());
+        CRC32 crc = new CRC32();
+        crc.update(record.getBytes(), 0, record.size());
+        framed.putInt((int)crc.getValue());
+        pending.add(framed.toByteArray());
+    }
+
+    /* hand the records so far to the writer, which writes and forces them in one go */
+    private void flush() {
+        collect();
+        if (pending.isEmpty()) return;
+        final List<byte[]> records = pending;
+        pending = new ArrayList<byte[]>();
+        submit(new IOTask() {
+            public void run() throws IOException {
+                if (channel == null) return;
+                for (byte[] bytes : records) {
+                    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                }
+                channel.force(false);
+            }
+        });
+    }
+
+    //////////////////   writer thread  //////////////////
+
+    private interface IOTask {
+        void run() throws IOException;
+    }
+
+    private void submit(final IOTask task) {
+        writer.execute(new Runnable() {
+            public void run() {
+                try {
+                    task.run();
+                } catch (IOException | RuntimeException ex) {
+                    console.error("journal: an error occured writing", file, ":", ex);
+                }
+            }
+        });
+    }
+
+    /* rewrite the journal next to itself with only the records after savedSequence */
+    private void compact(byte[] header, long savedSequence) throws IOException {
+        closeChannel();
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        bytes.position(6);
+        ByteCoder.readString(bytes);
+        Path target = file.toPath().toAbsolutePath();
+        Path temp = Files.createTempFile(target.getParent(), "." + target.getFileName(), ".tmp");
+        try {
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                out.write(ByteBuffer.wrap(header));
+                int start = bytes.position();
+                ByteBuffer payload;
+                while ((payload = readRecord(bytes)) != null) {
+                    if (ByteCoder.readVarLong(payload) > savedSequence) {
+                        ByteBuffer framed = bytes.duplicate();
+                        framed.limit(bytes.position());
+                        framed.position(start);
+                        out.write(framed);
+                    }
+                    start = bytes.position();
+                }
+                out.force(false);
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+            channel = FileChannel.open(target, StandardOpenOption.WRITE);
+            channel.position(channel.size());
+        }
+    }
+
+    private void closeChannel() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    //////////////////   encoding  //////////////////
+
+    private static byte[] header(String basePath) {
+        ByteCoder header = new ByteCoder();
+        header.putInt(MAGIC);
+        header.putShort(VERSION);
+        header.putString(basePath == null ? "" : basePath);
+        return header.toByteArray();
+    }
+
+    private static int typeOf(TrackController track) {
+        if (track.getTrackType().isDrums()) return DRUMS;
+        if (track.getTrackType() instanceof TrackTypeBass) return BASS;
+        return GUITAR;
+    }
+
+    /* notes as deltas of start from the one before, then the other columns */
+    private void writeNotes(NoteColumns notes) {
+        record.putVarLong(notes.size());
+        long start = 0;
+        for (int i = 0; i < notes.size(); i++) {
+            record.putSigned(notes.getStart(i) - start);
+            start = notes.getStart(i);
+            record.putVarLong(notes.getDuration(i));
+            record.putByte(notes.getPitch(i));
+            record.putByte(notes.getVelocity(i));
+            record.putSigned(notes.getString(i));
+            record.putSigned(notes.getFret(i));
+        }
+    }
+
+    private static void readNotes(ByteBuffer in, NoteStore notes) {
+        notes.clear();
+        int count = (int)ByteCoder.readVarLong(in);
+        long start = 0;
+        for (int i = 0; i < count; i++) {
+            start += ByteCoder.readSigned(in);
+            long duration = ByteCoder.readVarLong(in);
+            int pitch = in.get() & 0x7f;
+            int velocity = in.get() & 0x7f;
+            int stringNum = (int)ByteCoder.readSigned(in);
+            notes.add(start, duration, pitch, velocity, stringNum, (int)ByteCoder.readSigned(in), 0);
+        }
+    }
+
+    private static TrackController readTrack(ByteBuffer in, List<TrackController> tracks) {
+        int index = (int)ByteCoder.readSigned(in);
+        return index < 0 ? null : tracks.get(index);
+    }
+
+    /* the payload of the next whole record with a good CRC, or null */
+    private static ByteBuffer readRecord(ByteBuffer in) {
+        int start = in.position();
+        try {
+            int length = (int)ByteCoder.readVarLong(in);
+            if (length <= 0 || length + 4 > in.remaining()) {
+                in.position(start);
+                return null;
+            }
+            ByteBuffer payload = in.slice();
+            payload.limit(length);
+            CRC32 crc = new CRC32();
+            crc.update(in.array(), in.arrayOffset() + in.position(), length);
+            in.position(in.position() + length);
+            if (in.getInt() != (int)crc.getValue()) {
+                in.position(start);
+                return null;
+            }
+            return payload;
+        } catch (RuntimeException ex) {
+            in.position(start);
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "EditJournal " + file + " records: " + sequence;
+    }
+
+}
@@ -0,0 +1,91 @@
+package page;
+
+import java.util.List;
+
+import javax.swing.SwingWorker;
+
+import midi.MeterMap;
+import midi.SmfReader;
+import midi.TempoMap;
+import note.NoteStore;
+import utils.console;
+
+
+/**
+ * Streams the notes of an opened file into its tracks in the background.
+ *
+ * Notes are decoded a few measures at a time from the start of the song,
+ * so the measures on screen fill in first; every stretch is handed to the
+ * page on the event thread as it is done.  Stretches start small and grow
+ * so a long file does not pay for many tiny hand-offs.
+ */
+class FileLoader extends SwingWorker<Void, FileLoader.Stretch> {
+
+    private static final int FIRST_MEASURES = 8;
+    private static final int MAX_MEASURES = 128;
+
+    private final Page page;
+    private final SmfReader smf;
+
+    /* notes of every track that ended before untilTick, with the time maps up to there */
+    static class Stretch {
+        final long untilTick;
+        final List<NoteStore> notes;
+        final TempoMap tempoMap;
+        final MeterMap meterMap;
+
+        Stretch(long untilTick, List<NoteStore> notes, TempoMap tempoMap, MeterMap meterMap) {
+            this.untilTick = untilTick;
+            this.notes = notes;
+            this.tempoMap = tempoMap;
+            this.meterMap = meterMap;
+        }
+    }
+
+    FileLoader(Page page, SmfReader smf) {
+        this.page = page;
+        this.smf = smf;
+    }
+
+    SmfReader getReader() {
+        return smf;
+    }
+
+    @Override
+    protected Void doInBackground() throws Exception {
+        int measures = FIRST_MEASURES;
+        double untilMeasure = 0;
+        long untilTick = 0;
+        while (!smf.isFinished() && !isCancelled()) {
+            untilMeasure += measures;
+            untilTick = smf.getMeterMap().measureToTick(untilMeasure);
+            measures = Math.min(measures * 2, MAX_MEASURES);
+            List<NoteStore> notes = smf.readNotes(untilTick);
+            publish(new Stretch(untilTick, notes, smf.getTempoMap(), smf.getMeterMap()));
+            setProgress((int)(smf.getProgress() * 100));
+        }
+        return null;
+    }
+
+    @Override
+    protected void process(List<Stretch> stretches) {
+        for (Stretch stretch : stretches) {
+            page.loadNotes(this, stretch.notes, stretch.tempoMap, stretch.meterMap);
+        }
+    }
+
+    @Override
+    protected void done() {
+        boolean completed = !isCancelled();
+        if (completed) {
+            try {
+                get();
+            } catch (Exception ex) {
+                console.error("an error occured trying to load notes:", ex.getCause());
+                completed = false;
+            }
+        }
+        page.fileLoaded(this, completed);
+    }
+
+}
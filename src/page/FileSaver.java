@@ -0,0 +1,146 @@
+package page;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.SwingWorker;
+
+import formats.TofWriter;
+import midi.MeterMap;
+import midi.SmfWriter;
+import midi.TempoMap;
+import track.TrackState;
+import utils.console;
+
+
+/**
+ * Saves a song in the background without ever leaving a half written file.
+ *
+ * The page hands over TrackStates and copies of the time maps taken on the
+ * event thread, so editing can go on while the file is written.  The file
+ * is written next to the target under a temporary name, forced to disk and
+ * then moved over the target in one step; if anything fails the temporary
+ * file is removed and the old file is left as it was.  Saves run one at a
+ * time in the order they were started, and the page hears about each one
+ * on the event thread when it is done.  A .tof file is saved as a project,
+ * anything else as a standard MIDI file; an export writes a file without
+ * it becoming the song's file.
+ */
+class FileSaver extends SwingWorker<Void, Void> {
+
+    private static ExecutorService savePool;
+
+    private final Page page;
+    private final File file;
+    private final List<TrackState> tracks;
+    private final TempoMap tempoMap;
+    private final MeterMap meterMap;
+    private final int loopStart;
+    private final int loopStop;
+
+    /* what Page.isModified() compares against once this save is done */
+    final long songVersion;
+    final long[] trackVersions;
+    /* the journal record the saved file takes in */
+    final long journalSequence;
+    final boolean export;
+
+    FileSaver(Page page, File file, List<TrackState> tracks, TempoMap tempoMap, MeterMap meterMap,
+            int loopStart, int loopStop, long songVersion, long[] trackVersions, long journalSequence,
+            boolean export) {
+        this.page = page;
+        this.file = file;
+        this.tracks = tracks;
+        this.tempoMap = tempoMap;
+        this.meterMap = meterMap;
+        this.loopStart = loopStart;
+        this.loopStop = loopStop;
+        this.songVersion = songVersion;
+        this.trackVersions = trackVersions;
+        this.journalSequence = journalSequence;
+        this.export = export;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /* start saving after every save started before */
+    void start() {
+        getSavePool().execute(this);
+    }
+
+    @Override
+    protected Void doInBackground() throws Exception {
+        Path target = file.getAbsoluteFile().toPath();
+        Path temp = Files.createTempFile(target.getParent(), "." + target.getFileName(), ".tmp");
+        try {
+            keepPermissions(target, temp);
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                if (TofWriter.isProjectFile(file.getName())) {
+                    new TofWriter().write(channel, tracks, tempoMap, meterMap, loopStart, loopStop);
+                } else {
+                    new SmfWriter().write(channel, tracks, tempoMap, meterMap);
+                }
+                channel.force(true);
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                console.log("FileSaver: atomic move not supported, replacing", target);
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(temp);
+            throw ex;
+        }
+        return null;
+    }
+
+    /* temporary files are private to the user; give the new file the old one's permissions */
+    private void keepPermissions(Path target, Path temp) throws IOException {
+        if (!Files.exists(target)) return;
+        try {
+            Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(target));
+        } catch (UnsupportedOperationException ex) {
+            /* not a POSIX file system */
+        }
+    }
+
+    @Override
+    protected void done() {
+        Throwable error = null;
+        try {
+            get();
+        } catch (Exception ex) {
+            error = ex.getCause() != null ? ex.getCause() : ex;
+            console.error("an error occured trying to save", file, ":", error);
+        }
+        page.fileSaved(this, error);
+    }
+
+    private static synchronized ExecutorService getSavePool() {
+        if (savePool == null) {
+            savePool = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "file-saver");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return savePool;
+    }
+
+}
@@ -1,25 +1,44 @@
 package page;
 
 import java.awt.event.*;
+import java.beans.PropertyChangeEvent;
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 import javax.sound.midi.*;
 import javax.swing.Timer;
 
 import actions.Actions;
+import formats.AsciiTabReader;
+import formats.GuitarProReader;
+import formats.MusicXmlReader;
+import formats.MusicXmlWriter;
+import formats.TofReader;
+import formats.TofWriter;
+import midi.MeterMap;
 import midi.Midi;
+import midi.SmfReader;
+import midi.TempoMap;
+import note.Clip;
+import note.ClipInstance;
+import note.EventStore;
 import note.Note;
+import note.NoteList;
+import note.NoteStore;
 import themes.ThemeReader;
 import track.TrackController;
+import track.TrackListener;
+import track.TrackState;
 import track.TrackType;
 import track.TrackTypeGuitar;
 import track.TrackTypeBass;
 import track.TrackTypeDrums;
 import widgets.VelocitySlider;
-import utils.Checksum;
 import utils.console;
 import utils.StringChecker;
 
@@ -28,23 +47,44 @@ public class Page {
 
     private PageView view;
     private Midi midi;
-    private Note.List clipboard;
+    private NoteList clipboard;
+    private Clip clipboardClip;
+    private int clipCount = 0;
     protected TrackController selectedTrack;
     private List<TrackController> tracks;
     private Timer progressTimer;
     private File file ;
-    private String fileChecksum;
+    /* goes up when tracks are added or removed or the tempo changes; tracks count their own changes */
+    private long songVersion = 0;
+    private long savedSongVersion = 0;
+    private long[] savedTrackVersions = new long[0];
 
     private String prefFile = "config/preferences.txt";
+    private String journalFile = "config/session.journal";
+    private EditJournal journal;
+    /* the file the song was loaded from or last saved to, which the journal builds on */
+    private String basePath;
+    private boolean recovering = false;
     private Properties preferences = new Properties();
     private int minWidth = 15150;
-    private int BPM = 120;
     private int numOfMeasures = 100;
     private int minNumOfMeasures = 100;
     private int resolution = 960;
+    private TempoMap tempoMap = new TempoMap(resolution);
+    private MeterMap meterMap = new MeterMap(resolution);
 
     private boolean isPlaying = false;
     private boolean isLooping = false;
+    private List<TrackListener> trackListeners = new ArrayList<>();
+    private FileLoader loader;
+    private ProjectLoader projectLoader;
+    private FileSaver saver;
+    private FileSaver exporter;
+    /* shown again if a save fails */
+    private String titleBeforeSave;
+    private List<TrackController> loadingTracks;
+    /* notes of file tracks whose program change has not been read yet */
+    private List<NoteStore> pendingNotes;
 
 
     public Page(String pathToFile) {
@@ -54,12 +94,21 @@ public class Page {
         view = new PageView(this);
         midi = new Midi(this);
         tracks = new ArrayList<>();
-        clipboard = new Note.List();
+        clipboard = new NoteList();
         progressTimer = new Timer(20, (ActionEvent evt) -> {
             long currentTick = midi.getTickPosition();
             handleProgressTimer(currentTick);
         });
 
+        /* a journal with edits in it means the last session ended without saving them */
+        journal = new EditJournal(this, new File(journalFile));
+        Actions.setListener(() -> journal.collect());
+        if (StringChecker.isNullOrEmpty(pathToFile) && journal.open()
+                && view.showRecoverDialog(journal.getRecordCount())) {
+            recovering = true;
+            pathToFile = journal.getBasePath();
+        }
+
         if (StringChecker.isNullOrEmpty(pathToFile)) {
             startNewFile();
         } else {
@@ -89,6 +138,7 @@ public class Page {
         preferences.setProperty("window.height", "800");
         preferences.setProperty("midiDirectory", "midi");
         preferences.setProperty("soundFont", "sf2/Windows.sf2");
+        preferences.setProperty("midiImport.splitChannels", "true");
     }
 
     private void loadUserPreferences() {
@@ -125,45 +175,89 @@ public class Page {
             if (ready == false) return;
         }
         file = null;
-        String filename = "untitled.mid";
+        basePath = null;
+        String filename = "untitled.tof";
+        journal.stop();
+        stopLoading();
         removeAllTracks();
         midi.unMuteAllTracks();
         addNewTrack();
-        fileChecksum = generateChecksum();
+        tempoMap = new TempoMap(resolution);
+        meterMap = new MeterMap(resolution);
+        markSaved();
         view.setTitle(filename);
-        BPM = 120;
         isLooping = false;
 
-        view.setBPMField(BPM);
+        view.setBPMField(tempoMap.getBPMAt(0));
+        startJournal(true);
     }
 
     public void loadFile(String filename) {
+        if (TofWriter.isProjectFile(filename)) {
+            loadProjectFile(filename);
+            return;
+        }
+        if (GuitarProReader.isGuitarProFile(filename) || MusicXmlReader.isMusicXmlFile(filename)
+                || AsciiTabReader.isAsciiTabFile(filename)) {
+            loadTabFile(filename);
+            return;
+        }
+        journal.stop();
+        basePath = new File(filename).getAbsolutePath();
+        stopLoading();
         removeAllTracks();
         midi.unMuteAllTracks();
         try {
             file = new File(filename);
-            Sequence sequence = MidiSystem.getSequence(file);
+            boolean splitChannels = "true".equals(getPreference("midiImport.splitChannels"));
+            SmfReader smf = SmfReader.open(file, splitChannels);
             view.setTitle(file.getName());
 
             //String pathWithoutFileName = file.getParent();
             //setPreference("midiDirectory", pathWithoutFileName);
 
-            long l = sequence.getTickLength();
-            resolution = sequence.getResolution();
-            numOfMeasures = (int)l/(sequence.getResolution() * 4);
-            numOfMeasures = Math.max(numOfMeasures, minNumOfMeasures);
+            /* the song length is only known once all notes are read; grow as they come */
+            resolution = smf.getResolution();
+            tempoMap = smf.getTempoMap();
+            meterMap = smf.getMeterMap();
+            view.setBPMField(tempoMap.getBPMAt(0));
+            numOfMeasures = minNumOfMeasures;
             PageView.width = Math.max(minWidth, numOfMeasures * PageView.measureSize + PageView.measureSize);
 
             view.reset();
             int index = 0;
 
-            for (Track track : sequence.getTracks()) {
-                loadTrack(track, index);
+            /*
+             * tracks go up straight away, in file order; FileLoader streams their notes in.
+             * tracks split off by channel are only made once notes for them arrive, and
+             * tracks with no program change before their first note once one is read
+             */
+            loadingTracks = new ArrayList<>();
+            pendingNotes = new ArrayList<>();
+            for (SmfReader.TrackData track : smf.getTracks()) {
+                if (track.getChannel() >= 0) {
+                    loadingTracks.add(null);
+                    pendingNotes.add(null);
+                } else {
+                    TrackController trackController = loadTrack(track, index);
+                    loadingTracks.add(trackController);
+                    pendingNotes.add(trackController == null ? new NoteStore() : null);
+                }
                 index += 1;
             }
 
-            selectTrack(tracks.get(0));
-            fileChecksum = generateChecksum();
+            if (tracks.size() > 0) {
+                selectTrack(tracks.get(0));
+            }
+
+            loader = new FileLoader(this, smf);
+            loader.addPropertyChangeListener((PropertyChangeEvent evt) -> {
+                if ("progress".equals(evt.getPropertyName())) {
+                    view.showLoading((Integer)evt.getNewValue());
+                }
+            });
+            view.showLoading(0);
+            loader.execute();
 
         } catch (Exception e) {
             if (e instanceof MidiUnavailableException) {
@@ -174,135 +268,407 @@ public class Page {
                 console.error("an error occured trying to load file", filename, ":", e);
             }
             addNewTrack();
+            startJournal(false);
         }
     }
 
-    private void loadTrack(Track track, int index) {
+    /* read a Guitar Pro, MusicXML or text tab file in one pass, notes going straight to their tracks */
+    private void loadTabFile(String filename) {
+        journal.stop();
+        basePath = new File(filename).getAbsolutePath();
+        stopLoading();
+        removeAllTracks();
+        midi.unMuteAllTracks();
+        File tabFile = new File(filename);
+        view.setTitle(tabFile.getName());
+        /* the tab readers all work in 960 ticks per quarter note */
+        resolution = GuitarProReader.RESOLUTION;
+        tempoMap = new TempoMap(resolution);
+        meterMap = new MeterMap(resolution);
+        numOfMeasures = minNumOfMeasures;
+        PageView.width = Math.max(minWidth, numOfMeasures * PageView.measureSize + PageView.measureSize);
+        view.reset();
+
+        try {
+            if (GuitarProReader.isGuitarProFile(filename)) {
+                GuitarProReader.read(tabFile, new TabLoader(this));
+            } else if (MusicXmlReader.isMusicXmlFile(filename)) {
+                MusicXmlReader.read(tabFile, new TabLoader(this));
+            } else {
+                AsciiTabReader.read(tabFile, new TabLoader(this));
+            }
+        } catch (IOException e) {
+            console.error("an error occured trying to load file", filename, ":", e);
+        }
+
+        /* only projects and midi are saved, so an imported file is never written over */
+        file = null;
+        view.setBPMField(tempoMap.getBPMAt(0));
+        view.reset();
+        if (tracks.size() == 0) {
+            addNewTrack();
+        } else {
+            selectTrack(tracks.get(0));
+        }
+        markSaved();
+        startJournal(true);
+    }
+
+    /* track for a track of a tab file, its notes still to come */
+    protected TrackController loadTabTrack(int index, String name, TrackType trackType,
+            int channel, int program, int volume) {
         TrackController trackController = new TrackController(this, index);
-        TrackType trackType = null;
-        ArrayList<Note> notes = new ArrayList<Note>();
-
-        for (int i = 0; i < track.size(); i++) {
-            MidiEvent event = track.get(i);
-            long tick = event.getTick();
-            MidiMessage message = event.getMessage();
-
-            if (message instanceof MetaMessage) {
-                MetaMessage metaMessage = (MetaMessage)message;
-                int messageType = metaMessage.getType();
-
-                if (messageType == 1) {
-                    // text
-                    String text = new String(metaMessage.getData());
-                    //console.log("found text in midi file:", text);
-                } else if (messageType == 3) {
-                    String trackName = new String(metaMessage.getData());
-                    trackController.setName(trackName);
-                } else if (messageType == 81) {
-                    /* BPM
-                     * https://stackoverflow.com/questions/22798345/
-                     * how-to-get-integer-value-from-byte-array-returned-by-metamessage-getdata
-                     */
-                    byte[] data = metaMessage.getData();
-                    int tempo = (data[0] & 0xff) << 16 | (data[1] & 0xff) << 8 | (data[2] & 0xff);
-                    BPM = 60000000 / tempo;
-                    view.setBPMField(BPM);
-                }
+        if (!StringChecker.isNullOrEmpty(name)) {
+            trackController.setName(name);
+        }
+        trackController.setTrackType(trackType);
+        trackController.setChannel(channel);
+        trackController.setInstrument(program);
+        trackController.setVolume(volume);
+        addTrack(trackController);
+        return trackController;
+    }
 
-            } else if (message instanceof ShortMessage) {
+    /*
+     * open a project: the file is mapped and every track goes up at once
+     * with its settings; ProjectLoader decodes their notes in the background
+     */
+    private void loadProjectFile(String filename) {
+        journal.stop();
+        basePath = new File(filename).getAbsolutePath();
+        stopLoading();
+        removeAllTracks();
+        midi.unMuteAllTracks();
+        file = new File(filename);
+        view.setTitle(file.getName());
+        try {
+            TofReader tof = TofReader.open(file);
+            resolution = tof.getResolution();
+            tempoMap = tof.getTempoMap();
+            meterMap = tof.getMeterMap();
+            view.setBPMField(tempoMap.getBPMAt(0));
+            view.setLoopFields(tof.getLoopStart(), tof.getLoopStop());
+            numOfMeasures = minNumOfMeasures;
+            PageView.width = Math.max(minWidth, numOfMeasures * PageView.measureSize + PageView.measureSize);
+            view.reset();
 
-                ShortMessage shortMessage = (ShortMessage)message;
+            List<TofReader.Track> loading = new ArrayList<>();
+            loadingTracks = new ArrayList<>();
+            for (int i = 0; i < tof.getTrackCount(); i++) {
+                TofReader.Track data = tof.getTrack(i);
+                loading.add(data);
+                loadingTracks.add(loadProjectTrack(data, tof.getClips(), i));
+            }
+            /* new clips are numbered on from the loaded ones */
+            clipCount = Math.max(clipCount, tof.getClips().size());
+            if (tracks.size() > 0) {
+                selectTrack(tracks.get(0));
+            }
 
-                int command = shortMessage.getCommand();
-                int pitch = shortMessage.getData1();
-                int velocity = shortMessage.getData2();
+            projectLoader = new ProjectLoader(this, loading);
+            projectLoader.addPropertyChangeListener((PropertyChangeEvent evt) -> {
+                if ("progress".equals(evt.getPropertyName())) {
+                    view.showLoading((Integer)evt.getNewValue());
+                }
+            });
+            view.showLoading(0);
+            projectLoader.execute();
+
+        } catch (IOException e) {
+            console.error("an error occured trying to load file", filename, ":", e);
+            file = null;
+            loadingTracks = null;
+            removeAllTracks();
+            addNewTrack();
+            startJournal(false);
+        }
+    }
 
-                if (command == ShortMessage.PROGRAM_CHANGE) {
+    /* track of a project with its settings and clips, its notes still to come */
+    private TrackController loadProjectTrack(TofReader.Track data, List<Clip> clips, int index) {
+        TrackType type;
+        if (data.trackType.equals("drums")) {
+            type = new TrackTypeDrums();
+        } else if (data.trackType.equals("bass")) {
+            type = new TrackTypeBass();
+        } else {
+            type = new TrackTypeGuitar();
+        }
+        type.setTuning(data.tuning);
+        TrackController trackController = loadTabTrack(index, data.name, type,
+                data.channel, data.instrument, data.volume);
+        trackController.setGridFraction(data.gridFraction);
+        trackController.setCollapsed(data.collapsed);
+        trackController.setMuted(data.muted);
+        for (int i = 0; i < data.clipIndexes.length; i++) {
+            ClipInstance instance = new ClipInstance(clips.get(data.clipIndexes[i]), data.clipOffsets[i]);
+            trackController.addClipInstance(instance);
+            growToTick(instance.getEnd());
+        }
+        return trackController;
+    }
 
-                    /*  get channel info from file, but use index if channel != 9 */
-                    int channel = shortMessage.getChannel();
-                    int instrumentNum = shortMessage.getData1();
+    /* called by projectLoader on the event thread with the notes and events of one track */
+    protected void loadProjectNotes(ProjectLoader from, int index, NoteStore notes, EventStore events) {
+        if (from != projectLoader) return;
+        TrackController trackController = loadingTracks.get(index);
+        trackController.loadNotes(notes);
+        trackController.setEvents(events);
+        long lastTick = 0;
+        for (int i = 0; i < notes.size(); i++) {
+            lastTick = Math.max(lastTick, notes.getEnd(i));
+        }
+        growToTick(lastTick);
+    }
 
-                    if (channel == 9) {
-                        trackType = new TrackTypeDrums();
-                        trackController.setChannel(channel);
-                    } else if (instrumentNum >= 32 && instrumentNum <= 39) {
-                        trackType = new TrackTypeBass();
-                        trackController.setChannel(index);
-                    } else {
-                        trackType = new TrackTypeGuitar();
-                        trackController.setChannel(index);
-                    }
+    /* called by projectLoader on the event thread when it is done or was cancelled */
+    protected void projectLoaded(ProjectLoader from, boolean completed) {
+        if (from != projectLoader) return;
+        projectLoader = null;
+        view.hideLoading();
+        if (!completed) {
+            /* what is loaded is not the whole file, so never save it over the file */
+            view.setTitle(file.getName() + " (partial)");
+            console.log("loading cancelled, only part of", file.getName(), "was loaded");
+            file = null;
+        }
+        loadingTracks = null;
+        markSaved();
+        startJournal(completed);
+    }
 
-                    trackController.setTrackType(trackType);
-                    //trackController.setChannel(channel);
-                    trackController.setInstrument(instrumentNum);
-
-                } else if (command == ShortMessage.CONTROL_CHANGE) {
-                    if (trackController != null) {
-                        switch(shortMessage.getData1()) {
-                            case 7:
-                                trackController.setVolume(shortMessage.getData2());
-                                break;
-                            case 8:
-                                // balance
-                                break;
-                            case 10:
-                                // pan
-                                break;
-                            case 91:
-                                // reverb
-                                break;
-                            case 92:
-                                // tremolo
-                                break;
-                            case 93:
-                                // chorus
-                                break;
-                            case 94:
-                                // formerly Celeste [Detune] Depth
-                                break;
-                            case 95:
-                                // phaser
-                                break;
-                        }
-                    }
-                    // console.log("Other shortMessage. Command:",shortMessage.getCommand(), shortMessage.getData1(), shortMessage.getData2());
-                } else if (command == ShortMessage.NOTE_ON && velocity > 0) {
-                    Note note = new Note();
-                    note.start = tick;
-                    note.pitch = pitch;
-                    note.velocity = velocity;
-                    notes.add(note);
-
-                } else if ((command == ShortMessage.NOTE_ON && velocity == 0) ||
-                            command == ShortMessage.NOTE_OFF) {
-                    /* loop backwards */
-                    for (int j = notes.size() - 1; j >= 0; j--) {
-                        Note trackNote = notes.get(j);
-                        if (trackNote.pitch == pitch) {
-                            //trackNote.duration = tick - trackNote.start;
-                            trackNote.duration = tick - trackNote.start;
-                            trackController.loadNote(trackNote);
-                            break;
-                        }
-                    }
+    /* make the track for data, without notes yet; null if it is not shown */
+    private TrackController loadTrack(SmfReader.TrackData data, int index) {
+        TrackController trackController = new TrackController(this, index);
+        TrackType trackType = null;
 
-                } else {
-                    // console.log("Other shortMessage. command:", command, shortMessage.getData1(), shortMessage.getData2());
-                    // command
-                    // 224 pitch bend
-                }
+        if (data.getName() != null) {
+            trackController.setName(data.getName());
+        }
 
+        int instrumentNum = data.getProgram();
+        if (instrumentNum >= 0) {
+            /*  get channel info from file, but use index if channel != 9 */
+            int channel = data.getProgramChannel();
+
+            if (channel == 9) {
+                trackType = new TrackTypeDrums();
+                trackController.setChannel(channel);
+            } else if (instrumentNum >= 32 && instrumentNum <= 39) {
+                trackType = new TrackTypeBass();
+                trackController.setChannel(index);
             } else {
-                // console.log("Other long message.", message);
+                trackType = new TrackTypeGuitar();
+                trackController.setChannel(index);
             }
+
+            trackController.setTrackType(trackType);
+            trackController.setInstrument(instrumentNum);
         }
 
+        loadTrackSettings(data, trackController);
+
         // right now only loading a track if there is an instrument (and trackType)
         // not loading first track from easybeat
         if (trackType != null) {
             addTrack(trackController);
+            return trackController;
+        }
+        return null;
+    }
+
+    /* track for one channel of a split format 0 file; the type comes from channel and program */
+    private TrackController loadChannelTrack(SmfReader.TrackData data, int index) {
+        TrackController trackController = new TrackController(this, index);
+        trackController.setName(data.getName());
+
+        int channel = data.getChannel();
+        int instrumentNum = Math.max(0, data.getProgram());
+        if (channel == 9) {
+            trackController.setTrackType(new TrackTypeDrums());
+        } else if (instrumentNum >= 32 && instrumentNum <= 39) {
+            trackController.setTrackType(new TrackTypeBass());
+        } else {
+            trackController.setTrackType(new TrackTypeGuitar());
+        }
+        trackController.setChannel(channel);
+        trackController.setInstrument(instrumentNum);
+
+        loadTrackSettings(data, trackController);
+        addTrack(trackController);
+        if (tracks.size() == 1) {
+            selectTrack(trackController);
+        }
+        return trackController;
+    }
+
+    /* volume; loaded again at the end as later events may change it */
+    private void loadTrackSettings(SmfReader.TrackData data, TrackController trackController) {
+        if (data.getVolume() >= 0) {
+            trackController.setVolume(data.getVolume());
+        }
+    }
+
+    /* called by loader on the event thread with the next notes of every track */
+    protected void loadNotes(FileLoader from, List<NoteStore> notes, TempoMap tempos, MeterMap meters) {
+        if (from != loader) return;
+        /* changes only ever come after what is loaded already, so nothing shown moves */
+        tempoMap = tempos;
+        if (meters != meterMap) {
+            meterMap = meters;
+            view.reset();
+        }
+        long lastTick = 0;
+        for (int i = 0; i < notes.size(); i++) {
+            TrackController trackController = loadingTracks.get(i);
+            NoteStore store = notes.get(i);
+            SmfReader.TrackData data = loader.getReader().getTracks().get(i);
+            if (trackController == null && data.getChannel() >= 0 && store.size() > 0) {
+                trackController = loadChannelTrack(data, i);
+                loadingTracks.set(i, trackController);
+            }
+            if (trackController == null) {
+                trackController = loadPendingTrack(data, i);
+            }
+            NoteStore pending = pendingNotes.get(i);
+            for (int j = 0; j < store.size(); j++) {
+                lastTick = Math.max(lastTick, store.getEnd(j));
+                if (trackController != null) {
+                    trackController.loadNote(store.toNote(j));
+                } else if (pending != null) {
+                    pending.add(store.toNote(j));
+                }
+            }
+        }
+        growToTick(lastTick);
+    }
+
+    /*
+     * the track for a file track that had no program change before its first
+     * note, once one has been read; null while there is none.  The notes held
+     * back until then go in first
+     */
+    private TrackController loadPendingTrack(SmfReader.TrackData data, int index) {
+        NoteStore pending = pendingNotes.get(index);
+        if (pending == null || data.getProgram() < 0) return null;
+        TrackController trackController = loadTrack(data, index);
+        loadingTracks.set(index, trackController);
+        pendingNotes.set(index, null);
+        for (int j = 0; j < pending.size(); j++) {
+            trackController.loadNote(pending.toNote(j));
+        }
+        if (tracks.size() == 1) {
+            selectTrack(trackController);
+        }
+        return trackController;
+    }
+
+    /* called by loader on the event thread when it is done or was cancelled */
+    protected void fileLoaded(FileLoader from, boolean completed) {
+        if (from != loader) return;
+        SmfReader smf = loader.getReader();
+        loader = null;
+        view.hideLoading();
+
+        if (completed) {
+            tempoMap = smf.getTempoMap();
+            meterMap = smf.getMeterMap();
+            growToTick(smf.getTickLength());
+            for (int i = 0; i < loadingTracks.size(); i++) {
+                if (loadingTracks.get(i) == null) {
+                    loadPendingTrack(smf.getTracks().get(i), i);
+                }
+            }
+            loadEvents(smf);
+            for (int i = 0; i < loadingTracks.size(); i++) {
+                SmfReader.TrackData data = smf.getTracks().get(i);
+                if (loadingTracks.get(i) != null) {
+                    loadTrackSettings(data, loadingTracks.get(i));
+                }
+                if (data.getStuckNotes() > 0) {
+                    console.log("track", i, data.getName(), ":", data.getStuckNotes(),
+                            "note(s) without note off were ended at the end of the track");
+                }
+            }
+        } else {
+            /* what is loaded is not the whole file, so never save it over the file */
+            view.setTitle(file.getName() + " (partial)");
+            console.log("loading cancelled, only part of", file.getName(), "was loaded");
+            file = null;
+        }
+        if (tracks.size() == 0) {
+            addNewTrack();
+        }
+        loadingTracks = null;
+        pendingNotes = null;
+        markSaved();
+        startJournal(completed);
+    }
+
+    /*
+     * the song is now what basePath holds: journal the edits made to it from
+     * here, after replaying those of the last session when recovering
+     */
+    private void startJournal(boolean loaded) {
+        if (recovering && loaded) {
+            journal.replay();
+            journal.resume();
+        } else if (loaded) {
+            journal.start(basePath);
+        } else {
+            /* a partly loaded song cannot be built again, so it is not journaled */
+            journal.stop();
+        }
+        recovering = false;
+    }
+
+    /* give every shown track its other events; those of tracks not shown go to the first one */
+    private void loadEvents(SmfReader smf) {
+        EventStore orphans = new EventStore();
+        for (int i = 0; i < loadingTracks.size(); i++) {
+            EventStore events = smf.getTracks().get(i).getEvents();
+            if (loadingTracks.get(i) != null) {
+                loadingTracks.get(i).setEvents(events);
+            } else {
+                orphans.addAll(events);
+            }
+        }
+        if (orphans.size() > 0 && tracks.size() > 0) {
+            tracks.get(0).getEvents().addAll(orphans);
+        }
+    }
+
+    protected void cancelLoading() {
+        if (loader != null) {
+            loader.cancel(false);
+        }
+        if (projectLoader != null) {
+            projectLoader.cancel(false);
+        }
+    }
+
+    /* drop a load in progress without keeping its result */
+    private void stopLoading() {
+        if (loader != null) {
+            loader.cancel(false);
+            loader = null;
+            loadingTracks = null;
+            pendingNotes = null;
+            view.hideLoading();
+        }
+        if (projectLoader != null) {
+            projectLoader.cancel(false);
+            projectLoader = null;
+            loadingTracks = null;
+            view.hideLoading();
+        }
+    }
+
+    protected void growToTick(long tick) {
+        int measures = (int)tickToMeasure(tick);
+        if (measures > numOfMeasures) {
+            view.addMeasures(measures - numOfMeasures, minNumOfMeasures);
+            numOfMeasures = measures;
         }
     }
 
@@ -312,12 +678,30 @@ public class Page {
         }
     }
 
+    /* listen to note changes on every track, including ones added later */
+    public void addTrackListener(TrackListener listener) {
+        trackListeners.add(listener);
+        for (TrackController track : tracks) {
+            track.addTrackListener(listener);
+        }
+    }
+
+    /* the tracks in order, for the journal */
+    protected List<TrackController> getTrackList() {
+        return tracks;
+    }
+
     private void addTrack(TrackController track) {
+        songVersion += 1;
+        track.setJournaling(journal.isActive());
+        for (TrackListener listener : trackListeners) {
+            track.addTrackListener(listener);
+        }
         tracks.add(track);
         view.addTrackView(track.getView(), tracks.size());
     }
 
-    private void addNewTrack() {
+    protected void addNewTrack() {
         int numOfTracks = tracks.size();
         TrackController track = new TrackController(this, numOfTracks);
         track.setTrackType(new TrackTypeGuitar());
@@ -327,66 +711,118 @@ public class Page {
         track.setInstrument(0);
         track.setVolume(127);
         addTrack(track);
+        journal.trackAdded();
         selectTrack(track);
     }
 
     private void removeSelectedTrack() {
         if (selectedTrack != null) {
-            for (TrackController track : tracks) {
-                if (track == selectedTrack) {
-                    tracks.remove(track);
-                    break;
-                }
-            }
-            view.removeTrackView(selectedTrack.getView());
+            removeTrack(selectedTrack);
+        }
+    }
+
+    protected void removeTrack(TrackController track) {
+        int index = tracks.indexOf(track);
+        if (index >= 0) {
+            journal.trackRemoved(index);
+            tracks.remove(index);
+            track.dispose();
+            songVersion += 1;
         }
+        view.removeTrackView(track.getView());
     }
 
     private void removeAllTracks() {
+        songVersion += 1;
+        for (TrackController track : tracks) {
+            track.dispose();
+        }
         tracks.clear();
         view.removeAllTrackViews();
     }
 
     public void cutSelection() {
         clipboard = selectedTrack.cutSelectedNotes();
+        clipboardClip = null;
     }
 
     public void copySelection() {
         clipboard = selectedTrack.copySelectedNotes();
+        clipboardClip = null;
     }
 
     public void pasteSelection() {
         selectedTrack.pasteSelectedNotes(clipboard, true);
     }
 
+    /* every paste of the same copied notes places the same clip */
+    public void pasteSelectionAsClip() {
+        if (clipboard.isEmpty()) return;
+        if (clipboardClip == null) {
+            clipCount += 1;
+            clipboardClip = Clip.of("clip " + clipCount, clipboard);
+        }
+        selectedTrack.pasteClip(clipboardClip);
+    }
+
     protected void handleInsertBarsDialog(int numberToAdd, int addBefore, boolean allTracks) {
         if (numberToAdd > 0) {
+            addAction(new InsertBarsCommand(numberToAdd, addBefore, allTracks ? null : selectedTrack));
+        }
+    }
+
+    protected void handleRemoveBarsDialog(int start, int end, boolean allTracks) {
+        if (start > 0 && end > 0) {
+            addAction(new RemoveBarsCommand(start, end, allTracks ? null : selectedTrack));
+        }
+    }
+
+    /* to one track, or all of them when track is null; then tempo and meter changes move too */
+    protected void insertBars(int numberToAdd, int addBefore, TrackController track) {
+        if (numberToAdd > 0) {
+            journal.barsInserted(tracks.indexOf(track), numberToAdd, addBefore);
             numOfMeasures += numberToAdd;
             view.addMeasures(numberToAdd, minNumOfMeasures);
-            if (allTracks) {
-                for (TrackController track : tracks) {
-                    track.insertBars(numberToAdd, addBefore);
+            if (track == null) {
+                long insertAt = measureToTick(addBefore - 1);
+                long delta = measureToTick(addBefore - 1 + numberToAdd) - insertAt;
+                for (TrackController each : tracks) {
+                    each.insertBars(numberToAdd, addBefore);
                 }
+                tempoMap.insertTicks(insertAt, delta);
+                meterMap.insertTicks(insertAt, delta);
+                songVersion += 1;
+                view.reset();
             } else {
-                selectedTrack.insertBars(numberToAdd, addBefore);
+                track.insertBars(numberToAdd, addBefore);
             }
         }
     }
 
-    protected void handleRemoveBarsDialog(int start, int end, boolean allTracks) {
+    /* what came out of every track, in track order; empty if the bars were not removed */
+    protected List<TrackController.RemovedBars> removeBars(int start, int end, TrackController track) {
         int numberToRemove = end - start + 1;
+        List<TrackController.RemovedBars> removed = new ArrayList<>();
         if (start > 0 && end > 0) {
-            if (allTracks) {
+            journal.barsRemoved(tracks.indexOf(track), start, end);
+            if (track == null) {
+                long removeFrom = measureToTick(start - 1);
+                long removeTo = measureToTick(end);
                 numOfMeasures -= numberToRemove;
                 numOfMeasures = Math.max(numOfMeasures, minNumOfMeasures);
                 view.addMeasures(-numberToRemove, minNumOfMeasures);
-                for (TrackController track : tracks) {
-                    track.removeBars(start, end);
+                for (TrackController each : tracks) {
+                    removed.add(each.removeBars(start, end));
                 }
+                tempoMap.removeTicks(removeFrom, removeTo);
+                meterMap.removeTicks(removeFrom, removeTo);
+                songVersion += 1;
+                view.reset();
             } else {
-                selectedTrack.removeBars(start, end);
+                removed.add(track.removeBars(start, end));
             }
         }
+        return removed;
     }
 
     private void playAll() {
@@ -398,10 +834,10 @@ public class Page {
         }
 
         int measureStart = view.getPlayStartField() - 1;
-        long startTime = measureStart * getTicksPerMeasure();
+        long startTime = measureToTick(measureStart);
 
         view.setScrollPositionToMeasure(measureStart);
-        midi.play(tracks, BPM, resolution, startTime, isLooping);
+        midi.play(tracks, tempoMap, meterMap, startTime, isLooping);
         isPlaying = true;
         view.showPlaying();
         progressTimer.start();
@@ -409,7 +845,7 @@ public class Page {
 
     public void playNote(Note note, TrackController track) {
         midi.stop();
-        midi.playNote(note, track, BPM, resolution);
+        midi.playNote(note, track, tempoMap, meterMap);
         isPlaying = true;
     }
 
@@ -417,13 +853,31 @@ public class Page {
         midi.stop();
         List<Note> selection = track.getSelection();
         if (selection.size() > 0) {
-            midi.playSelection(track, BPM, resolution);
+            midi.playSelection(track, tempoMap, meterMap);
             isPlaying = true;
         }
     }
 
+    /* ticks in the first measure; use tickToMeasure and measureToTick for positions */
     public int getTicksPerMeasure() {
-        return resolution * 4;
+        return meterMap.getTicksPerMeasureAt(0);
+    }
+
+    /* zero based measure position of tick, following the time signature changes */
+    public double tickToMeasure(long tick) {
+        return meterMap.tickToMeasure(tick);
+    }
+
+    public long measureToTick(double measure) {
+        return meterMap.measureToTick(measure);
+    }
+
+    public TempoMap getTempoMap() {
+        return tempoMap;
+    }
+
+    public MeterMap getMeterMap() {
+        return meterMap;
     }
 
     private void stopAll() {
@@ -440,26 +894,40 @@ public class Page {
         Actions.add(action);
     }
 
-    private String generateChecksum() {
-        String result = "";
-        try {
-            File tempFile = File.createTempFile("temp", "");
-            tempFile.deleteOnExit();
-            midi.writeToFile(tempFile, tracks, BPM, resolution);
-            result = Checksum.generate(tempFile.getAbsolutePath());
-        } catch (Exception ex) {
-            console.error("an error occured trying to save temp file", ex);
+    /* remember the song as it is now as the saved one */
+    private void markSaved() {
+        savedSongVersion = songVersion;
+        savedTrackVersions = getTrackVersions();
+    }
+
+    private long[] getTrackVersions() {
+        long[] versions = new long[tracks.size()];
+        for (int i = 0; i < tracks.size(); i++) {
+            versions[i] = tracks.get(i).getVersion();
         }
-        return result;
+        return versions;
+    }
+
+    /* anything that would be saved changed since the last save or load */
+    public boolean isModified() {
+        if (songVersion != savedSongVersion || savedTrackVersions.length != tracks.size()) {
+            return true;
+        }
+        for (int i = 0; i < tracks.size(); i++) {
+            if (tracks.get(i).getVersion() != savedTrackVersions[i]) {
+                return true;
+            }
+        }
+        return false;
     }
 
     private boolean checkForSaved() {
         boolean ready = true;
-        String currentChecksum = generateChecksum();
-        if (!currentChecksum.equals(fileChecksum)) {
+        if (isModified()) {
             String test = view.showUnsavedDialog();
             if (test.equals("save")) {
-                ready = saveFile();
+                /* the song is about to be dropped, so it has to be on disk first */
+                ready = saveFile() && waitForSave();
             } else if (test.equals("cancel")) {
                 ready = false;
             }
@@ -480,6 +948,8 @@ public class Page {
             setPreference("midiDirectory", "midi");
         }
 
+        /* the edits stay in the journal if they could not be saved */
+        journal.close(!waitForSave());
         savePreferences();
         midi.close();
         view.close();
@@ -511,7 +981,7 @@ public class Page {
         if (ready == false) return;
 
         String path = getPathToMidiFiles();
-        String fileName = view.showFileChooser("mid", path);
+        String fileName = view.showFileChooser("tof,mid,gp3,gp4,gp5,musicxml,xml,tab,txt", path);
         if (!StringChecker.isNullOrEmpty(fileName)) {
             loadFile(fileName);
         }
@@ -522,18 +992,15 @@ public class Page {
         String path = getPathToMidiFiles();
         String currentFileName = "";
 
+        /* songs are saved as projects unless a .mid name is given; midi is otherwise exported */
         if (file != null) {
-            currentFileName = file.getName();
+            currentFileName = file.getName().replaceFirst("\\.[^.]*$", "") + ".tof";
         }
 
-        String newFileName = view.showFileSaver("mid", path, currentFileName);
+        String newFileName = view.showFileSaver("tof,mid", path, currentFileName);
         if (!StringChecker.isNullOrEmpty(newFileName)) {
-            file = new File(newFileName);
-            midi.writeToFile(file, tracks, BPM, resolution);
-            fileChecksum = generateChecksum();
-            view.setTitle(file.getName());
-            setPathToMidiFiles(file.getParent());
-            console.log("file saved as", newFileName);
+            /* the song only takes the new name once it is saved under it */
+            startSave(new File(newFileName));
             return true;
         }
         return false;
@@ -541,15 +1008,115 @@ public class Page {
 
     private boolean saveFile() {
         if (file != null) {
-            midi.writeToFile(file, tracks, BPM, resolution);
-            fileChecksum = generateChecksum();
-            console.log("file saved");
+            startSave(file);
             return true;
         } else {
             return saveFileAs();
         }
     }
 
+    /* copy what gets saved and write it in the background; editing can go on meanwhile */
+    private void startSave(File target) {
+        journal.collect();
+        if (saver == null) {
+            titleBeforeSave = view.getTitle();
+        }
+        saver = new FileSaver(this, target, getTrackStates(), new TempoMap(tempoMap), new MeterMap(meterMap),
+                view.getLoopStartField(), view.getLoopStopField(),
+                songVersion, getTrackVersions(), journal.getSequence(), false);
+        view.setTitle(target.getName() + " (saving)");
+        saver.start();
+    }
+
+    /* clips used on more than one track are copied once and stay shared */
+    private List<TrackState> getTrackStates() {
+        Map<Clip, Clip> clipCopies = new IdentityHashMap<>();
+        List<TrackState> states = new ArrayList<TrackState>();
+        for (TrackController track : tracks) {
+            states.add(track.getState(clipCopies));
+        }
+        return states;
+    }
+
+    /* called by a saver on the event thread; error is null when the file was saved */
+    protected void fileSaved(FileSaver from, Throwable error) {
+        /* an older save finishing after a load or a newer save says nothing about now */
+        boolean current = from.songVersion >= savedSongVersion;
+        if (from == saver) {
+            saver = null;
+        }
+        if (error != null) {
+            /* the song keeps the file it had; a failed Save As leaves it unnamed as before */
+            if (!from.export && current && saver == null) {
+                view.setTitle(file != null ? file.getName() : titleBeforeSave);
+            }
+            view.showSaveProblem(from.getFile().getName(), error.getMessage());
+            return;
+        }
+        if (from.export) {
+            if (from == exporter) {
+                exporter = null;
+            }
+            console.log("exported", from.getFile());
+            return;
+        }
+        if (current) {
+            savedSongVersion = from.songVersion;
+            savedTrackVersions = from.trackVersions;
+            file = from.getFile();
+            setPathToMidiFiles(file.getParent());
+            basePath = file.getAbsolutePath();
+            journal.checkpoint(from.journalSequence, basePath);
+            if (saver == null) {
+                view.setTitle(file.getName());
+            }
+        }
+        console.log("file saved", from.getFile());
+    }
+
+    /* wait for the last save started (and so all of them) to finish; false if it failed */
+    private boolean waitForSave() {
+        if (exporter != null) {
+            try {
+                exporter.get();
+            } catch (Exception ex) {
+                console.error("an error occured waiting for export:", ex);
+            }
+        }
+        if (saver == null) return true;
+        try {
+            saver.get();
+            return true;
+        } catch (Exception ex) {
+            console.error("an error occured waiting for save:", ex);
+            return false;
+        }
+    }
+
+    /* write the song as a standard MIDI file, in the background; the song's own file stays as it is */
+    private void exportMidi() {
+        String path = getPathToMidiFiles();
+        String name = file == null ? "" : file.getName().replaceFirst("\\.[^.]*$", "") + ".mid";
+        String fileName = view.showFileSaver("mid", path, name);
+        if (StringChecker.isNullOrEmpty(fileName)) return;
+        exporter = new FileSaver(this, new File(fileName), getTrackStates(), new TempoMap(tempoMap),
+                new MeterMap(meterMap), 0, 0, songVersion, getTrackVersions(), journal.getSequence(), true);
+        exporter.start();
+    }
+
+    private void exportMusicXml() {
+        String path = getPathToMidiFiles();
+        String name = file == null ? "" : file.getName().replaceFirst("\\.[^.]*$", "") + ".musicxml";
+        String fileName = view.showFileSaver("musicxml", path, name);
+        if (StringChecker.isNullOrEmpty(fileName)) return;
+        try {
+            MusicXmlWriter.write(new File(fileName), tracks, tempoMap, meterMap);
+            console.log("exported", fileName);
+        } catch (IOException ex) {
+            console.error("an error occured trying to export", fileName, ":", ex);
+        }
+    }
+
     private void openSoundFont() {
         String sf2 = view.showFileChooser("sf2", "sf2");
         if (!StringChecker.isNullOrEmpty(sf2)) {
@@ -631,6 +1198,12 @@ public class Page {
             case MENU_FILE_SAVEAS:
                 saveFileAs();
                 break;
+            case MENU_FILE_EXPORTMIDI:
+                exportMidi();
+                break;
+            case MENU_FILE_EXPORTMUSICXML:
+                exportMusicXml();
+                break;
             case MENU_FILE_CLOSE:
                 shutDown();
                 break;
@@ -670,6 +1243,15 @@ public class Page {
             case MENU_EDIT_PASTE:
                 pasteSelection();
                 break;
+            case MENU_EDIT_PASTECLIP:
+                pasteSelectionAsClip();
+                break;
+            case MENU_EDIT_OPENCLIP:
+                selectedTrack.openSelectedClip();
+                break;
+            case MENU_EDIT_CLOSECLIP:
+                selectedTrack.closeOpenClip();
+                break;
             case MENU_EDIT_SELECTALL:
                 selectedTrack.selectAllNotes();
                 break;
@@ -728,16 +1310,29 @@ public class Page {
 
             case FIELD_LOOPSTART:
             case FIELD_LOOPSTOP:
+                /* the loop range is saved with the project */
+                songVersion += 1;
                 setLoop();
                 break;
             case FIELD_BPM:
-                BPM = view.getBPMField();
+                setBPM(view.getBPMField());
+                break;
+            case BUTTON_CANCELLOAD:
+                cancelLoading();
                 break;
             default:
         }
         view.setFocus();
     }
 
+    /* the field sets the opening tempo; later changes stay */
+    protected void setBPM(int bpm) {
+        tempoMap.setBPM(0, bpm);
+        songVersion += 1;
+        journal.tempo(bpm);
+        view.setBPMField(bpm);
+    }
+
     public void handleMuteButton(TrackController track, boolean muted) {
         int index = tracks.indexOf(track);
         midi.muteTrack(index, muted);
@@ -759,21 +1354,27 @@ public class Page {
             view.showPlayLoopProblem();
             return false;
         }
-        midi.loopStart = loopStart * getTicksPerMeasure();
-        midi.loopStop = (loopStop + 1) * getTicksPerMeasure();
+        midi.loopStart = measureToTick(loopStart);
+        midi.loopStop = measureToTick(loopStop + 1);
 
         return true;
     }
 
     private void handleProgressTimer(long tick) {
-        double progress = (double)tick / getTicksPerMeasure();
+        double progress = tickToMeasure(tick);
 
         view.showProgress(progress);
+        view.showInfo(formatTime(tempoMap.tickToSeconds(tick)));
         for (TrackController track : tracks) {
             track.setProgress(progress, tick);
         }
     }
 
+    private String formatTime(double seconds) {
+        int minutes = (int)(seconds / 60);
+        return String.format("%d:%04.1f", minutes, seconds - minutes * 60);
+    }
+
     public VelocitySlider showVelocitySlider(MouseEvent evt, int averageVelocity) {
         return view.showVelocitySlider(evt, averageVelocity);
     }
@@ -787,6 +1388,77 @@ public class Page {
         return "Page";
     }
 
+    class InsertBarsCommand extends Actions.Item {
+
+        int numberToAdd;
+        int addBefore;
+        TrackController track;
+
+        public InsertBarsCommand(int numberToAdd, int addBefore, TrackController track) {
+            this.name = "insertBars";
+            this.numberToAdd = numberToAdd;
+            this.addBefore = addBefore;
+            this.track = track;
+        }
+
+        public void execute() {
+            insertBars(numberToAdd, addBefore, track);
+        }
+
+        public void redo() {
+            execute();
+        }
+
+        /* the new bars are empty again by the time this is undone */
+        public void undo() {
+            removeBars(addBefore, addBefore + numberToAdd - 1, track);
+        }
+    }
+
+    class RemoveBarsCommand extends Actions.Item {
+
+        int start;
+        int end;
+        TrackController track;
+        List<TrackController> removedFrom;
+        List<TrackController.RemovedBars> removed;
+        TempoMap tempoMapBefore;
+        MeterMap meterMapBefore;
+
+        public RemoveBarsCommand(int start, int end, TrackController track) {
+            this.name = "removeBars";
+            this.start = start;
+            this.end = end;
+            this.track = track;
+        }
+
+        public void execute() {
+            tempoMapBefore = new TempoMap(tempoMap);
+            meterMapBefore = new MeterMap(meterMap);
+            removedFrom = track == null ? new ArrayList<TrackController>(tracks) : Arrays.asList(track);
+            removed = removeBars(start, end, track);
+        }
+
+        public void redo() {
+            execute();
+        }
+
+        public void undo() {
+            for (int i = 0; i < removed.size(); i++) {
+                removedFrom.get(i).restoreBars(removed.get(i));
+            }
+            if (track == null) {
+                tempoMap = tempoMapBefore;
+                meterMap = meterMapBefore;
+                int numberToRestore = end - start + 1;
+                numOfMeasures += numberToRestore;
+                view.addMeasures(numberToRestore, minNumOfMeasures);
+                songVersion += 1;
+                view.reset();
+            }
+        }
+    }
+
     class SelectTrackCommand extends Actions.Item {
 
         TrackController newSelected;
@@ -147,6 +147,16 @@ class PageMenu extends JMenuBar {
             fileSaveAs.setActionConstant(Constants.MENU_FILE_SAVEAS);
             add(fileSaveAs);
 
+            MenuItem fileExportMidi = new MenuItem("Export MIDI...");
+            fileExportMidi.setAccessible("Export Song As MIDI");
+            fileExportMidi.setActionConstant(Constants.MENU_FILE_EXPORTMIDI);
+            add(fileExportMidi);
+
+            MenuItem fileExportMusicXml = new MenuItem("Export MusicXML...");
+            fileExportMusicXml.setAccessible("Export Tracks As MusicXML");
+            fileExportMusicXml.setActionConstant(Constants.MENU_FILE_EXPORTMUSICXML);
+            add(fileExportMusicXml);
+
             MenuItem fileClose = new MenuItem("Close");
             fileClose.setAccessible("Close File");
             fileClose.setCommandKey("W");
@@ -199,6 +209,21 @@ class PageMenu extends JMenuBar {
             editPaste.setActionConstant(Constants.MENU_EDIT_PASTE);
             add(editPaste);
 
+            MenuItem editPasteClip = new MenuItem("Paste As Clip");
+            editPasteClip.setAccessible("Paste Copied Notes As A Linked Clip");
+            editPasteClip.setActionConstant(Constants.MENU_EDIT_PASTECLIP);
+            add(editPasteClip);
+
+            MenuItem editOpenClip = new MenuItem("Open Clip");
+            editOpenClip.setAccessible("Edit The Notes Of The Selected Clip");
+            editOpenClip.setActionConstant(Constants.MENU_EDIT_OPENCLIP);
+            add(editOpenClip);
+
+            MenuItem editCloseClip = new MenuItem("Close Clip");
+            editCloseClip.setAccessible("Make The Selected Notes The Open Clip Again");
+            editCloseClip.setActionConstant(Constants.MENU_EDIT_CLOSECLIP);
+            add(editCloseClip);
+
             //MenuItem editClear = new MenuItem("Clear");
             //editClear.setAccessible("Clear Selected Notes");
             //editClear.setActionConstant(Constants.MENU_EDIT_CLEAR);
@@ -5,6 +5,7 @@ import java.awt.event.*;
 
 import javax.swing.*;
 
+import midi.MeterMap;
 import themes.ThemeReader;
 import utils.console;
 
@@ -141,6 +142,15 @@ class PageNumberBar extends JPanel {
                 height);
         }
 
+        // draw time signatures where they change (and at the start unless 4/4)
+        MeterMap meterMap = page.getMeterMap();
+        for (int i = 0; i < meterMap.size(); i++) {
+            if (i == 0 && meterMap.getNumerator(0) == 4 && meterMap.getDenominator(0) == 4) continue;
+            String meter = meterMap.getNumerator(i) + "/" + meterMap.getDenominator(i);
+            int x = lMargin + (int)(meterMap.getMeasure(i) * PageView.measureSize);
+            g2.drawString(meter, x + 3, height/3);
+        }
+
         // draw horizontal line
         g2.drawLine(
             lMargin,
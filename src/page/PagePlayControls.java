@@ -18,6 +18,8 @@ class PagePlayControls extends JPanel {
     protected NumberInputField loopStopField;
     protected NumberInputField BPMField;
     public JTextField infoField;
+    protected JProgressBar loadingBar;
+    protected JButton cancelLoadButton;
 
     private Icon playIcon = new ImageIcon("assets/media-playback-start.png");
     private Icon stopIcon = new ImageIcon("assets/media-playback-stop.png");
@@ -111,6 +113,34 @@ class PagePlayControls extends JPanel {
         infoField.setText("info");
 
         add(infoField);
+
+        add(Box.createHorizontalStrut(15));
+        loadingBar = new JProgressBar(0, 100);
+        loadingBar.setStringPainted(true);
+        loadingBar.setPreferredSize(new Dimension(120, 20));
+        loadingBar.setMaximumSize(new Dimension(120, 20));
+        loadingBar.setVisible(false);
+        add(loadingBar);
+
+        cancelLoadButton = new JButton("Cancel");
+        cancelLoadButton.setFocusPainted(false);
+        cancelLoadButton.setVisible(false);
+        cancelLoadButton.addActionListener((ActionEvent ae) -> {
+            pageController.handlePlayControls(Constants.BUTTON_CANCELLOAD);
+        });
+        add(cancelLoadButton);
+    }
+
+    protected void showLoading(int percent) {
+        loadingBar.setValue(percent);
+        loadingBar.setString("loading " + percent + "%");
+        loadingBar.setVisible(true);
+        cancelLoadButton.setVisible(true);
+    }
+
+    protected void hideLoading() {
+        loadingBar.setVisible(false);
+        cancelLoadButton.setVisible(false);
     }
 
     protected void showPlaying() {
@@ -217,6 +217,10 @@ public class PageView {
         frame.setTitle(title);
     }
 
+    protected String getTitle() {
+        return frame.getTitle();
+    }
+
     protected void setVisible(boolean tf) {
         frame.setVisible(tf);
     }
@@ -255,6 +259,15 @@ public class PageView {
         }
     }
 
+    /* show how much of a file being opened is loaded, in percent */
+    protected void showLoading(int percent) {
+        playControls.showLoading(percent);
+    }
+
+    protected void hideLoading() {
+        playControls.hideLoading();
+    }
+
     private void handleHorizontalScrollBar(int value) {
         scrollPosition = PageView.measureSize * (value/PageView.measureSize);
         numberBar.setScrollPosition(scrollPosition);
@@ -406,6 +419,11 @@ public class PageView {
         return playControls.loopStopField.getValue();
     }
 
+    protected void setLoopFields(int start, int stop) {
+        playControls.loopStartField.setValue(start);
+        playControls.loopStopField.setValue(stop);
+    }
+
     protected void showPlaying() {
         playControls.showPlaying();
         menuBar.toggleMusicPlay(Constants.BUTTON_STOP);
@@ -458,6 +476,18 @@ public class PageView {
         JOptionPane.showMessageDialog(frame,"Loop stop must be greater than or equal to loop start");
     }
 
+    protected boolean showRecoverDialog(int edits) {
+        int a = JOptionPane.showConfirmDialog(frame,
+                "The last session ended with " + edits + " unsaved edit(s). Would you like to recover them?",
+                "Recover", JOptionPane.YES_NO_OPTION);
+        return a == JOptionPane.YES_OPTION;
+    }
+
+    protected void showSaveProblem(String fileName, String reason) {
+        JOptionPane.showMessageDialog(frame, "Could not save " + fileName + ": " + reason
+                + "\nThe file on disk was not changed.");
+    }
+
     protected void  showInsertBarsDialog(int x, int y) {
         InsertBarsDialog insertBarsDialog = new InsertBarsDialog(frame, x, y);
         insertBarsDialog.addWindowListener(new WindowAdapter() {
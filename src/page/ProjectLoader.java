@@ -0,0 +1,75 @@
+package page;
+
+import java.util.List;
+
+import javax.swing.SwingWorker;
+
+import formats.TofReader;
+import note.EventStore;
+import note.NoteStore;
+import utils.console;
+
+
+/**
+ * Decodes the notes and events of an opened project in the background.
+ *
+ * The tracks are already up with their settings by the time this runs;
+ * every track's chunk of the mapped file is decoded on its own, in track
+ * order, and handed to the page on the event thread as soon as it is done,
+ * so the first tracks can be worked on while later ones still load.
+ */
+class ProjectLoader extends SwingWorker<Void, ProjectLoader.Loaded> {
+
+    private final Page page;
+    private final List<TofReader.Track> tracks;
+
+    /* the notes and events of one track */
+    static class Loaded {
+        final int index;
+        final NoteStore notes;
+        final EventStore events;
+
+        Loaded(int index, NoteStore notes, EventStore events) {
+            this.index = index;
+            this.notes = notes;
+            this.events = events;
+        }
+    }
+
+    ProjectLoader(Page page, List<TofReader.Track> tracks) {
+        this.page = page;
+        this.tracks = tracks;
+    }
+
+    @Override
+    protected Void doInBackground() throws Exception {
+        for (int i = 0; i < tracks.size() && !isCancelled(); i++) {
+            TofReader.Track track = tracks.get(i);
+            publish(new Loaded(i, track.readNotes(), track.readEvents()));
+            setProgress((i + 1) * 100 / tracks.size());
+        }
+        return null;
+    }
+
+    @Override
+    protected void process(List<Loaded> loaded) {
+        for (Loaded track : loaded) {
+            page.loadProjectNotes(this, track.index, track.notes, track.events);
+        }
+    }
+
+    @Override
+    protected void done() {
+        boolean completed = !isCancelled();
+        if (completed) {
+            try {
+                get();
+            } catch (Exception ex) {
+                console.error("an error occured trying to load notes:", ex.getCause());
+                completed = false;
+            }
+        }
+        page.projectLoaded(this, completed);
+    }
+
+}
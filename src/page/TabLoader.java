@@ -0,0 +1,78 @@
+package page;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import formats.TabSink;
+import note.Note;
+import track.TrackController;
+import track.TrackType;
+import track.TrackTypeBass;
+import track.TrackTypeDrums;
+import track.TrackTypeGuitar;
+
+
+/**
+ * Puts what a tab reader reads straight into the page: a track for every
+ * track of the file and every note into its track as it comes.
+ *
+ * A track whose tuning fits its type (six strings for guitar, four for
+ * bass) is retuned and its notes keep the string and fret they were
+ * written on; other tracks place their notes from the pitch, as for MIDI.
+ */
+class TabLoader implements TabSink {
+
+    private final Page page;
+    private List<TrackController> tracks = new ArrayList<>();
+    private List<Boolean> keepStrings = new ArrayList<>();
+
+    TabLoader(Page page) {
+        this.page = page;
+    }
+
+    @Override
+    public void track(int track, String name, int channel, int program, int volume, int[] tuning, boolean drums) {
+        TrackType type;
+        if (drums) {
+            type = new TrackTypeDrums();
+        } else if (tuning.length == 4 || (program >= 32 && program <= 39)) {
+            type = new TrackTypeBass();
+        } else {
+            type = new TrackTypeGuitar();
+        }
+        keepStrings.add(!drums && type.setTuning(tuning));
+        tracks.add(page.loadTabTrack(track, name, type, drums ? 9 : channel, program, volume));
+    }
+
+    @Override
+    public void tempo(long tick, int bpm) {
+        page.getTempoMap().setBPM(tick, bpm);
+    }
+
+    @Override
+    public void timeSignature(long tick, int numerator, int denominator) {
+        page.getMeterMap().set(tick, numerator, denominator);
+    }
+
+    @Override
+    public void note(int track, long start, long duration, int pitch, int velocity, int stringNum, int fret) {
+        Note note = new Note();
+        note.start = start;
+        note.duration = duration;
+        note.pitch = pitch;
+        note.velocity = velocity;
+        if (keepStrings.get(track) && stringNum >= 0) {
+            note.stringNum = stringNum;
+            note.fret = fret;
+            tracks.get(track).loadTabNote(note);
+        } else {
+            tracks.get(track).loadNote(note);
+        }
+    }
+
+    @Override
+    public void measure(int measure, long endTick) {
+        page.growToTick(endTick);
+    }
+
+}
@@ -8,20 +8,34 @@ import java.awt.event.*;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.swing.SwingUtilities;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 
 import actions.Actions;
 import instruments.Instrument;
+import note.Clip;
+import note.ClipInstance;
+import note.EventStore;
 import note.Note;
+import note.NoteColumns;
+import note.NoteIndex;
+import note.NoteList;
+import note.NoteSelection;
+import note.NoteSnapshot;
+import note.NoteStore;
 import page.Page;
 import page.PageView;
 import themes.ThemeReader;
 import utils.BiMap;
 import utils.console;
 import utils.BoundedRange;
+import widgets.GridSizePicker;
 import widgets.VelocitySlider;
 
 interface MouseStrategy {
@@ -43,6 +57,7 @@ public class TrackController {
     private MouseStrategy lengthenNote = new NoteLengthStrategy();
     private MouseStrategy lengthenNoteTentative = new NoteLengthTentativeStrategy();
     private MouseStrategy setNoteVelocity = new NoteVelocityStrategy();
+    private MouseStrategy moveClip = new ClipMoveStrategy();
     private MouseStrategy nullStrategy = new NullStrategy();
     private MouseStrategy mouseStrategy;
 
@@ -52,11 +67,40 @@ public class TrackController {
     private VelocitySlider vSlider;
 
     private Note selectedNote;
-    protected Note.List notes = new Note.List();
-    private Note.List tabbedNotes = new Note.List();
-    private Note.List selection = new Note.List();
+    protected NoteList notes = new NoteList();
+    private NoteIndex noteIndex = new NoteIndex();
+    private NoteSnapshot.Builder snapshots = new NoteSnapshot.Builder(1);
+    private NoteSelection tabbedNotes = new NoteSelection();
+    private NoteSelection selection = new NoteSelection();
+    private Edit edit;
+    private int editDepth = 0;
+
+    /* for the edit journal: notes touched since it last took the changes, as they were then */
+    private boolean journaling = false;
+    private Map<Note, NoteState> journalBefore = new IdentityHashMap<Note, NoteState>();
+    private boolean settingsChanged = false;
+    private boolean unjournaled = false;
+
+    private List<TrackListener> listeners = new ArrayList<TrackListener>();
+    private int pendingChanges = 0;
+    private long pendingFrom = Long.MAX_VALUE;
+    private long pendingTo = Long.MIN_VALUE;
+    private boolean eventScheduled = false;
+    private List<ClipInstance> clipInstances = new ArrayList<ClipInstance>();
+    private ClipInstance selectedClip;
+    /* the instance whose notes are out on the track to be edited, if any */
+    private ClipInstance openClip;
+    private long clipDragFrom;
+    private EventStore events = new EventStore();
+    private ChangeListener clipListener = new ChangeListener() {
+        public void stateChanged(ChangeEvent evt) {
+            clipChanged((Clip)evt.getSource());
+        }
+    };
     private String name = "untitled track";
     private int index;
+    /* goes up with every change that would be saved */
+    private long version = 0;
     private int channel;
     private int volume;
     private Instrument instrument;
@@ -68,6 +112,7 @@ public class TrackController {
         trackType = new TrackType();
         view = new TrackView(this, name);
         view.showGridSize("1/8");
+        addTrackListener(view);
     }
 
     private int calcGridSize() {
@@ -128,11 +173,12 @@ public class TrackController {
             if (x <= dragStart.x ||
                     Math.abs(y - dragStart.y) > ThemeReader.getMeasure("track.strings.spacing")) {
                 mouseStrategy = dragSelectorRect;
+                touch(selectedNote);
                 notes.remove(selectedNote);
-                view.drawNote(selectedNote);
 
                 /* set duration to 0 to remove from gui */
                 selectedNote.duration = 0;
+                notesChanged(selectedNote, TrackEvent.REMOVED);
             } else if (!trackType.isDrums()) {
                 int x2 = findNearestGrid(x);
                 int diffX = x2 - dragStartGrid.x;
@@ -172,6 +218,16 @@ public class TrackController {
         }
     }
 
+    class ClipMoveStrategy implements MouseStrategy {
+        @Override
+        public void doIt(MouseEvent evt) {
+            if (selectedClip == null) return;
+            int x2 = findNearestGrid(evt.getX());
+            long offset = clipDragFrom + xToTick(x2) - xToTick(dragStartGrid.x);
+            moveClipInstance(selectedClip, Math.max(0, offset));
+        }
+    }
+
     //////////////////   end MouseStrategy classes  //////////////////
 
     //////////////////   Action Classes  //////////////////
@@ -183,7 +239,7 @@ public class TrackController {
         int x;
         int y;
 
-        public NoteMoveAction(TrackController track, ArrayList<Note> notes, int x, int y, int series) {
+        public NoteMoveAction(TrackController track, List<Note> notes, int x, int y, int series) {
             this.name = "moveNote(s)";
             this.track = track;
             this.notes = new ArrayList<Note>(notes);
@@ -197,19 +253,23 @@ public class TrackController {
         }
 
         public void redo() {
+            beginEdit();
             clearSelection();
             for (Note note : this.notes) {
                 selectNote(note);
             }
             moveSelectedNotes(notes, x, y);
+            commit();
         }
 
         public void undo() {
+            beginEdit();
             clearSelection();
             for (Note note : this.notes) {
                 selectNote(note);
             }
             moveSelectedNotes(notes, -x, -y);
+            commit();
         }
     }
 
@@ -236,7 +296,7 @@ public class TrackController {
                 clearSelection();
                 loadNote(this.note);
                 selectNote(note);
-                view.drawNote(this.note);
+                redraw(this.note);
             }
         }
 
@@ -247,14 +307,14 @@ public class TrackController {
 
     class NotePasteAction extends Actions.Item {
         TrackController track;
-        Note.List notesToLoad;
+        NoteList notesToLoad;
         boolean fromClipboard;
 
-        public NotePasteAction(TrackController track, Note.List notes, boolean fromClipboard) {
+        public NotePasteAction(TrackController track, NoteList notes, boolean fromClipboard) {
             this.name = "loadNote(s)";
             this.track = track;
             this.fromClipboard = fromClipboard;
-            notesToLoad = new Note.List();
+            notesToLoad = new NoteList();
                 for (Note note : notes) {
                 Note clone = note.clone();
                 notesToLoad.add(clone);
@@ -264,19 +324,20 @@ public class TrackController {
         public void execute() {
             pageController.selectTrack(track);
             clearSelection();
-            this.notesToLoad.sortByStart();
             long diff = 0;
             if (fromClipboard) {
                 Note firstNote = this.notesToLoad.get(0);
                 int scrolledMeasure = view.currentScroll / PageView.measureSize;
-                long ticksScrolled = scrolledMeasure * pageController.getTicksPerMeasure();
+                long ticksScrolled = pageController.measureToTick(scrolledMeasure);
                 diff = firstNote.start - ticksScrolled;
             }
+            this.notesToLoad.shiftFrom(0, -diff);
+            beginEdit();
             for (Note note : this.notesToLoad) {
-                note.start -= diff;
                 loadNote(note);
                 selectNote(note);
             }
+            commit();
         }
 
         public void redo() {
@@ -285,9 +346,11 @@ public class TrackController {
 
         public void undo() {
             pageController.selectTrack(track);
+            beginEdit();
             for (Note note : this.notesToLoad) {
                 selectNote(note);
             }
+            commit();
             pageController.cutSelection();
         }
     }
@@ -297,7 +360,7 @@ public class TrackController {
         int diffX;
         ArrayList<Note> notes;
 
-        public NoteLengthAction(TrackController track, ArrayList<Note> notes, int diffX, int series) {
+        public NoteLengthAction(TrackController track, List<Note> notes, int diffX, int series) {
             this.name = "lengthenNote(s)";
             this.notes = new ArrayList<Note>(notes);
             this.diffX = diffX;
@@ -309,19 +372,23 @@ public class TrackController {
         }
 
         public void redo() {
+            beginEdit();
             clearSelection();
             for (Note note : this.notes) {
                 selectNote(note);
             }
             lengthenSelectedNotes(this.notes, diffX);
+            commit();
         }
 
         public void undo() {
+            beginEdit();
             clearSelection();
             for (Note note : this.notes) {
                 selectNote(note);
             }
             lengthenSelectedNotes(this.notes, -diffX);
+            commit();
         }
 
     }
@@ -331,7 +398,7 @@ public class TrackController {
         int diffV;
         ArrayList<Note> notes;
 
-        public NoteVelocityAction(ArrayList<Note> notes, int diffV) {
+        public NoteVelocityAction(List<Note> notes, int diffV) {
             this.name = "setNoteVelocities";
             this.notes = new ArrayList<Note>(notes);
             this.diffV = diffV;
@@ -342,25 +409,501 @@ public class TrackController {
         }
 
         public void redo() {
+            beginEdit();
             clearSelection();
             for (Note note : this.notes) {
                 selectNote(note);
             }
             adjustVelocities(this.notes, diffV);
+            commit();
         }
 
         public void undo() {
+            beginEdit();
             clearSelection();
             for (Note note : this.notes) {
                 selectNote(note);
             }
             adjustVelocities(this.notes, -diffV);
+            commit();
+        }
+
+    }
+
+    /* one undo entry for everything a named beginEdit()/commit() changed */
+    class EditAction extends Actions.Item {
+
+        Map<Note, NoteState> before;
+        Map<Note, NoteState> after;
+
+        public EditAction(String name, Map<Note, NoteState> before) {
+            this.name = name;
+            this.before = before;
+            this.after = new IdentityHashMap<Note, NoteState>();
+            for (Note note : before.keySet()) {
+                after.put(note, new NoteState(note, notes.contains(note)));
+            }
+        }
+
+        public void execute() {
+            //already done
         }
 
+        public void redo() {
+            restoreNotes(after);
+        }
+
+        public void undo() {
+            restoreNotes(before);
+        }
+    }
+
+    class ClipPlaceAction extends Actions.Item {
+
+        ClipInstance instance;
+
+        public ClipPlaceAction(ClipInstance instance) {
+            this.name = "placeClip";
+            this.instance = instance;
+        }
+
+        public void execute() {
+            addClipInstance(instance);
+        }
+
+        public void redo() {
+            addClipInstance(instance);
+        }
+
+        public void undo() {
+            removeClipInstance(instance);
+        }
+    }
+
+    class ClipRemoveAction extends Actions.Item {
+
+        ClipInstance instance;
+
+        public ClipRemoveAction(ClipInstance instance) {
+            this.name = "removeClip";
+            this.instance = instance;
+        }
+
+        public void execute() {
+            removeClipInstance(instance);
+        }
+
+        public void redo() {
+            removeClipInstance(instance);
+        }
+
+        public void undo() {
+            addClipInstance(instance);
+            selectClip(instance);
+        }
+    }
+
+    class ClipMoveAction extends Actions.Item {
+
+        ClipInstance instance;
+        long from;
+        long to;
+
+        public ClipMoveAction(ClipInstance instance, long from, long to) {
+            this.name = "moveClip";
+            this.instance = instance;
+            this.from = from;
+            this.to = to;
+        }
+
+        public void execute() {
+            //already done
+        }
+
+        public void redo() {
+            moveClipInstance(instance, to);
+        }
+
+        public void undo() {
+            moveClipInstance(instance, from);
+        }
+    }
+
+    /* the instance makes way for its pattern's notes, which can then be edited like any others */
+    class ClipOpenAction extends Actions.Item {
+
+        ClipInstance instance;
+        List<Note> opened = new ArrayList<Note>();
+
+        public ClipOpenAction(ClipInstance instance) {
+            this.name = "openClip";
+            this.instance = instance;
+            NoteColumns pattern = instance.getClip().getNotes();
+            for (int i = 0; i < pattern.size(); i++) {
+                Note note = new Note();
+                note.start = pattern.getStart(i) + instance.getOffset();
+                note.duration = pattern.getDuration(i);
+                note.pitch = pattern.getPitch(i);
+                note.velocity = pattern.getVelocity(i);
+                note.stringNum = pattern.getString(i);
+                note.fret = pattern.getFret(i);
+                opened.add(note);
+            }
+        }
+
+        public void execute() {
+            removeClipInstance(instance);
+            openClip = instance;
+            beginEdit();
+            clearSelection();
+            for (Note note : opened) {
+                loadTabNote(note);
+                selectNote(note);
+            }
+            commit();
+        }
+
+        public void redo() {
+            execute();
+        }
+
+        public void undo() {
+            beginEdit();
+            clearSelection();
+            for (Note note : opened) {
+                deleteNote(note);
+            }
+            commit();
+            openClip = null;
+            addClipInstance(instance);
+            selectClip(instance);
+        }
+    }
+
+    /* the selected notes become the open clip's pattern, for every instance of it */
+    class ClipCloseAction extends Actions.Item {
+
+        ClipInstance instance;
+        List<Note> taken;
+        long offsetBefore;
+        long origin;
+        Clip before;
+
+        public ClipCloseAction(ClipInstance instance, List<Note> taken) {
+            this.name = "closeClip";
+            this.instance = instance;
+            this.taken = new ArrayList<Note>(taken);
+            offsetBefore = instance.getOffset();
+            /* the pattern keeps its start unless notes were moved in front of it */
+            origin = offsetBefore;
+            for (Note note : taken) {
+                origin = Math.min(origin, note.start);
+            }
+        }
+
+        public void execute() {
+            before = instance.getClip().copy();
+            beginEdit();
+            clearSelection();
+            for (Note note : taken) {
+                deleteNote(note);
+            }
+            commit();
+            instance.getClip().setNotes(taken, origin);
+            instance.setOffset(origin);
+            openClip = null;
+            addClipInstance(instance);
+            selectClip(instance);
+        }
+
+        public void redo() {
+            execute();
+        }
+
+        public void undo() {
+            removeClipInstance(instance);
+            instance.getClip().restore(before);
+            instance.setOffset(offsetBefore);
+            openClip = instance;
+            beginEdit();
+            clearSelection();
+            for (Note note : taken) {
+                loadTabNote(note);
+                selectNote(note);
+            }
+            commit();
+        }
     }
 
     //////////////////   end Action Classes  //////////////////
 
+    //////////////////   Edit transactions  //////////////////
+
+    /* what a note looked like, and whether it was in the track */
+    static class NoteState {
+        long start;
+        long duration;
+        int pitch;
+        int velocity;
+        int stringNum;
+        int fret;
+        boolean present;
+
+        NoteState(Note note, boolean present) {
+            start = note.start;
+            duration = note.duration;
+            pitch = note.pitch;
+            velocity = note.velocity;
+            stringNum = note.stringNum;
+            fret = note.fret;
+            this.present = present;
+        }
+
+        boolean sameAs(Note note) {
+            return start == note.start && duration == note.duration && pitch == note.pitch
+                    && velocity == note.velocity && stringNum == note.stringNum && fret == note.fret;
+        }
+
+        void applyTo(Note note) {
+            note.start = start;
+            note.duration = duration;
+            note.pitch = pitch;
+            note.velocity = velocity;
+            note.stringNum = stringNum;
+            note.fret = fret;
+        }
+    }
+
+    /* an open beginEdit()/commit(): touched notes and the selection ticks to repaint */
+    class Edit {
+        String name;
+        Map<Note, NoteState> before = new IdentityHashMap<Note, NoteState>();
+        long fromTick = Long.MAX_VALUE;
+        long toTick = Long.MIN_VALUE;
+
+        Edit(String name) {
+            this.name = name;
+        }
+
+        void include(Note note) {
+            fromTick = Math.min(fromTick, note.start);
+            toTick = Math.max(toTick, note.start + Math.max(note.duration, 0));
+        }
+    }
+
+    /**
+     * Starts a batch of note edits.  Until the matching commit() selection
+     * repaints are collected into one tick range instead of one per note
+     * (note changes themselves reach the view through the track event).
+     * A named edit also remembers the notes it touches and commits as a
+     * single undo entry.  Edits nest; only the outermost commit() counts.
+     */
+    public void beginEdit() {
+        beginEdit(null);
+    }
+
+    public void beginEdit(String name) {
+        if (edit == null) {
+            edit = new Edit(name);
+        }
+        editDepth += 1;
+    }
+
+    public void commit() {
+        if (editDepth == 0) return;
+        editDepth -= 1;
+        if (editDepth > 0) return;
+
+        Edit done = edit;
+        edit = null;
+        if (done.fromTick <= done.toTick) {
+            view.drawTicks(done.fromTick, done.toTick);
+        }
+        if (done.name != null && !done.before.isEmpty()) {
+            pageController.addAction(new EditAction(done.name, done.before));
+        }
+    }
+
+    /* call before changing note, so where it was gets repainted (and can be undone) */
+    private void touch(Note note) {
+        fireTrackEvent(0, note.start, note.start + Math.max(note.duration, 0));
+        journalNote(note);
+        if (edit != null && edit.name != null && !edit.before.containsKey(note)) {
+            edit.before.put(note, new NoteState(note, notes.contains(note)));
+        }
+    }
+
+    /* repaint note now, or with the rest of the open edit */
+    private void redraw(Note note) {
+        if (edit == null) {
+            view.drawNote(note);
+        } else {
+            edit.include(note);
+        }
+    }
+
+    private void restoreNotes(Map<Note, NoteState> states) {
+        beginEdit();
+        clearSelection();
+        for (Note note : states.keySet()) {
+            touch(note);
+            notes.remove(note);
+            snapshots.invalidate(note.start);
+        }
+        for (Map.Entry<Note, NoteState> entry : states.entrySet()) {
+            Note note = entry.getKey();
+            entry.getValue().applyTo(note);
+            if (entry.getValue().present) {
+                notes.add(note);
+                selectNote(note);
+            }
+            notesChanged(note);
+        }
+        commit();
+    }
+
+    //////////////////   end Edit transactions  //////////////////
+
+    //////////////////   Edit journal  //////////////////
+
+    /* remember what note was like before its first change since the journal last looked */
+    private void journalNote(Note note) {
+        if (journaling && !journalBefore.containsKey(note)) {
+            journalBefore.put(note, new NoteState(note, notes.contains(note)));
+        }
+    }
+
+    /* start (or stop) keeping what changes for the journal, from the track as it is now */
+    public void setJournaling(boolean on) {
+        journaling = on;
+        journalBefore.clear();
+        settingsChanged = false;
+        unjournaled = false;
+    }
+
+    /**
+     * Hands the journal the notes changed since it last called, by value:
+     * removed gets the notes that went (as they were) and added the notes
+     * that came (as they are now); a changed note is both.  Returns false
+     * when nothing changed.
+     */
+    public boolean takeNoteChanges(NoteStore removed, NoteStore added) {
+        removed.clear();
+        added.clear();
+        for (Map.Entry<Note, NoteState> entry : journalBefore.entrySet()) {
+            Note note = entry.getKey();
+            NoteState was = entry.getValue();
+            boolean present = notes.contains(note);
+            if (was.present && present && was.sameAs(note)) continue;
+            if (was.present) {
+                removed.add(was.start, was.duration, was.pitch, was.velocity, was.stringNum, was.fret, 0);
+            }
+            if (present) {
+                added.add(note.start, note.duration, note.pitch, note.velocity, note.stringNum, note.fret, 0);
+            }
+        }
+        journalBefore.clear();
+        return removed.size() > 0 || added.size() > 0;
+    }
+
+    /* name, instrument, channel, volume or track type changed since the journal last asked */
+    public boolean takeSettingsChanged() {
+        boolean changed = settingsChanged;
+        settingsChanged = false;
+        return changed;
+    }
+
+    /* clips changed since the journal last asked, which it cannot record */
+    public boolean takeUnjournaled() {
+        boolean changed = unjournaled;
+        unjournaled = false;
+        return changed;
+    }
+
+    /**
+     * Replays changes taken by takeNoteChanges() in an earlier session.
+     * Notes to remove are found by start, duration, pitch and velocity
+     * (strings and frets are worked out again when a song is loaded).
+     */
+    public void applyNoteChanges(NoteColumns removed, NoteColumns added) {
+        beginEdit();
+        for (int i = 0; i < removed.size(); i++) {
+            int found = findNote(removed.getStart(i), removed.getDuration(i),
+                    removed.getPitch(i), removed.getVelocity(i));
+            if (found < 0) {
+                console.log("journal: no note to remove at tick", removed.getStart(i), "pitch", removed.getPitch(i));
+                continue;
+            }
+            deleteNote(notes.get(found));
+        }
+        for (int i = 0; i < added.size(); i++) {
+            Note note = new Note();
+            note.start = added.getStart(i);
+            note.duration = added.getDuration(i);
+            note.pitch = added.getPitch(i);
+            note.velocity = added.getVelocity(i);
+            note.stringNum = added.getString(i);
+            note.fret = added.getFret(i);
+            journalNote(note);
+            notes.add(note);
+            notesChanged(note, TrackEvent.ADDED);
+        }
+        commit();
+    }
+
+    private int findNote(long start, long duration, int pitch, int velocity) {
+        for (int i = notes.firstIndexAtOrAfter(start); i < notes.size(); i++) {
+            Note note = notes.get(i);
+            if (note.start != start) break;
+            if (note.duration == duration && note.pitch == pitch && note.velocity == velocity) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    //////////////////   end Edit journal  //////////////////
+
+    //////////////////   Track events  //////////////////
+
+    public void addTrackListener(TrackListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeTrackListener(TrackListener listener) {
+        listeners.remove(listener);
+    }
+
+    /* merge a change into the one event sent once the event thread is done */
+    private void fireTrackEvent(int change, long fromTick, long toTick) {
+        if (change != 0) {
+            version += 1;
+        }
+        pendingChanges |= change;
+        pendingFrom = Math.min(pendingFrom, fromTick);
+        pendingTo = Math.max(pendingTo, toTick);
+        if (!eventScheduled) {
+            eventScheduled = true;
+            SwingUtilities.invokeLater(sendTrackEvent);
+        }
+    }
+
+    private Runnable sendTrackEvent = new Runnable() {
+        public void run() {
+            TrackEvent event = new TrackEvent(TrackController.this, pendingChanges, pendingFrom, pendingTo);
+            pendingChanges = 0;
+            pendingFrom = Long.MAX_VALUE;
+            pendingTo = Long.MIN_VALUE;
+            eventScheduled = false;
+            if (event.getChanges() == 0) return;
+            for (TrackListener listener : new ArrayList<TrackListener>(listeners)) {
+                listener.trackChanged(event);
+            }
+        }
+    };
+
+    //////////////////   end Track events  //////////////////
+
     protected void handleMouseDownDrawArea(MouseEvent evt) {
 
         int x = evt.getX();
@@ -372,18 +915,38 @@ public class TrackController {
 
         view.hideFretField();
         tabbedNotes.clear();
+        selectClip(null);
 
         Note note = null;
+        /* selected notes are drawn on top, so try them first */
+        for (int i = selection.size() - 1; i >= 0 && note == null; i--) {
+            Note n = selection.get(i);
+            if (n.rectangle.contains(x, y)) {
+                note = n;
+            }
+        }
         /* loop backward through notes */
-        for (int i = notes.size() - 1; i >= 0; i--) {
+        for (int i = notes.size() - 1; i >= 0 && note == null; i--) {
             Note n = notes.get(i);
             if (n.rectangle.contains(x, y)) {
                 note = n;
-                break;
             }
         }
 
-        if (note != null) {
+        ClipInstance instance = note == null ? findClipInstance(x, y) : null;
+
+        if (instance != null) {
+            clearSelection();
+            selectClip(instance);
+            if (evt.getClickCount() == 2) {
+                openSelectedClip();
+                mouseStrategy = nullStrategy;
+            } else {
+                clipDragFrom = instance.getOffset();
+                mouseStrategy = moveClip;
+            }
+
+        } else if (note != null) {
             //console.log(note);
 
             if (!selection.contains(note) && !evt.isShiftDown()) {
@@ -422,7 +985,7 @@ public class TrackController {
                 mouseStrategy = lengthenNote;
 
             } else if (evt.isAltDown()) {
-                Note.List notes = copySelectedNotes();
+                NoteList notes = copySelectedNotes();
                 //pageController.copySelection();
                 //pageController.pasteSelection();
                 pasteSelectedNotes(notes, false);
@@ -463,12 +1026,14 @@ public class TrackController {
         if (mouseStrategy instanceof NoteVelocityStrategy) {
             pageController.hideVelocitySlider();
             int medianVelocity = vSlider.getMedianValue();
+            beginEdit("setNoteVelocities");
             if (collapsingVelocityRange) {
                 setVelocities(selection, medianVelocity);
             } else {
                 int delta = medianVelocity - startAverageVelocity;
                 adjustVelocities(selection, delta);
             }
+            commit();
             pageController.playNote(selectedNote, this);
 
         } else if (mouseStrategy instanceof SelectorRectStrategy) {
@@ -486,6 +1051,11 @@ public class TrackController {
 
         } else if (mouseStrategy instanceof NoteMoveStrategy) {
             pageController.playNote(selectedNote, this);
+
+        } else if (mouseStrategy instanceof ClipMoveStrategy) {
+            if (selectedClip != null && selectedClip.getOffset() != clipDragFrom) {
+                pageController.addAction(new ClipMoveAction(selectedClip, clipDragFrom, selectedClip.getOffset()));
+            }
         }
 
     }
@@ -504,6 +1074,8 @@ public class TrackController {
 
     public void setVolume(int n) {
         volume = n;
+        version += 1;
+        settingsChanged = true;
         view.setVolumeField(100 * n/127);
     }
 
@@ -513,6 +1085,8 @@ public class TrackController {
 
     public void setName(String n) {
         name = n;
+        version += 1;
+        settingsChanged = true;
         view.setTrackNameField(name);
     }
 
@@ -524,19 +1098,13 @@ public class TrackController {
         // zero-based double of measure position ie 1.25
         double measure = (double)x/PageView.measureSize;
         double corrected = Math.ceil(measure / gridFraction) * gridFraction;
-        long startValue = Math.round(corrected * pageController.getTicksPerMeasure());
+        long startValue = pageController.measureToTick(corrected);
         return startValue;
     }
 
     public void setProgress(double progress, long tick) {
         int x = (int)(progress * PageView.measureSize);
-        int soundAmount = 0;
-        for (Note note: notes) {
-            if (tick > note.start && tick < note.start + note.duration) {
-                soundAmount += note.velocity;
-                if (soundAmount > 126) break;
-            }
-        }
+        int soundAmount = getNoteIndex().velocityAt(tick, 127);
         view.showProgress(x, soundAmount);
     }
 
@@ -548,14 +1116,56 @@ public class TrackController {
         return isMuted;
     }
 
+    /* mute as saved in a project; the page mutes the track's midi too */
+    public void setMuted(boolean muted) {
+        if (muted != isMuted) {
+            handleMuteButton();
+        }
+    }
+
+    public boolean isCollapsed() {
+        return view.isCollapsed();
+    }
+
+    public void setCollapsed(boolean collapsed) {
+        if (collapsed != view.isCollapsed()) {
+            view.setCollapsed(collapsed);
+            version += 1;
+        }
+    }
+
+    public double getGridFraction() {
+        return gridFraction;
+    }
+
+    /* grid as saved in a project; only sizes the picker has are taken */
+    public void setGridFraction(double fraction) {
+        for (Map.Entry<String, Double> size : GridSizePicker.SIZES.entrySet()) {
+            if (size.getValue() == fraction) {
+                if (fraction != gridFraction) {
+                    gridFraction = fraction;
+                    version += 1;
+                }
+                view.showGridSize(size.getKey());
+                return;
+            }
+        }
+    }
+
     public void loadNote(Note note) {
         trackType.assignStringAndFret(note);
+        loadTabNote(note);
+    }
+
+    /* a note that already has its string and fret, ie read from a tab */
+    public void loadTabNote(Note note) {
+        journalNote(note);
         notes.add(note);
         if (channel == 9) {
             // 1/32 note
             note.duration = pageController.getTicksPerMeasure() / 32;
         }
-        notes.sorted = false;
+        notesChanged(note, TrackEvent.ADDED);
     }
 
     private Note addNote(int x, int y, boolean drum) {
@@ -564,12 +1174,13 @@ public class TrackController {
         note.pitch = trackType.findNotePitch(note.stringNum, note.fret);
         x = findNearestGrid(x);
         note.start = setNoteStart(x);
+        journalNote(note);
         notes.add(note);
         if (drum) {
             // 1/32 note
             note.duration = pageController.getTicksPerMeasure() / 32;
         }
-        notes.sorted = false;
+        notesChanged(note, TrackEvent.ADDED);
         selectNote(note);
         return note;
     }
@@ -586,39 +1197,244 @@ public class TrackController {
     }
 
     public List<Note> getSelection() {
-        return selection.sortByStart(true);
+        return selection.sortByStart();
+    }
+
+    /* z-order layer: notes painted after (on top of) the rest of the track.
+       Drawing order lives here so the note list is never reordered to render */
+    List<Note> getTopLayer() {
+        return selection;
     }
 
+    /* always in start order; never re-sorted on read */
     public List<Note> getNotes() {
-        return notes.sortByStart(true);
+        return notes;
+    }
+
+    /**
+     * Immutable copy of the notes as they are now.  Safe to hand to another
+     * thread; blocks of unchanged measures are shared with earlier snapshots.
+     * Must be taken on the event thread, like any other read of the notes.
+     */
+    public NoteSnapshot getSnapshot() {
+        snapshots.setBucketTicks(4L * pageController.getTicksPerMeasure());
+        return snapshots.snapshot(notes);
+    }
+
+    /* everything a save writes, safe to hand to another thread; event thread only */
+    public TrackState getState() {
+        return getState(new IdentityHashMap<Clip, Clip>());
+    }
+
+    /* the same, sharing copies of clips through copies so tracks of one save keep sharing them */
+    public TrackState getState(Map<Clip, Clip> copies) {
+        return new TrackState(this, getSnapshot(), events, clipInstances, copies);
+    }
+
+    public NoteStore getSelectionStore() {
+        return NoteStore.of(getSelection());
+    }
+
+    /* load notes as stored, keeping their strings and frets */
+    public void loadNotes(NoteStore store) {
+        for (int i = 0; i < store.size(); i++) {
+            notes.add(store.toNote(i));
+        }
+        notesChanged();
+    }
+
+    /* the track's non-note events as read from its file, written back on save */
+    public EventStore getEvents() {
+        return events;
+    }
+
+    public void setEvents(EventStore events) {
+        this.events = events;
+        version += 1;
+    }
+
+    /* let go of the clips once the track is gone */
+    public void dispose() {
+        for (ClipInstance instance : clipInstances) {
+            instance.getClip().removeChangeListener(clipListener);
+        }
+    }
+
+    //////////////////   Clips  //////////////////
+
+    /* place an instance of clip where the track is scrolled to */
+    public void pasteClip(Clip clip) {
+        int scrolledMeasure = view.currentScroll / PageView.measureSize;
+        long ticksScrolled = pageController.measureToTick(scrolledMeasure);
+        pageController.addAction(new ClipPlaceAction(new ClipInstance(clip, ticksScrolled)));
+    }
+
+    public void addClipInstance(ClipInstance instance) {
+        if (!usesClip(instance.getClip())) {
+            instance.getClip().addChangeListener(clipListener);
+        }
+        clipInstances.add(instance);
+        unjournaled = true;
+        fireTrackEvent(TrackEvent.ADDED, instance.getOffset(), instance.getEnd());
+    }
+
+    public void removeClipInstance(ClipInstance instance) {
+        if (!clipInstances.remove(instance)) return;
+        if (instance == selectedClip) {
+            selectClip(null);
+        }
+        unjournaled = true;
+        if (!usesClip(instance.getClip())) {
+            instance.getClip().removeChangeListener(clipListener);
+        }
+        fireTrackEvent(TrackEvent.REMOVED, instance.getOffset(), instance.getEnd());
+    }
+
+    private void moveClipInstance(ClipInstance instance, long offset) {
+        long from = Math.min(instance.getOffset(), offset);
+        long to = Math.max(instance.getEnd(), offset + instance.getClip().getLength());
+        instance.setOffset(offset);
+        unjournaled = true;
+        fireTrackEvent(TrackEvent.CHANGED, from, to);
+    }
+
+    private void selectClip(ClipInstance instance) {
+        if (selectedClip != null) {
+            view.drawTicks(selectedClip.getOffset(), selectedClip.getEnd());
+        }
+        selectedClip = instance;
+        if (selectedClip != null) {
+            view.drawTicks(selectedClip.getOffset(), selectedClip.getEnd());
+        }
+    }
+
+    /* the selected clip instance, drawn like selected notes; null if none */
+    ClipInstance getSelectedClip() {
+        return selectedClip;
+    }
+
+    /* the instance with a pattern note under x, y; later ones are drawn on top */
+    private ClipInstance findClipInstance(int x, int y) {
+        long tick = xToTick(x);
+        int stringNum = findNearestStringNum(y);
+        for (int i = clipInstances.size() - 1; i >= 0; i--) {
+            ClipInstance instance = clipInstances.get(i);
+            if (tick < instance.getOffset() || tick > instance.getEnd()) continue;
+            NoteColumns pattern = instance.getClip().getNotes();
+            for (int j = 0; j < pattern.size(); j++) {
+                long start = pattern.getStart(j) + instance.getOffset();
+                if (pattern.getString(j) == stringNum && tick >= start && tick <= start + pattern.getDuration(j)) {
+                    return instance;
+                }
+            }
+        }
+        return null;
+    }
+
+    /* put the selected instance's notes out on the track to edit them; one clip at a time */
+    public void openSelectedClip() {
+        if (selectedClip == null) return;
+        if (openClip != null) {
+            console.log("close the open clip before opening another");
+            return;
+        }
+        pageController.addAction(new ClipOpenAction(selectedClip));
+    }
+
+    /* the selected notes become the open clip again, changing every instance of it */
+    public void closeOpenClip() {
+        if (openClip == null) return;
+        if (selection.isEmpty()) {
+            console.log("select the notes of the open clip to close it");
+            return;
+        }
+        pageController.addAction(new ClipCloseAction(openClip, selection));
+    }
+
+    /* clip instances in the order they were placed; expanded only when played or drawn */
+    public List<ClipInstance> getClipInstances() {
+        return Collections.unmodifiableList(clipInstances);
+    }
+
+    private boolean usesClip(Clip clip) {
+        for (ClipInstance instance : clipInstances) {
+            if (instance.getClip() == clip) return true;
+        }
+        return false;
+    }
+
+    /* the pattern changed: every instance of it on this track did too */
+    private void clipChanged(Clip clip) {
+        unjournaled = true;
+        for (ClipInstance instance : clipInstances) {
+            if (instance.getClip() == clip) {
+                fireTrackEvent(TrackEvent.CHANGED, instance.getOffset(), instance.getEnd());
+            }
+        }
+    }
+
+    //////////////////   end Clips  //////////////////
+
+    private NoteIndex getNoteIndex() {
+        if (!noteIndex.isValid()) {
+            noteIndex.rebuild(notes);
+        }
+        return noteIndex;
+    }
+
+    /* call after changing notes anywhere in the track */
+    private void notesChanged() {
+        snapshots.invalidate();
+        invalidateNoteCaches();
+        fireTrackEvent(TrackEvent.ADDED | TrackEvent.REMOVED | TrackEvent.CHANGED,
+                Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /* call after changing note (at its current start) */
+    private void notesChanged(Note note) {
+        notesChanged(note, TrackEvent.CHANGED);
+    }
+
+    /* call after note was added, removed or changed; change is a TrackEvent kind */
+    private void notesChanged(Note note, int change) {
+        snapshots.invalidate(note.start);
+        invalidateNoteCaches();
+        fireTrackEvent(change, note.start, note.start + Math.max(note.duration, 0));
+    }
+
+    /* call after changing (or removing) every note starting at or after tick */
+    private void notesChangedFrom(long tick, int change) {
+        snapshots.invalidateFrom(tick);
+        invalidateNoteCaches();
+        fireTrackEvent(change, tick, Long.MAX_VALUE);
+    }
+
+    private void invalidateNoteCaches() {
+        noteIndex.invalidate();
+        selection.setUnsorted();
+    }
+
+    private long xToTick(int x) {
+        return pageController.measureToTick((double)x / PageView.measureSize);
     }
 
     public void selectAllNotes() {
         selection.clear();
-
-        /* loop backward through notes */
-        for (int i = notes.size() - 1; i >= 0; i--) {
+        for (int i = 0; i < notes.size(); i++) {
             Note note = notes.get(i);
-            selectNote(note);
+            note.isSelected = true;
+            selection.add(note);
         }
+        /* every note is on top now, so no reordering or per-note repaint */
+        selectedNote = notes.size() > 0 ? notes.get(0) : null;
+        view.drawNew();
     }
 
     private void selectNote(Note note) {
         selectedNote = note;
         selectedNote.isSelected = true;
-
-        /* ensure note is drawn last (on top of others) */
-        if (notes.contains(note)) {
-            notes.remove(note);
-        }
-        notes.add(note);
-        notes.sorted = false;
-
-        if (!selection.contains(selectedNote)) {
-            selection.add(selectedNote);
-            selection.sorted = false;
-        }
-        view.drawNote(selectedNote);
+        selection.add(selectedNote);
+        redraw(selectedNote);
     }
 
     private void hideSelectorRect(boolean shift) {
@@ -627,60 +1443,86 @@ public class TrackController {
             clearSelection();
         }
 
-        /* loop backward through notes */
-        for (int i = notes.size() - 1; i >= 0; i--) {
-            Note note = notes.get(i);
+        /* only notes starting inside the rectangle's tick range can fit in it */
+        List<Note> candidates = new ArrayList<Note>();
+        long from = xToTick(selectorRect.x - 2);
+        long to = xToTick(selectorRect.x + selectorRect.width + 2);
+        getNoteIndex().startingIn(from, to, candidates);
+
+        /* loop backward through candidates */
+        beginEdit();
+        for (int i = candidates.size() - 1; i >= 0; i--) {
+            Note note = candidates.get(i);
             if (selectorRect.contains(note.rectangle)) {
                 selectNote(note);
                 selectedNote = note;
             }
         }
+        commit();
         selectorRect.setSize(0, 0);
     }
 
     private void clearSelection() {
+        beginEdit();
         selection.forEach(note -> {
             note.isSelected = false;
             if (note.duration <= 0) {
+                touch(note);
                 notes.remove(note);
+                notesChanged(note, TrackEvent.REMOVED);
             }
-            view.drawNote(note);
+            redraw(note);
         });
         selectedNote = null;
         selection.clear();
+        commit();
     }
 
     private void deleteNote(Note note) {
+        touch(note);
         if (notes.contains(note)) {
             notes.remove(note);
         }
-        if (selection.contains(note)) {
-            selection.remove(note);
-        }
-        view.drawNote(note);
+        selection.remove(note);
+        notesChanged(note, TrackEvent.REMOVED);
     }
 
     public void deleteSelectedNotes() {
+        if (selectedClip != null) {
+            pageController.addAction(new ClipRemoveAction(selectedClip));
+            return;
+        }
+        beginEdit("deleteNote(s)");
         for (Note note : selection) {
-            notes.remove(note);
-            view.drawNote(note);
+            touch(note);
+        }
+        notes.removeAll(selection);
+        for (Note note : selection) {
+            note.isSelected = false;
+            notesChanged(note, TrackEvent.REMOVED);
         }
         selection.clear();
+        commit();
     }
 
-    public Note.List cutSelectedNotes() {
-        Note.List temp = new Note.List();
+    public NoteList cutSelectedNotes() {
+        NoteList temp = new NoteList();
+        beginEdit();
         for (Note note : selection) {
-            notes.remove(note);
-            view.drawNote(note);
+            touch(note);
+        }
+        notes.removeAll(selection);
+        for (Note note : selection) {
+            notesChanged(note, TrackEvent.REMOVED);
             temp.add(note);
         }
         selection.clear();
+        commit();
         return temp;
     }
 
-    public Note.List copySelectedNotes() {
-        Note.List temp = new Note.List();
+    public NoteList copySelectedNotes() {
+        NoteList temp = new NoteList();
         for (Note note : selection) {
             Note clone = note.clone();
             temp.add(clone);
@@ -688,42 +1530,53 @@ public class TrackController {
         return temp;
     }
 
-    public void pasteSelectedNotes(Note.List notes, boolean fromClipboard) {
+    public void pasteSelectedNotes(NoteList notes, boolean fromClipboard) {
         pageController.addAction(new NotePasteAction(this, notes, fromClipboard));
     }
 
-    private void setVelocities(ArrayList<Note> notes, int velocity) {
+    private void setVelocities(List<Note> notes, int velocity) {
+        beginEdit();
         for (Note note : notes) {
+            touch(note);
             note.velocity = velocity;
             note.velocity = Math.min(Math.max(0, note.velocity), 127);
+            notesChanged(note);
         }
+        commit();
     }
 
     private void adjustVelocities(List<Note> notes, int delta) {
+        beginEdit();
         for (Note note : notes) {
+            touch(note);
             note.velocity += delta;
             note.velocity = Math.min(Math.max(0, note.velocity), 127);
+            notesChanged(note);
         }
+        commit();
     }
 
     private void lengthenSelectedNote(Note note, int deltaX) {
         if (deltaX == 0) return;
-        view.drawNote(note);
+        touch(note);
         long delta = Math.round(gridFraction * pageController.getTicksPerMeasure());
         note.duration += Integer.signum(deltaX) * delta;
+        notesChanged(note);
     }
 
     private void lengthenSelectedNotes(ArrayList<Note> notes, int deltaX) {
         if (deltaX == 0) return;
+        beginEdit();
         for (Note note : notes) {
             lengthenSelectedNote(note, deltaX);
         }
+        commit();
     }
 
-    private void moveSelectedNotes(ArrayList<Note> notes, int deltaX, int deltaY) {
+    private void moveSelectedNotes(ArrayList<Note> moving, int deltaX, int deltaY) {
 
         // do some checks on block as a whole before moving anything
-        for (Note note : notes) {
+        for (Note note : moving) {
             if (note.rectangle.x < calcGridSize()) {
                 deltaX = Math.max(deltaX, 0);
             }
@@ -737,12 +1590,18 @@ public class TrackController {
             return;
         }
 
-        for (Note note : notes) {
-            view.drawNote(note);
-            note.start += deltaX * Math.round(gridFraction * pageController.getTicksPerMeasure());
+        beginEdit();
+        for (Note note : moving) {
+            touch(note);
+            notesChanged(note);
+        }
+        notes.shift(moving, deltaX * Math.round(gridFraction * pageController.getTicksPerMeasure()));
+        for (Note note : moving) {
             note.stringNum += deltaY;
             note.pitch = trackType.findNotePitch(note.stringNum, note.fret);
+            notesChanged(note);
         }
+        commit();
     }
 
     public void moveSelectionArrowKeys(int dirX, int dirY) {
@@ -751,14 +1610,14 @@ public class TrackController {
 
     public void tabThroughNotes() {
         if (selectedNote != null) {
-            notes.sortByStart();
             //for (Note note : selection) {
                 tabbedNotes.add(selectedNote);
             //}
             long currentSelectionStart = selectedNote.start;
             clearSelection();
-            for (Note note : notes) {
-                if (!tabbedNotes.contains(note) && note.start >= currentSelectionStart) {
+            for (int i = notes.firstIndexAtOrAfter(currentSelectionStart); i < notes.size(); i++) {
+                Note note = notes.get(i);
+                if (!tabbedNotes.contains(note)) {
                     selectNote(note);
                     pageController.playSelection(this);
                     break;
@@ -793,6 +1652,8 @@ public class TrackController {
     }
 
     public void setInstrument(int number) {
+        version += 1;
+        settingsChanged = true;
         if (channel == 9) {
             instrument = Instrument.getDrum(number);
             view.setInstrumentName(instrument.name);
@@ -825,49 +1686,117 @@ public class TrackController {
 
     }
 
+    public TrackType getTrackType() {
+        return trackType;
+    }
+
     public void setTrackType(TrackType type) {
         if (!trackType.toString().equals(type.toString())) {
             trackType = type;
+            version += 1;
+            settingsChanged = true;
             for (Note note : notes) {
                 trackType.assignStringAndFret(note);
             }
+            notesChanged();
             view.setTrackType(type);
         }
     }
 
     public void insertBars(int numberToAdd, int addBefore) {
-        int ticksPerMeasure = pageController.getTicksPerMeasure();
-        long noteStartDelta = numberToAdd * ticksPerMeasure;
-        for (Note note : notes) {
-            long noteMeasure = 1 + (note.start / ticksPerMeasure);
-            if (noteMeasure >= addBefore) {
-                note.start += noteStartDelta;
+        /* the new bars are as long as the ones they push back */
+        long insertAt = pageController.measureToTick(addBefore - 1);
+        long noteStartDelta = pageController.measureToTick(addBefore - 1 + numberToAdd) - insertAt;
+
+        notes.shiftFrom(notes.firstIndexAtOrAfter(insertAt), noteStartDelta);
+        for (ClipInstance instance : clipInstances) {
+            if (instance.getOffset() >= insertAt) {
+                instance.setOffset(instance.getOffset() + noteStartDelta);
             }
         }
+        if (openClip != null && openClip.getOffset() >= insertAt) {
+            openClip.setOffset(openClip.getOffset() + noteStartDelta);
+        }
+        events.insertTicks(insertAt, noteStartDelta);
+        notesChangedFrom(insertAt, TrackEvent.CHANGED);
     }
 
     public void duplicateBars(int numberToAdd, int measureStart, int measureEnd, int addBefore) {
         // TODO
     }
 
-    public void removeBars(int measureStart, int measureEnd) {
+    /* what removeBars() took out of a track, for restoreBars() to put back */
+    public static class RemovedBars {
+        private final long from;
+        private final long to;
+        private final List<Note> notes;
+        private final List<ClipInstance> clips = new ArrayList<ClipInstance>();
+        private final EventStore events;
 
-        int afterRange = measureEnd + 1;
-        int ticksPerMeasure = pageController.getTicksPerMeasure();
-        long noteStartDelta = (afterRange - measureStart) * ticksPerMeasure;
+        private RemovedBars(long from, long to, List<Note> notes, EventStore events) {
+            this.from = from;
+            this.to = to;
+            this.notes = notes;
+            this.events = events;
+        }
+    }
 
-        /* loop backward through notes */
-        for (int i = notes.size() - 1; i >= 0; i--) {
-            Note note = notes.get(i);
-            long noteMeasure = 1 + (note.start / ticksPerMeasure);
-            if (noteMeasure >= measureStart && noteMeasure < afterRange) {
-                notes.remove(note);
-                //view.drawNote(note);
-            } else if (noteMeasure >= afterRange) {
-                note.start -= noteStartDelta;
+    public RemovedBars removeBars(int measureStart, int measureEnd) {
+
+        int afterRange = measureEnd + 1;
+        long removeFrom = pageController.measureToTick(measureStart - 1);
+        long removeTo = pageController.measureToTick(afterRange - 1);
+        long noteStartDelta = removeTo - removeFrom;
+
+        int from = notes.firstIndexAtOrAfter(removeFrom);
+        int to = notes.firstIndexAtOrAfter(removeTo);
+        EventStore eventsBefore = new EventStore(events.size());
+        eventsBefore.addAll(events);
+        RemovedBars removed = new RemovedBars(removeFrom, removeTo,
+                new ArrayList<Note>(notes.subList(from, to)), eventsBefore);
+        for (int i = from; i < to; i++) {
+            selection.remove(notes.get(i));
+        }
+        notes.removeRange(from, to);
+        notes.shiftFrom(from, -noteStartDelta);
+        for (ClipInstance instance : new ArrayList<ClipInstance>(clipInstances)) {
+            if (instance.getOffset() >= removeTo) {
+                instance.setOffset(instance.getOffset() - noteStartDelta);
+            } else if (instance.getOffset() >= removeFrom) {
+                removeClipInstance(instance);
+                removed.clips.add(instance);
             }
         }
-        view.drawNew();
+        if (openClip != null && openClip.getOffset() >= removeFrom) {
+            openClip.setOffset(Math.max(removeFrom, openClip.getOffset() - noteStartDelta));
+        }
+        events.removeTicks(removeFrom, removeTo);
+        notesChangedFrom(removeFrom, TrackEvent.REMOVED | TrackEvent.CHANGED);
+        return removed;
+    }
+
+    /* undo removeBars(); the same notes come back, so earlier undo steps still find them */
+    public void restoreBars(RemovedBars removed) {
+        long delta = removed.to - removed.from;
+        notes.shiftFrom(notes.firstIndexAtOrAfter(removed.from), delta);
+        for (ClipInstance instance : clipInstances) {
+            if (instance.getOffset() >= removed.from) {
+                instance.setOffset(instance.getOffset() + delta);
+            }
+        }
+        for (Note note : removed.notes) {
+            notes.add(note);
+        }
+        if (openClip != null && openClip.getOffset() >= removed.from) {
+            openClip.setOffset(openClip.getOffset() + delta);
+        }
+        for (ClipInstance instance : removed.clips) {
+            addClipInstance(instance);
+        }
+        events = removed.events;
+        /* the journal has no record for notes coming back, so replay stops here */
+        unjournaled = true;
+        notesChangedFrom(removed.from, TrackEvent.ADDED | TrackEvent.CHANGED);
     }
 
     public void setScrollPosition(int value) {
@@ -876,6 +1805,13 @@ public class TrackController {
 
     public void setChannel(int n) {
         channel = n;
+        version += 1;
+        settingsChanged = true;
+    }
+
+    /* compare with an earlier value to see if the track changed since */
+    public long getVersion() {
+        return version;
     }
 
     public int getChannel() {
@@ -884,8 +1820,10 @@ public class TrackController {
 
     private void changeNoteFret(int number) {
         if (selectedNote != null) {
+            touch(selectedNote);
             selectedNote.fret = number;
             selectedNote.pitch = trackType.findNotePitch(selectedNote.stringNum, selectedNote.fret);
+            notesChanged(selectedNote);
             pageController.playSelection(this);
         }
     }
@@ -899,11 +1837,15 @@ public class TrackController {
 
     protected void handleVolumeField(int value) {
         volume = value * 127/100;
+        version += 1;
+        settingsChanged = true;
         pageController.handleTrackVolumeField(this, volume);
     }
 
     protected void handleTrackNameField() {
         name = view.getTrackNameField();
+        version += 1;
+        settingsChanged = true;
     }
 
     protected void handleFretFieldEnter() {
@@ -942,9 +1884,15 @@ public class TrackController {
             view.showMuted();
         }
         isMuted = !isMuted;
+        version += 1;
         pageController.handleMuteButton(this, isMuted);
     }
 
+    /* collapsed is saved with the project, so it counts as a change */
+    protected void handleCollapseButton() {
+        setCollapsed(!view.isCollapsed());
+    }
+
     protected void handleInstrumentPicker(Instrument instrument) {
         if (Instrument.isDrumSet(instrument)) {
             setChannel(9);
@@ -955,7 +1903,10 @@ public class TrackController {
     }
 
     protected void handleGridSizePicker(double value) {
-        gridFraction = value;
+        if (value != gridFraction) {
+            gridFraction = value;
+            version += 1;
+        }
     }
 
     protected void handleTrackTypePicker(String name) {
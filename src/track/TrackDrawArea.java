@@ -8,7 +8,9 @@ import java.awt.geom.Path2D;
 
 import javax.swing.*;
 
+import note.ClipInstance;
 import note.Note;
+import note.NoteColumns;
 import page.PageView;
 import themes.ThemeReader;
 import utils.console;
@@ -34,6 +36,7 @@ class TrackDrawArea extends JLayeredPane {
     protected NumberInputField fretField;
     protected Runnable sendFretField;
     protected String type;
+    private Note clipNote = new Note();
 
     public TrackDrawArea(TrackController controller, int numOfStrings) {
 
@@ -150,12 +153,12 @@ class TrackDrawArea extends JLayeredPane {
     protected void setNoteRectangle(Note note) {
         note.rectangle.x = getNoteX(note.start) + 1;
         note.rectangle.y = getNoteY(note.stringNum);
-        note.rectangle.width = getNoteWidth(note.duration);
+        note.rectangle.width = getNoteWidth(note.start, note.duration);
         note.rectangle.height = getNoteHeight();
     }
 
     protected int getNoteX(long start) {
-        return (int)((double)start / controller.pageController.getTicksPerMeasure() * PageView.measureSize);
+        return (int)(controller.pageController.tickToMeasure(start) * PageView.measureSize);
     }
 
     protected int getNoteY(int stringNum) {
@@ -170,8 +173,9 @@ class TrackDrawArea extends JLayeredPane {
         return topMargin + stringNum * stringSpacing;
     }
 
-    protected int getNoteWidth(long duration) {
-        return (int)((double)duration / controller.pageController.getTicksPerMeasure() * PageView.measureSize);
+    /* measures can differ in length, so the width depends on where the note starts */
+    protected int getNoteWidth(long start, long duration) {
+        return getNoteX(start + duration) - getNoteX(start);
     }
 
     protected int getNoteHeight() {
@@ -223,6 +227,28 @@ class TrackDrawArea extends JLayeredPane {
             stringY + fontHeight/2 - 1);
     }
 
+    /* clip instances are drawn straight from their pattern through one scratch note */
+    protected void drawClipInstances(Graphics2D g2) {
+        Color clipColor = ThemeReader.getColor("note.clip.background");
+        Color selectedColor = ThemeReader.getColor("note.selected.background");
+        for (ClipInstance instance : controller.getClipInstances()) {
+            Color color = instance == controller.getSelectedClip() ? selectedColor : clipColor;
+            NoteColumns clipNotes = instance.getClip().getNotes();
+            for (int i = 0; i < clipNotes.size(); i++) {
+                clipNote.start = clipNotes.getStart(i) + instance.getOffset();
+                clipNote.duration = clipNotes.getDuration(i);
+                clipNote.pitch = clipNotes.getPitch(i);
+                clipNote.stringNum = clipNotes.getString(i);
+                clipNote.fret = clipNotes.getFret(i);
+                drawClipNote(g2, clipNote, color);
+            }
+        }
+    }
+
+    protected void drawClipNote(Graphics2D g2, Note note, Color color) {
+        drawNote(g2, note, color);
+    }
+
     protected void drawSelectorRect(Graphics2D g2, Rectangle rect) {
         g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
             RenderingHints.VALUE_ANTIALIAS_ON);
@@ -254,6 +280,14 @@ class TrackDrawArea extends JLayeredPane {
             Math.abs(note.rectangle.height) + yBuffer * 2);
     }
 
+    /* one repaint for everything between two ticks, on every string */
+    protected void overwriteTicks(long from, long to) {
+        int xBuffer = PageView.measureSize + 20;
+        int x = getNoteX(from) - xBuffer;
+        int width = getNoteX(to) - getNoteX(from) + xBuffer * 2;
+        repaint(x, 0, width, getHeight());
+    }
+
     protected void showFretField(Note note, int fretNum) {
         fretField.setVisible(true);
         fretField.setLocation(note.rectangle.x - 5, note.rectangle.y - 5);
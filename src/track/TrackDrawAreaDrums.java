@@ -2,8 +2,10 @@ package track;
 
 import java.awt.*;
 import java.awt.geom.Path2D;
+import java.util.List;
 
 import note.Note;
+import note.NoteList;
 import page.PageView;
 import themes.ThemeReader;
 import utils.console;
@@ -35,15 +37,22 @@ class TrackDrawAreaDrums extends TrackDrawArea {
 
         drawDrumLines(g2);
         drawGridLines(g2);
-        for (Note note : controller.notes) {
+        drawClipInstances(g2);
+
+        /* model order first, then the top layer (selection) over it */
+        NoteList notes = controller.notes;
+        for (int i = 0; i < notes.size(); i++) {
+            Note note = notes.get(i);
             note.rectangle.width = width;
             note.rectangle.height = height;
-            if (note.isSelected) {
-                drawTriangle(g2, note, selectedColor);
-            } else {
+            if (!note.isSelected) {
                 drawTriangle(g2, note, unselectedColor);
             }
         }
+        List<Note> topLayer = controller.getTopLayer();
+        for (int i = 0; i < topLayer.size(); i++) {
+            drawTriangle(g2, topLayer.get(i), selectedColor);
+        }
 
         g2.draw(progressLine);
 
@@ -54,6 +63,13 @@ class TrackDrawAreaDrums extends TrackDrawArea {
 
     }
 
+    @Override
+    protected void drawClipNote(Graphics2D g2, Note note, Color color) {
+        note.rectangle.width = ThemeReader.getMeasure("drumNote.width");
+        note.rectangle.height = ThemeReader.getMeasure("drumNote.height");
+        drawTriangle(g2, note, color);
+    }
+
     protected void drawTriangle(Graphics2D g2, Note note, Color color) {
         g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
             RenderingHints.VALUE_ANTIALIAS_ON);
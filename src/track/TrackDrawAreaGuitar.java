@@ -4,8 +4,10 @@ import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Rectangle;
+import java.util.List;
 
 import note.Note;
+import note.NoteList;
 import themes.ThemeReader;
 import utils.console;
 
@@ -27,13 +29,20 @@ class TrackDrawAreaGuitar extends TrackDrawArea {
         drawStrings(g2);
         drawGridLines(g2);
 
-        for (Note note : controller.notes) {
-            if (note.isSelected) {
-                drawNote(g2, note, selectedColor);
-            } else {
+        drawClipInstances(g2);
+
+        /* model order first, then the top layer (selection) over it */
+        NoteList notes = controller.notes;
+        for (int i = 0; i < notes.size(); i++) {
+            Note note = notes.get(i);
+            if (!note.isSelected) {
                 drawNote(g2, note, unselectedColor);
             }
         }
+        List<Note> topLayer = controller.getTopLayer();
+        for (int i = 0; i < topLayer.size(); i++) {
+            drawNote(g2, topLayer.get(i), selectedColor);
+        }
 
         g2.draw(progressLine);
 
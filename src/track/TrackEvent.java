@@ -0,0 +1,59 @@
+package track;
+
+
+/**
+ * What happened to a track's notes since the last event: which kinds of
+ * change (ADDED, REMOVED, CHANGED bits) and the tick range they fall in.
+ * One event sums up every edit made during one pass of the event thread.
+ */
+public class TrackEvent {
+
+    public static final int ADDED = 1;
+    public static final int REMOVED = 2;
+    public static final int CHANGED = 4;
+
+    private final TrackController track;
+    private final int changes;
+    private final long fromTick;
+    private final long toTick;
+
+    public TrackEvent(TrackController track, int changes, long fromTick, long toTick) {
+        this.track = track;
+        this.changes = changes;
+        this.fromTick = fromTick;
+        this.toTick = toTick;
+    }
+
+    public TrackController getTrack() {
+        return track;
+    }
+
+    public int getChanges() {
+        return changes;
+    }
+
+    public boolean has(int change) {
+        return (changes & change) != 0;
+    }
+
+    /* first tick touched (inclusive) */
+    public long getFromTick() {
+        return fromTick;
+    }
+
+    /* last tick touched (inclusive); Long.MAX_VALUE for "to the end" */
+    public long getToTick() {
+        return toTick;
+    }
+
+    public boolean isWholeTrack() {
+        return fromTick == Long.MIN_VALUE && toTick == Long.MAX_VALUE;
+    }
+
+    @Override
+    public String toString() {
+        return "TrackEvent " + track.getName() + " changes: " + changes +
+                " ticks: " + fromTick + " - " + toTick;
+    }
+
+}
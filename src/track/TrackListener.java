@@ -0,0 +1,7 @@
+package track;
+
+
+/* notified once per event thread pass with everything that changed on a track */
+public interface TrackListener {
+    public void trackChanged(TrackEvent event);
+}
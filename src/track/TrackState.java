@@ -0,0 +1,83 @@
+package track;
+
+import java.util.List;
+import java.util.Map;
+
+import note.Clip;
+import note.ClipInstance;
+import note.EventStore;
+import note.NoteColumns;
+import note.NoteSnapshot;
+import note.NoteStore;
+
+
+/**
+ * What a track saves, copied at one point in time so it can be written on
+ * another thread while the editor goes on.  The notes are a NoteSnapshot
+ * (cheap, its blocks are shared); events and clips are copied, each clip
+ * once per save so instances on different tracks still share it.
+ * Made with TrackController.getState() on the event thread.
+ */
+public class TrackState {
+
+    public final String name;
+    public final int channel;
+    public final int instrument;
+    public final int volume;
+    public final boolean muted;
+    public final NoteSnapshot notes;
+    public final EventStore events;
+
+    /* editor state kept by project files: "guitar", "bass" or "drums" */
+    public final String trackType;
+    public final int[] tuning;
+    public final double gridFraction;
+    public final boolean collapsed;
+
+    /* the clip of every instance, its notes moved by the offset when written */
+    public final Clip[] clips;
+    public final long[] clipOffsets;
+
+    TrackState(TrackController track, NoteSnapshot notes, EventStore events, List<ClipInstance> instances,
+            Map<Clip, Clip> copies) {
+        name = track.getName();
+        channel = track.getChannel();
+        instrument = track.getInstrument().number;
+        volume = track.getVolume();
+        muted = track.isMuted();
+        trackType = track.getTrackType().toString();
+        tuning = track.getTrackType().getTuning();
+        gridFraction = track.getGridFraction();
+        collapsed = track.isCollapsed();
+        this.notes = notes;
+        this.events = new EventStore(events.size());
+        this.events.addAll(events);
+        clips = new Clip[instances.size()];
+        clipOffsets = new long[instances.size()];
+        for (int i = 0; i < instances.size(); i++) {
+            Clip clip = instances.get(i).getClip();
+            Clip copy = copies.get(clip);
+            if (copy == null) {
+                copy = new Clip(clip.getName(), copy(clip.getNotes()), clip.getLength());
+                copies.put(clip, copy);
+            }
+            clips[i] = copy;
+            clipOffsets[i] = instances.get(i).getOffset();
+        }
+    }
+
+    private static NoteStore copy(NoteColumns notes) {
+        NoteStore store = new NoteStore(notes.size());
+        for (int i = 0; i < notes.size(); i++) {
+            store.add(notes.getStart(i), notes.getDuration(i), notes.getPitch(i), notes.getVelocity(i),
+                    notes.getString(i), notes.getFret(i), notes.getFlags(i));
+        }
+        return store;
+    }
+
+    @Override
+    public String toString() {
+        return "TrackState " + name + " notes: " + notes.size();
+    }
+
+}
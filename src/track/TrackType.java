@@ -5,15 +5,46 @@ import utils.console;
 
 public class TrackType {
 
+    private static final String[] PITCH_NAMES =
+            {"C", "C#", "D", "D#", "E", "F", "F#", "G", "G#", "A", "A#", "B"};
+
     public String name = "name";
     public int numOfStrings = 0;
 
+    /* open string pitches, first (highest) string first; null for types without strings */
+    protected int[] tuning;
+
     public int findNotePitch(int stringNum, int fret) {
         return -1;
     }
 
     public void assignStringAndFret(Note note) {}
 
+    /* retune; only a tuning with as many strings as the type has is taken */
+    public boolean setTuning(int[] openPitches) {
+        if (tuning == null || openPitches.length != numOfStrings) {
+            return false;
+        }
+        tuning = openPitches.clone();
+        return true;
+    }
+
+    public int[] getTuning() {
+        return tuning == null ? null : tuning.clone();
+    }
+
+    /* names of the open strings for the side bar, ie E B G D A E */
+    public String[] getStringNames() {
+        if (tuning == null) {
+            return new String[0];
+        }
+        String[] names = new String[tuning.length];
+        for (int i = 0; i < tuning.length; i++) {
+            names[i] = PITCH_NAMES[Math.floorMod(tuning[i], 12)];
+        }
+        return names;
+    }
+
     public boolean isDrums() {
         if (this instanceof TrackTypeDrums) {
             return true;
@@ -9,6 +9,7 @@ public class TrackTypeBass extends TrackType {
         name = "bass";
         //trackHeight = 100;
         numOfStrings = 4;
+        tuning = new int[] {43, 38, 33, 28};
     }
 
     @Override
@@ -16,18 +17,12 @@ public class TrackTypeBass extends TrackType {
         int stringNum = 0;
         int fret = 0;
         int pitch = note.pitch;
-        if (pitch >= 43) {
-            stringNum = 0;
-            fret = pitch - 43;
-        } else if (note.pitch >= 38) {
-            stringNum = 1;
-            fret = pitch - 38;
-        } else if (pitch >= 33) {
-            stringNum = 2;
-            fret = pitch - 33;
-        } else if (pitch >= 28) {
-            stringNum = 3;
-            fret = pitch - 28;
+        for (int i = 0; i < tuning.length; i++) {
+            if (pitch >= tuning[i]) {
+                stringNum = i;
+                fret = pitch - tuning[i];
+                break;
+            }
         }
         note.stringNum = stringNum;
         note.fret = fret;
@@ -35,10 +30,7 @@ public class TrackTypeBass extends TrackType {
 
     @Override
     public int findNotePitch(int stringNum, int fret) {
-        if (stringNum == 0) return 55 + fret - 12;
-        if (stringNum == 1) return 50 + fret - 12;
-        if (stringNum == 2) return 45 + fret - 12;
-        if (stringNum == 3) return 40 + fret - 12;
+        if (stringNum >= 0 && stringNum < tuning.length) return tuning[stringNum] + fret;
         return 0;
     }
 
@@ -18,7 +18,7 @@ import widgets.NumberInputField;
 import widgets.ObjectMenuItem;
 
 
-public class TrackView extends JPanel {
+public class TrackView extends JPanel implements TrackListener {
 
     private JPanel topBar;
     private JPanel drawContainer;
@@ -86,16 +86,7 @@ public class TrackView extends JPanel {
         collapseButton.addMouseListener(new MouseAdapter() {
             @Override
             public void mousePressed(MouseEvent e) {
-                if (isCollapsed) {
-                    expand();
-                    isCollapsed = false;
-                    collapseButton.setIcon(collapseIcon);
-                } else {
-                    collapse();
-                    isCollapsed = true;
-                    collapseButton.setIcon(expandIcon);
-
-                }
+                controller.handleCollapseButton();
             }
         });
         topBar.add(collapseButton);
@@ -337,12 +328,10 @@ public class TrackView extends JPanel {
         trackType = type;
         if (s.equals("guitar")) {
             drawArea = drawAreaGuitar;
-            String[] stringNames = {"E", "B", "G", "D", "A", "E"};
-            sideBar.setContent(stringNames);
+            sideBar.setContent(type.getStringNames());
         } else if (s.equals("bass")) {
             drawArea = drawAreaBass;
-            String[] stringNames = {"G", "D", "A", "E"};
-            sideBar.setContent(stringNames);
+            sideBar.setContent(type.getStringNames());
         } else if (s.equals("drums")) {
             drawArea = drawAreaDrums;
             String[] stringNames = {"", "Crash", "Ride", "Open HH", "Closed HH", "Snare", "Stick", "Kick"};
@@ -365,6 +354,22 @@ public class TrackView extends JPanel {
         repaint();
     }
 
+    protected boolean isCollapsed() {
+        return isCollapsed;
+    }
+
+    protected void setCollapsed(boolean collapsed) {
+        if (collapsed == isCollapsed) return;
+        if (collapsed) {
+            collapse();
+            collapseButton.setIcon(expandIcon);
+        } else {
+            expand();
+            collapseButton.setIcon(collapseIcon);
+        }
+        isCollapsed = collapsed;
+    }
+
     protected void collapse() {
         setComponentSize(this, PageView.width, ThemeReader.getMeasure("track.topPanel.height") + 2);
         revalidate();
@@ -440,6 +445,19 @@ public class TrackView extends JPanel {
         drawArea.overwriteNote(note);
     }
 
+    protected void drawTicks(long from, long to) {
+        drawArea.overwriteTicks(from, to);
+    }
+
+    /* repaint only the ticks the notes changed in */
+    public void trackChanged(TrackEvent event) {
+        if (event.getFromTick() == Long.MIN_VALUE || event.getToTick() == Long.MAX_VALUE) {
+            drawNew();
+        } else {
+            drawTicks(event.getFromTick(), event.getToTick());
+        }
+    }
+
     protected void showGridSize(String gridSize) {
         gridSizePicker.setSelectedItem(gridSize);
     }
@@ -0,0 +1,126 @@
+package utils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+
+/**
+ * Growable byte array with the varint encodings the journal and the .tof
+ * project files use, and static readers for them.  Numbers go 7 bits at a
+ * time, low first; signed ones are zigzagged first so small negative
+ * numbers stay short.  Big endian where a fixed width is used.
+ */
+public class ByteCoder {
+
+    private byte[] bytes;
+    private int size = 0;
+
+    public ByteCoder() {
+        this(256);
+    }
+
+    public ByteCoder(int capacity) {
+        bytes = new byte[Math.max(16, capacity)];
+    }
+
+    public void reset() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /* the backing array; only the first size() bytes are written */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(bytes, size);
+    }
+
+    public void putByte(int b) {
+        if (size == bytes.length) {
+            bytes = Arrays.copyOf(bytes, size * 2);
+        }
+        bytes[size] = (byte)b;
+        size += 1;
+    }
+
+    public void putBytes(byte[] from, int offset, int length) {
+        if (size + length > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(size * 2, size + length));
+        }
+        System.arraycopy(from, offset, bytes, size, length);
+        size += length;
+    }
+
+    public void putShort(int value) {
+        putByte(value >> 8);
+        putByte(value);
+    }
+
+    public void putInt(int value) {
+        putByte(value >> 24);
+        putByte(value >> 16);
+        putByte(value >> 8);
+        putByte(value);
+    }
+
+    public void putLong(long value) {
+        putInt((int)(value >> 32));
+        putInt((int)value);
+    }
+
+    /* 7 bits at a time, low first, high bit set on all but the last */
+    public void putVarLong(long value) {
+        while ((value & ~0x7fL) != 0) {
+            putByte((int)(value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        putByte((int)value);
+    }
+
+    /* zigzag, so small negative numbers stay short */
+    public void putSigned(long value) {
+        putVarLong((value << 1) ^ (value >> 63));
+    }
+
+    public void putString(String string) {
+        byte[] utf = string.getBytes(StandardCharsets.UTF_8);
+        putVarLong(utf.length);
+        putBytes(utf, 0, utf.length);
+    }
+
+    public static long readVarLong(ByteBuffer in) {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            int b = in.get();
+            value |= (long)(b & 0x7f) << shift;
+            if (b >= 0) return value;
+            shift += 7;
+        }
+    }
+
+    public static long readSigned(ByteBuffer in) {
+        long value = readVarLong(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /* works on any buffer, heap or mapped */
+    public static String readString(ByteBuffer in) {
+        int length = (int)readVarLong(in);
+        byte[] utf = new byte[length];
+        in.get(utf);
+        return new String(utf, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return "ByteCoder size: " + size;
+    }
+
+}
@@ -17,9 +17,11 @@ public class FileChooser extends JFileChooser {
             setCurrentDirectory(new File(workingPath));
         }
 
+        /* filter may list more than one extension, ie "mid,gp5" */
         if (filter != null) {
-            setFileFilter(
-                    new FileNameExtensionFilter("Only ." + filter + " files", filter));
+            String[] extensions = filter.split(",");
+            setFileFilter(new FileNameExtensionFilter(
+                    "Only ." + String.join(", .", extensions) + " files", extensions));
         }
     }
 